@@ -0,0 +1,49 @@
+package indexing;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.document.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import searching.BenchmarkFixture;
+
+/**
+ * Benchmarks parsing review JSON lines into documents, as IndexGenerator does
+ * for every line of a review file. Only the parsing is timed, not indexing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IngestBenchmark {
+
+    // lines parsed in turn, so one line's parse is not all that is measured
+    private static final int LINES = 1000;
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private List<String> lines;
+    private int next;
+
+    @Setup
+    public void setup() {
+        lines = BenchmarkFixture.reviewLines(LINES);
+    }
+
+    @Benchmark
+    public Document parseReview() throws IOException {
+        next = (next + 1) % LINES;
+        return IndexGenerator.parseReview(lines.get(next), jsonFactory);
+    }
+}
@@ -0,0 +1,151 @@
+package searching;
+
+import indexing.CorpusGenerator;
+import indexing.IndexConstants;
+import indexing.IndexGenerator;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Small generated review and book indexes for the benchmarks. The data comes
+ * from CorpusGenerator with a fixed seed, so every run and every commit
+ * benchmarks the same documents.
+ */
+public class BenchmarkFixture {
+
+    // size of the fixture
+    public final static int REVIEWS = 20000;
+    public final static long SEED = 849;
+
+    // fixture of this JVM, each benchmark fork builds its own
+    private static BenchmarkFixture shared;
+
+    private final File dir;
+    private QueryRunner qRunner;
+
+    private BenchmarkFixture(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Returns the fixture of this JVM, creating it on first use. It is
+     * deleted when the JVM exits.
+     * @return fixture
+     * @throws IOException if the fixture could not be written
+     */
+    public static synchronized BenchmarkFixture get() throws IOException {
+        if (shared == null) {
+            shared = create();
+            final File dir = shared.dir;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> delete(dir)));
+        }
+        return shared;
+    }
+
+    /**
+     * Generates the fixture data and indexes it in a new temporary directory.
+     * @return fixture
+     * @throws IOException if the fixture could not be written
+     */
+    private static BenchmarkFixture create() throws IOException {
+        File dir = Files.createTempDirectory("review-search-bench").toFile();
+        new CorpusGenerator(REVIEWS, SEED, REVIEWS).generate(dir);
+
+        BenchmarkFixture fixture = new BenchmarkFixture(dir);
+        File books = new File(dir, "book_data.json");
+        new IndexGenerator(books).createBookIndex(books, fixture.getBookIndex());
+        new IndexGenerator(new File(dir, "review_data_part_0.json")).createIndex(fixture.getReviewIndex(), false);
+        return fixture;
+    }
+
+    /**
+     * Generates review JSON lines in the format of the review data files.
+     * @param count number of reviews
+     * @return one JSON object per review
+     */
+    public static List<String> reviewLines(int count) {
+        StringWriter out = new StringWriter();
+        try {
+            new CorpusGenerator(count, SEED, count).writeReviews(out, 0);
+        } catch (IOException ex) {
+            // writing to a string does not fail
+            throw new IllegalStateException(ex);
+        }
+        return Arrays.asList(out.toString().split("\n"));
+    }
+
+    /**
+     * Returns the QueryRunner on the fixture indexes, opening it on first use.
+     * @return QueryRunner of the fixture
+     */
+    public synchronized QueryRunner getQueryRunner() {
+        if (qRunner == null) {
+            qRunner = new QueryRunner(getReviewIndex().getPath(), getBookIndex().getPath());
+        }
+        return qRunner;
+    }
+
+    /**
+     * Scores the terms of the top reviews of a query the way PRF and Rocchio
+     * do, to feed the expansion loop without searching.
+     * @param text query text
+     * @param r number of intermediate results
+     * @return scored terms of each intermediate result
+     * @throws IOException if the index could not be read
+     */
+    public List<List<QueryRunner.TermScore>> feedbackTerms(String text, int r) throws IOException {
+        List<List<QueryRunner.TermScore>> feedbackTerms = new ArrayList<>();
+        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(getReviewIndex().toPath()))) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            for (ScoreDoc scoreDoc : searcher.search(getQueryRunner().buildQuery(text, IndexConstants.TEXT, false), r).scoreDocs) {
+                List<QueryRunner.TermScore> termScores = new ArrayList<>();
+                Terms terms = reader.getTermVector(scoreDoc.doc, IndexConstants.TEXT);
+                TermsEnum termsEnum = terms.iterator();
+                PostingsEnum pe = null;
+                while (termsEnum.next() != null) {
+                    pe = termsEnum.postings(pe);
+                    pe.nextDoc();
+                    double score = QueryRunner.calcTFIDF(reader.numDocs(), termsEnum.docFreq(), pe.freq());
+                    termScores.add(new QueryRunner.TermScore(termsEnum.term().utf8ToString(), score));
+                }
+                feedbackTerms.add(termScores);
+            }
+        }
+        return feedbackTerms;
+    }
+
+    public File getReviewIndex() {
+        return new File(dir, "index");
+    }
+
+    public File getBookIndex() {
+        return new File(dir, "bookIndex");
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     * @param file directory or file to delete
+     */
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
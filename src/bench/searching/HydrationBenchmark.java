@@ -0,0 +1,97 @@
+package searching;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import indexing.IndexConstants;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import models.Review;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.store.FSDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks turning the hits of a search into a response: reading the stored
+ * fields of each hit into a Review, and writing the reviews as the JSON array
+ * SearchServlet streams.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HydrationBenchmark {
+
+    // number of hits
+    @Param({"10", "100"})
+    public int n;
+
+    private IndexReader reader;
+    private IndexSearcher searcher;
+    private ScoreDoc[] hits;
+    private List<Review> reviews;
+    // throws the JSON away, only the serialization is timed
+    private final OutputStream nowhere = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkFixture fixture = BenchmarkFixture.get();
+        reader = DirectoryReader.open(FSDirectory.open(fixture.getReviewIndex().toPath()));
+        searcher = new IndexSearcher(reader);
+        hits = searcher.search(fixture.getQueryRunner().buildQuery("book story", IndexConstants.TEXT, false), n).scoreDocs;
+        reviews = docToReview();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        reader.close();
+    }
+
+    @Benchmark
+    public List<Review> docToReview() throws IOException {
+        List<Review> results = new ArrayList<>();
+        for (ScoreDoc hit : hits) {
+            Document doc = searcher.doc(hit.doc);
+            results.add(QueryRunner.docToReview(doc, hit));
+        }
+        return results;
+    }
+
+    @Benchmark
+    public void serialize() throws IOException {
+        try (JsonGenerator generator = SearchServlet.MAPPER.getFactory().createGenerator(nowhere, JsonEncoding.UTF8)) {
+            generator.writeStartArray();
+            for (Review review : reviews) {
+                SearchServlet.MAPPER.writeValue(generator, review);
+            }
+            generator.writeEndArray();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package searching;
+
+import indexing.IndexConstants;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.TermQuery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the CPU work of building queries: parsing the query text, tf-idf
+ * and working out the expansion clauses of PRF and Rocchio from the scored
+ * terms of the intermediate results. The intermediate results are scored
+ * once in setup, so no search is timed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+
+    @Param({"mystery", "science fiction", "romance cooking history"})
+    public String text;
+
+    // number of intermediate results
+    @Param({"10"})
+    public int r;
+
+    // statistics for tf-idf, fields so they are not folded into constants
+    private int docFreq = BenchmarkFixture.REVIEWS / 10;
+    private int termFreq = 3;
+
+    private QueryRunner qRunner;
+    private List<String> tokens;
+    private Map<String, Integer> docFreqs;
+    private List<List<QueryRunner.TermScore>> feedbackTerms;
+    private QueryRunner.RocchioConfig prf;
+    private QueryRunner.RocchioConfig rocchio;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkFixture fixture = BenchmarkFixture.get();
+        qRunner = fixture.getQueryRunner();
+        feedbackTerms = fixture.feedbackTerms(text, r);
+
+        // query terms as the expansion loop sees them
+        tokens = new ArrayList<>();
+        docFreqs = new HashMap<>();
+        for (BooleanClause clause : qRunner.buildQuery(text, IndexConstants.TEXT, false)) {
+            String token = ((TermQuery) clause.getQuery()).getTerm().text();
+            tokens.add(token);
+            docFreqs.put(token, docFreq);
+        }
+
+        prf = new QueryRunner.RocchioConfig();
+        prf.setX(5);
+        prf.setR(r);
+        rocchio = new QueryRunner.RocchioConfig();
+        rocchio.setX(-1);
+        rocchio.setR(r);
+    }
+
+    @Benchmark
+    public BooleanQuery buildQuery() {
+        return qRunner.buildQuery(text, IndexConstants.TEXT, false);
+    }
+
+    @Benchmark
+    public double calcTFIDF() {
+        return QueryRunner.calcTFIDF(BenchmarkFixture.REVIEWS, docFreq, termFreq);
+    }
+
+    @Benchmark
+    public List<QueryRunner.TermScore> prfExpansion() {
+        return QueryRunner.expansionClauses(tokens, docFreqs, BenchmarkFixture.REVIEWS, feedbackTerms,
+                feedbackTerms.size(), prf);
+    }
+
+    @Benchmark
+    public List<QueryRunner.TermScore> rocchioExpansion() {
+        return QueryRunner.expansionClauses(tokens, docFreqs, BenchmarkFixture.REVIEWS, feedbackTerms,
+                feedbackTerms.size(), rocchio);
+    }
+}
@@ -0,0 +1,33 @@
+package searching;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks and saves the results as JSON, to compare against the
+ * results of another commit. The fixture, iterations and forks are fixed in
+ * the benchmarks, so runs on the same machine are comparable.
+ * Usage: RunBenchmarks [result file] [benchmark name pattern ...]
+ */
+public class RunBenchmarks {
+
+    // result file when none is given
+    public final static String RESULT_FILE = "bench_output.json";
+
+    public static void main(String[] args) throws RunnerException {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .resultFormat(ResultFormatType.JSON)
+                .result((args.length > 0) ? args[0] : RESULT_FILE);
+        if (args.length > 1) {
+            for (int i = 1; i < args.length; i++) {
+                options.include(args[i]);
+            }
+        } else {
+            options.include("searching\\..*Benchmark").include("indexing\\..*Benchmark");
+        }
+        new Runner(options.build()).run();
+    }
+}
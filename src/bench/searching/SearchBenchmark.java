@@ -0,0 +1,78 @@
+package searching;
+
+import indexing.IndexConstants;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import models.Review;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks whole searches on the fixture index, from the query text to the
+ * hydrated reviews. The result and expansion caches are cleared before every
+ * search, so each one does the full work: the intermediate search, the term
+ * vectors, the expanded query and the final search.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+
+    @Param({"mystery", "science fiction", "romance cooking history"})
+    public String text;
+
+    // number of results
+    @Param({"10"})
+    public int n;
+
+    private QueryRunner qRunner;
+    private QueryRunner.RocchioConfig prf;
+    private QueryRunner.RocchioConfig rocchio;
+
+    @Setup
+    public void setup() throws IOException {
+        qRunner = BenchmarkFixture.get().getQueryRunner();
+
+        prf = new QueryRunner.RocchioConfig();
+        prf.setX(5);
+        prf.setR(10);
+        rocchio = new QueryRunner.RocchioConfig();
+        rocchio.setX(-1);
+        rocchio.setR(10);
+    }
+
+    @Setup(Level.Invocation)
+    public void clearCaches() {
+        qRunner.getResultCache().clear();
+        qRunner.getExpansionCache().clear();
+    }
+
+    @Benchmark
+    public List<Review> simple() {
+        return qRunner.executeReview(text, IndexConstants.TEXT, n, false);
+    }
+
+    @Benchmark
+    public List<Review> prf() {
+        return qRunner.rocchio(text, IndexConstants.TEXT, n, prf, false);
+    }
+
+    @Benchmark
+    public List<Review> rocchio() {
+        return qRunner.rocchio(text, IndexConstants.TEXT, n, rocchio, false);
+    }
+}
@@ -0,0 +1,155 @@
+package distributed;
+
+import indexing.IndexConstants;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import searching.QueryRunner;
+import searching.SearchConstants;
+
+/**
+ * Serves searches across the search nodes through a SearchCoordinator, with
+ * the search, mode and count parameters of SearchServlet, as a JSON array of
+ * reviews. The nodes are the comma separated URLs of the "nodes" init
+ * parameter, or DistributedConstants.SEARCH_NODES. Reviews from only some of
+ * the nodes come with the nodes left out in the X-Missing-Nodes header, and
+ * 503 is returned if no node answered. The nodes have no book index, so
+ * base=books is refused, as are collapsing and facets, which the nodes do not
+ * compute.
+ */
+public class CoordinatorServlet extends HttpServlet {
+
+    private List<String> nodes;
+    private SearchCoordinator coordinator;
+
+    @Override
+    public void init() throws ServletException {
+        String param = getInitParameter("nodes");
+        nodes = new ArrayList<>();
+        for (String node : ((param != null) ? param : DistributedConstants.SEARCH_NODES).split(",")) {
+            if (!node.trim().isEmpty()) {
+                nodes.add(node.trim());
+            }
+        }
+        if (nodes.isEmpty()) {
+            throw new ServletException("No search nodes to coordinate");
+        }
+        coordinator = new SearchCoordinator(nodes);
+    }
+
+    @Override
+    public void destroy() {
+        coordinator.shutdown();
+    }
+
+    /**
+     * Processes requests for both HTTP <code>GET</code> and <code>POST</code>
+     * methods. The request thread waits for the nodes, at most
+     * DistributedConstants.NODE_TIMEOUT_MILLIS on each round of the search.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    protected void processRequest(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String query = request.getParameter("search");
+        String mode = request.getParameter("mode");
+        String count = request.getParameter("count");
+        if (query == null || mode == null || count == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "search, mode and count are needed");
+            return;
+        }
+        if ("books".equalsIgnoreCase(request.getParameter("base"))) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Searches from the books are not supported across nodes, the nodes have no book index");
+            return;
+        }
+        if (request.getParameter("collapse") != null || request.getParameter("facets") != null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Collapsing and facets are not supported across nodes");
+            return;
+        }
+        int n;
+        try {
+            n = Integer.parseInt(count);
+        } catch (NumberFormatException ex) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "count is not a number: " + count);
+            return;
+        }
+
+        SearchCoordinator.SearchResult result;
+        switch (mode.toLowerCase()) {
+            case "simple":
+                result = coordinator.executeReview(query, IndexConstants.TEXT, n);
+                break;
+            case "prf":
+                QueryRunner.RocchioConfig prf = new QueryRunner.RocchioConfig();
+                prf.setX(10);
+                result = coordinator.rocchio(query, IndexConstants.TEXT, n, prf);
+                break;
+            case "rocchio":
+                result = coordinator.rocchio(query, IndexConstants.TEXT, n, new QueryRunner.RocchioConfig());
+                break;
+            default:
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown mode " + mode);
+                return;
+        }
+
+        if (result.getMissingNodes().size() == nodes.size()) {
+            response.setHeader("Retry-After", String.valueOf(SearchConstants.RETRY_AFTER_SECONDS));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "No search node answered");
+            return;
+        }
+        if (result.isPartial()) {
+            response.setHeader("X-Missing-Nodes", String.join(", ", result.getMissingNodes()));
+        }
+        response.setContentType("application/json");
+        SearchNode.MAPPER.writeValue(response.getOutputStream(), result.getReviews());
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
+    /**
+     * Handles the HTTP <code>GET</code> method.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        processRequest(request, response);
+    }
+
+    /**
+     * Handles the HTTP <code>POST</code> method.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        processRequest(request, response);
+    }
+
+    /**
+     * Returns a short description of the servlet.
+     *
+     * @return a String containing servlet description
+     */
+    @Override
+    public String getServletInfo() {
+        return "Searches across the search nodes";
+    }// </editor-fold>
+
+}
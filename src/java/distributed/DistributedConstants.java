@@ -0,0 +1,17 @@
+package distributed;
+
+/**
+ * Contains distributed search related constants.
+ */
+public class DistributedConstants {
+    // how long the coordinator waits for a node on each round of a search.
+    // A node that takes longer is left out and the other nodes' results are returned.
+    public final static int NODE_TIMEOUT_MILLIS = 2000;
+    // threads the coordinator sends node requests on
+    public final static int COORDINATOR_THREADS = 16;
+    // port of the first node started by LocalCluster, the others follow it
+    public final static int LOCAL_BASE_PORT = 8950;
+    // nodes CoordinatorServlet searches, comma separated, unless its "nodes"
+    // init parameter names others. These are the first two LocalCluster nodes.
+    public final static String SEARCH_NODES = "http://localhost:8950,http://localhost:8951";
+}
@@ -0,0 +1,166 @@
+package distributed;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.IndexSearcher;
+
+/**
+ * Collection and term statistics of one field. Each node looks up the
+ * statistics of its own shards and the coordinator adds them up, so every
+ * node can score with the statistics of the whole collection.
+ */
+public class IndexStats {
+
+    private final String field;
+    private long numDocs;
+    private long maxDoc;
+    private long docCount;
+    private long sumTotalTermFreq;
+    private long sumDocFreq;
+    // document frequency and total term frequency of each term
+    private final Map<String, long[]> terms = new LinkedHashMap<>();
+
+    /**
+     * Creates empty statistics, to add node statistics to.
+     * @param field field the statistics are for
+     */
+    public IndexStats(String field) {
+        this.field = field;
+    }
+
+    /**
+     * Looks up the statistics of a field and some of its terms.
+     * @param searcher searcher over the node's shards
+     * @param field field to look up
+     * @param termTexts terms to look up
+     * @return statistics of the searcher's index
+     * @throws IOException
+     */
+    public static IndexStats of(IndexSearcher searcher, String field, Collection<String> termTexts) throws IOException {
+        IndexReader reader = searcher.getIndexReader();
+        IndexStats stats = new IndexStats(field);
+        CollectionStatistics collection = searcher.collectionStatistics(field);
+        stats.numDocs = reader.numDocs();
+        stats.maxDoc = collection.maxDoc();
+        stats.docCount = collection.docCount();
+        stats.sumTotalTermFreq = collection.sumTotalTermFreq();
+        stats.sumDocFreq = collection.sumDocFreq();
+        for (String text : termTexts) {
+            Term term = new Term(field, text);
+            stats.terms.put(text, new long[]{reader.docFreq(term), reader.totalTermFreq(term)});
+        }
+        return stats;
+    }
+
+    /**
+     * Adds the statistics of another node to these.
+     * @param other statistics of another node, for the same field
+     */
+    public void add(IndexStats other) {
+        numDocs += other.numDocs;
+        maxDoc += other.maxDoc;
+        docCount = sum(docCount, other.docCount);
+        sumTotalTermFreq = sum(sumTotalTermFreq, other.sumTotalTermFreq);
+        sumDocFreq = sum(sumDocFreq, other.sumDocFreq);
+        for (Map.Entry<String, long[]> entry : other.terms.entrySet()) {
+            long[] mine = terms.get(entry.getKey());
+            if (mine == null) {
+                terms.put(entry.getKey(), entry.getValue().clone());
+            } else {
+                mine[0] += entry.getValue()[0];
+                mine[1] = sum(mine[1], entry.getValue()[1]);
+            }
+        }
+    }
+
+    // -1 means the codec does not keep the statistic, so the sum is unknown too
+    private static long sum(long a, long b) {
+        return (a == -1 || b == -1) ? -1 : a + b;
+    }
+
+    /**
+     * @return the field's statistics in the form Lucene scores with
+     */
+    public CollectionStatistics toCollectionStatistics() {
+        return new CollectionStatistics(field, maxDoc, docCount, sumTotalTermFreq, sumDocFreq);
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public long getNumDocs() {
+        return numDocs;
+    }
+
+    /**
+     * @param term term to look up
+     * @return true if the statistics include the term
+     */
+    public boolean hasTerm(String term) {
+        return terms.containsKey(term);
+    }
+
+    /**
+     * @param term term to look up
+     * @return number of documents containing the term
+     */
+    public long getDocFreq(String term) {
+        return terms.get(term)[0];
+    }
+
+    /**
+     * @param term term to look up
+     * @return number of times the term occurs, -1 if unknown
+     */
+    public long getTotalTermFreq(String term) {
+        return terms.get(term)[1];
+    }
+
+    /**
+     * Writes the statistics into a JSON object.
+     * @param json object to write into
+     * @return the object written into
+     */
+    public ObjectNode toJson(ObjectNode json) {
+        json.put("field", field);
+        json.put("numDocs", numDocs);
+        json.put("maxDoc", maxDoc);
+        json.put("docCount", docCount);
+        json.put("sumTotalTermFreq", sumTotalTermFreq);
+        json.put("sumDocFreq", sumDocFreq);
+        ObjectNode termsJson = json.putObject("terms");
+        for (Map.Entry<String, long[]> entry : terms.entrySet()) {
+            termsJson.putArray(entry.getKey()).add(entry.getValue()[0]).add(entry.getValue()[1]);
+        }
+        return json;
+    }
+
+    /**
+     * Reads statistics written by toJson.
+     * @param json statistics object
+     * @return statistics
+     */
+    public static IndexStats fromJson(JsonNode json) {
+        IndexStats stats = new IndexStats(json.path("field").asText());
+        stats.numDocs = json.path("numDocs").asLong();
+        stats.maxDoc = json.path("maxDoc").asLong();
+        stats.docCount = json.path("docCount").asLong();
+        stats.sumTotalTermFreq = json.path("sumTotalTermFreq").asLong();
+        stats.sumDocFreq = json.path("sumDocFreq").asLong();
+        Iterator<Map.Entry<String, JsonNode>> it = json.path("terms").fields();
+        while (it.hasNext()) {
+            Map.Entry<String, JsonNode> entry = it.next();
+            stats.terms.put(entry.getKey(), new long[]{entry.getValue().path(0).asLong(), entry.getValue().path(1).asLong()});
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,89 @@
+package distributed;
+
+import indexing.IndexConstants;
+import indexing.IndexGenerator;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import models.Review;
+import org.apache.lucene.store.Directory;
+import searching.IndexDirectories;
+import searching.QueryRunner;
+
+/**
+ * Starts several search nodes on localhost over the shards of the review
+ * index, then runs searches typed on the command line through a coordinator.
+ * The shards are dealt out to the nodes in turn, so the index needs at least
+ * as many shards as there are nodes. Typing "stop #" stops a node to see the
+ * searches carry on without it.
+ */
+public class LocalCluster {
+
+    /**
+     * @param args number of nodes, 2 if not given
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        int nodeCount = (args.length > 0) ? Integer.parseInt(args[0]) : 2;
+
+        File indexFile = new File(IndexConstants.INDEX_LOCATION);
+        List<File> shards = new ArrayList<>();
+        File shard;
+        while ((shard = IndexGenerator.shardDirectory(indexFile, shards.size())).isDirectory()) {
+            shards.add(shard);
+        }
+        if (shards.size() < nodeCount) {
+            System.err.println("The review index has " + shards.size() + " shards, at least " + nodeCount
+                    + " are needed. Set REVIEW_SHARDS and create the index again.");
+            return;
+        }
+
+        List<SearchNode> nodes = new ArrayList<>();
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < nodeCount; i++) {
+            List<Directory> owned = new ArrayList<>();
+            for (int s = i; s < shards.size(); s += nodeCount) {
+                owned.add(IndexDirectories.open(shards.get(s).toPath()));
+            }
+            SearchNode node = new SearchNode(DistributedConstants.LOCAL_BASE_PORT + i, owned.toArray(new Directory[owned.size()]));
+            node.start();
+            nodes.add(node);
+            urls.add("http://localhost:" + node.getPort());
+            System.out.println("Node " + i + " on port " + node.getPort() + " with " + owned.size() + " shards");
+        }
+
+        SearchCoordinator coordinator = new SearchCoordinator(urls);
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+        System.out.println("Enter a search, \"rocchio <search>\", \"stop <node>\" or an empty line to quit.");
+        while ((line = in.readLine()) != null && !line.trim().isEmpty()) {
+            line = line.trim();
+            SearchCoordinator.SearchResult result;
+            if (line.startsWith("stop ")) {
+                int node = Integer.parseInt(line.substring(5).trim());
+                nodes.get(node).stop();
+                System.out.println("Stopped node " + node);
+                continue;
+            } else if (line.startsWith("rocchio ")) {
+                result = coordinator.rocchio(line.substring(8), IndexConstants.TEXT, 10, new QueryRunner.RocchioConfig());
+            } else {
+                result = coordinator.executeReview(line, IndexConstants.TEXT, 10);
+            }
+
+            for (Review review : result.getReviews()) {
+                System.out.println(review.getScore() + "\t" + review.getAsin() + "\t" + review.getReviewerId());
+            }
+            if (result.isPartial()) {
+                System.out.println("Partial results, no answer from " + result.getMissingNodes());
+            }
+        }
+
+        coordinator.shutdown();
+        for (SearchNode node : nodes) {
+            node.stop();
+        }
+    }
+}
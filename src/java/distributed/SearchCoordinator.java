@@ -0,0 +1,414 @@
+package distributed;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import models.Review;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import searching.QueryPool;
+import searching.QueryRunner;
+import searching.QueryRunner.RocchioConfig;
+import searching.QueryRunner.TermScore;
+
+/**
+ * Runs searches across several search nodes and merges their top reviews.
+ * Before scoring, the statistics of every node are added up and sent back out,
+ * so BM25 scores and Rocchio weights are the same as for one index holding
+ * every shard. A node that does not answer in time is left out of the rest of
+ * the search and the reviews of the other nodes are returned. Served over
+ * HTTP by CoordinatorServlet.
+ */
+public class SearchCoordinator {
+
+    // base URL of each node, e.g. http://localhost:8950
+    private final List<String> nodes;
+    // query analyzer, tokenizes, stems and removes stop words the same way as the index
+    private final Analyzer analyzer = new EnglishAnalyzer();
+    // threads the node requests are sent on
+    private final ExecutorService executor = Executors.newFixedThreadPool(DistributedConstants.COORDINATOR_THREADS,
+            QueryPool.daemonThreads("coordinator"));
+
+    /**
+     *
+     * @param nodes base URL of each node
+     */
+    public SearchCoordinator(List<String> nodes) {
+        this.nodes = new ArrayList<>(nodes);
+    }
+
+    /**
+     * Runs a simple search for reviews on every node.
+     * @param text Free text query.
+     * @param field field to run query on
+     * @param n number of results to return
+     * @return top reviews and the nodes left out
+     */
+    public SearchResult executeReview(String text, String field, int n) {
+        List<Integer> live = allNodes();
+        Set<String> missing = new LinkedHashSet<>();
+
+        List<String> tokens = analyze(text, field);
+        IndexStats stats = stats(live, field, tokens, missing);
+        List<Hit> hits = search(live, field, unboosted(tokens), n, stats, missing);
+        return new SearchResult(hits, missing);
+    }
+
+    /**
+     * Run a Rocchio search on every node. If x > 0 in config, run a PRF
+     * search. The intermediate results always come from the reviews, there is
+     * no book index on the nodes.
+     * @param text Free text query.
+     * @param field field to run query on
+     * @param n number of results to return
+     * @param config rocchio configuration
+     * @return top reviews and the nodes left out
+     */
+    public SearchResult rocchio(String text, String field, int n, RocchioConfig config) {
+        List<Integer> live = allNodes();
+        Set<String> missing = new LinkedHashSet<>();
+
+        // intermediate results, scored with the statistics of every node
+        List<String> tokens = analyze(text, field);
+        IndexStats stats = stats(live, field, tokens, missing);
+        List<Hit> results = search(live, field, unboosted(tokens), config.getR(), stats, missing);
+        if (live.isEmpty()) {
+            return new SearchResult(results, missing);
+        }
+
+        // term vectors of the intermediate results, from the nodes holding them
+        List<Integer> targets = new ArrayList<>();
+        List<ObjectNode> bodies = new ArrayList<>();
+        for (Hit result : results) {
+            targets.add(result.node);
+            bodies.add(SearchNode.MAPPER.createObjectNode().put("field", field).put("doc", result.review.getDocId()));
+        }
+        List<JsonNode> vectors = send(targets, "/terms", bodies, missing);
+        for (int i = 0; i < targets.size(); i++) {
+            if (vectors.get(i) == null) {
+                live.remove(targets.get(i));
+            }
+        }
+
+        int numDocs = (int) stats.getNumDocs();
+        List<List<TermScore>> feedbackTerms = new ArrayList<>();
+        for (JsonNode vector : vectors) {
+            if (vector == null) {
+                continue;
+            }
+            List<TermScore> termScores = new ArrayList<>();
+            Iterator<Map.Entry<String, JsonNode>> it = vector.path("terms").fields();
+            while (it.hasNext()) {
+                Map.Entry<String, JsonNode> term = it.next();
+                int freq = term.getValue().path(0).asInt();
+                int docFreq = term.getValue().path(1).asInt();
+                termScores.add(new TermScore(term.getKey(), QueryRunner.calcTFIDF(numDocs, docFreq, freq)));
+            }
+            feedbackTerms.add(termScores);
+        }
+
+        Map<String, Integer> docFreqs = new HashMap<>();
+        for (String token : tokens) {
+            if (stats.hasTerm(token)) {
+                docFreqs.put(token, (int) stats.getDocFreq(token));
+            }
+        }
+        List<TermScore> clauses = QueryRunner.expansionClauses(tokens, docFreqs, numDocs, feedbackTerms,
+                results.size(), config);
+
+        // the expanded query needs statistics for the added terms too
+        Set<String> terms = new LinkedHashSet<>();
+        for (TermScore clause : clauses) {
+            terms.add(clause.getTerm());
+        }
+        IndexStats expandedStats = stats(live, field, terms, missing);
+        List<Hit> hits = search(live, field, clauses, n, expandedStats, missing);
+        return new SearchResult(hits, missing);
+    }
+
+    /**
+     * Stops the threads sending node requests.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Adds up the statistics of every live node.
+     * @param live nodes still in the search, nodes that fail are removed
+     * @param field field to look up
+     * @param terms terms to look up
+     * @param missing receives the nodes that failed
+     * @return statistics of the live nodes together
+     */
+    private IndexStats stats(List<Integer> live, String field, Collection<String> terms, Set<String> missing) {
+        ObjectNode body = SearchNode.MAPPER.createObjectNode().put("field", field);
+        ArrayNode termsJson = body.putArray("terms");
+        for (String term : terms) {
+            termsJson.add(term);
+        }
+
+        IndexStats stats = new IndexStats(field);
+        for (JsonNode response : sendAll(live, "/stats", body, missing)) {
+            stats.add(IndexStats.fromJson(response));
+        }
+        return stats;
+    }
+
+    /**
+     * Runs a weighted term query on every live node and merges the top hits.
+     * @param live nodes still in the search, nodes that fail are removed
+     * @param field field to run query on
+     * @param clauses term and boost of each clause
+     * @param n number of results to return
+     * @param stats statistics to score with
+     * @param missing receives the nodes that failed
+     * @return top n hits over every node that answered
+     */
+    private List<Hit> search(List<Integer> live, String field, List<TermScore> clauses, int n, IndexStats stats,
+            Set<String> missing) {
+        ObjectNode body = SearchNode.MAPPER.createObjectNode().put("field", field).put("n", n);
+        ArrayNode clausesJson = body.putArray("clauses");
+        for (TermScore clause : clauses) {
+            clausesJson.addObject().put("term", clause.getTerm()).put("boost", clause.getScore());
+        }
+        stats.toJson(body.putObject("stats"));
+
+        List<Integer> asked = new ArrayList<>(live);
+        List<JsonNode> responses = send(asked, "/search", Collections.nCopies(asked.size(), body), missing);
+        live.retainAll(answered(asked, responses));
+
+        List<Hit> hits = new ArrayList<>();
+        for (int i = 0; i < asked.size(); i++) {
+            if (responses.get(i) == null) {
+                continue;
+            }
+            int rank = 0;
+            for (JsonNode review : responses.get(i).path("hits")) {
+                try {
+                    hits.add(new Hit(asked.get(i), rank++, SearchNode.MAPPER.treeToValue(review, Review.class)));
+                } catch (IOException ex) {
+                    System.err.println("Bad review from " + nodes.get(asked.get(i)) + ": " + ex.getMessage());
+                }
+            }
+        }
+        // highest score first, equal scores in node order then in the node's own order
+        hits.sort((a, b) -> {
+            int byScore = Float.compare(b.review.getScore(), a.review.getScore());
+            if (byScore != 0) {
+                return byScore;
+            }
+            return (a.node != b.node) ? Integer.compare(a.node, b.node) : Integer.compare(a.rank, b.rank);
+        });
+        return (hits.size() > n) ? new ArrayList<>(hits.subList(0, n)) : hits;
+    }
+
+    /**
+     * Sends the same request to every live node.
+     * @param live nodes still in the search, nodes that fail are removed
+     * @param path request path
+     * @param body request body
+     * @param missing receives the nodes that failed
+     * @return responses of the nodes that answered
+     */
+    private List<JsonNode> sendAll(List<Integer> live, String path, ObjectNode body, Set<String> missing) {
+        List<Integer> asked = new ArrayList<>(live);
+        List<JsonNode> responses = send(asked, path, Collections.nCopies(asked.size(), body), missing);
+        live.retainAll(answered(asked, responses));
+
+        List<JsonNode> answers = new ArrayList<>();
+        for (JsonNode response : responses) {
+            if (response != null) {
+                answers.add(response);
+            }
+        }
+        return answers;
+    }
+
+    /**
+     * Sends requests to nodes at the same time and waits for them until the
+     * node timeout. Requests that fail or take too long get no response.
+     * @param targets node of each request
+     * @param path request path
+     * @param bodies body of each request
+     * @param missing receives the nodes that failed
+     * @return response of each request, null where it failed
+     */
+    private List<JsonNode> send(List<Integer> targets, String path, List<ObjectNode> bodies, Set<String> missing) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DistributedConstants.NODE_TIMEOUT_MILLIS);
+        List<CompletableFuture<JsonNode>> futures = new ArrayList<>();
+        for (int i = 0; i < targets.size(); i++) {
+            final String url = nodes.get(targets.get(i)) + path;
+            final ObjectNode body = bodies.get(i);
+            futures.add(CompletableFuture.supplyAsync(() -> post(url, body), executor));
+        }
+
+        List<JsonNode> responses = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            String node = nodes.get(targets.get(i));
+            try {
+                responses.add(futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            } catch (TimeoutException ex) {
+                futures.get(i).cancel(true);
+                System.err.println("Node timed out: " + node);
+                missing.add(node);
+                responses.add(null);
+            } catch (ExecutionException ex) {
+                System.err.println("Node failed: " + node + ": " + ex.getCause().getMessage());
+                missing.add(node);
+                responses.add(null);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                missing.add(node);
+                responses.add(null);
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Posts a JSON request to a node.
+     * @param url request URL
+     * @param body request body
+     * @return response body
+     */
+    private static JsonNode post(String url, ObjectNode body) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(DistributedConstants.NODE_TIMEOUT_MILLIS);
+            connection.setReadTimeout(DistributedConstants.NODE_TIMEOUT_MILLIS);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                SearchNode.MAPPER.writeValue(out, body);
+            }
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("status " + connection.getResponseCode());
+            }
+            try (InputStream in = connection.getInputStream()) {
+                return SearchNode.MAPPER.readTree(in);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static Set<Integer> answered(List<Integer> asked, List<JsonNode> responses) {
+        Set<Integer> answered = new LinkedHashSet<>();
+        for (int i = 0; i < asked.size(); i++) {
+            if (responses.get(i) != null) {
+                answered.add(asked.get(i));
+            }
+        }
+        return answered;
+    }
+
+    private List<Integer> allNodes() {
+        List<Integer> all = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            all.add(i);
+        }
+        return all;
+    }
+
+    private static List<TermScore> unboosted(List<String> tokens) {
+        List<TermScore> clauses = new ArrayList<>();
+        for (String token : tokens) {
+            clauses.add(new TermScore(token, 1.0));
+        }
+        return clauses;
+    }
+
+    /**
+     * Analyzes the query text the same way QueryRunner does.
+     * @param text Free text query.
+     * @param field field the query runs on
+     * @return the query text tokenized, stemmed, and de-stop worded
+     */
+    private List<String> analyze(String text, String field) {
+        List<String> tokens = new ArrayList<>();
+        try (TokenStream tokenStream = analyzer.tokenStream(field, text)) {
+            CharTermAttribute term = tokenStream.addAttribute(CharTermAttribute.class);
+            tokenStream.reset();
+            while (tokenStream.incrementToken()) {
+                tokens.add(term.toString());
+            }
+            tokenStream.end();
+        } catch (IOException ex) {
+            System.err.println("IO Error while reading query text: " + ex.getMessage());
+        }
+        return tokens;
+    }
+
+    /**
+     * A review found on one node.
+     */
+    private static class Hit {
+
+        private final int node;
+        private final int rank;
+        private final Review review;
+
+        public Hit(int node, int rank, Review review) {
+            this.node = node;
+            this.rank = rank;
+            this.review = review;
+        }
+    }
+
+    /**
+     * Top reviews of a distributed search. If some nodes were left out, the
+     * reviews only come from the nodes that answered.
+     */
+    public static class SearchResult {
+
+        private final List<Review> reviews = new ArrayList<>();
+        private final List<String> missingNodes;
+
+        private SearchResult(List<Hit> hits, Set<String> missingNodes) {
+            for (Hit hit : hits) {
+                reviews.add(hit.review);
+            }
+            this.missingNodes = new ArrayList<>(missingNodes);
+        }
+
+        public List<Review> getReviews() {
+            return reviews;
+        }
+
+        public List<String> getMissingNodes() {
+            return missingNodes;
+        }
+
+        /**
+         * @return true if some nodes did not answer
+         */
+        public boolean isPartial() {
+            return !missingNodes.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package distributed;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import models.Review;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.Directory;
+import searching.IndexDirectories;
+import searching.QueryPool;
+import searching.QueryRunner;
+import searching.SearchConstants;
+import searching.ShardedSearcherManager;
+
+/**
+ * Serves searches over some of the shards of a review index. A coordinator
+ * asks every node for its statistics, adds them up and sends them back with
+ * each search, so the node scores its reviews as if it held the whole index.
+ *
+ * Requests and responses are JSON:
+ * POST /stats  {"field", "terms": [...]}                          -> statistics of this node
+ * POST /search {"field", "clauses": [{"term", "boost"}], "n", "stats"} -> {"hits": [review...]}
+ * POST /terms  {"field", "doc"}                                    -> {"terms": {term: [freq, docFreq]}}
+ */
+public class SearchNode {
+
+    static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final ShardedSearcherManager manager;
+    private final HttpServer server;
+
+    /**
+     *
+     * @param port port to listen on
+     * @param shards shard directories this node owns
+     * @throws IOException
+     */
+    public SearchNode(int port, Directory[] shards) throws IOException {
+        manager = new ShardedSearcherManager(shards, new SearcherFactory() {
+            @Override
+            public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                searcher.setSimilarity(new BM25Similarity());
+                return searcher;
+            }
+        });
+
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/stats", new JsonHandler() {
+            @Override
+            ObjectNode handle(IndexSearcher searcher, JsonNode request) throws IOException {
+                return stats(searcher, request);
+            }
+        });
+        server.createContext("/search", new JsonHandler() {
+            @Override
+            ObjectNode handle(IndexSearcher searcher, JsonNode request) throws IOException {
+                return search(searcher, request);
+            }
+        });
+        server.createContext("/terms", new JsonHandler() {
+            @Override
+            ObjectNode handle(IndexSearcher searcher, JsonNode request) throws IOException {
+                return terms(searcher, request);
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(SearchConstants.SIMPLE_QUERY_THREADS,
+                QueryPool.daemonThreads("search-node-" + port));
+        server.setExecutor(executor);
+    }
+
+    /**
+     * Starts answering requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops answering requests and closes the index.
+     * @throws IOException
+     */
+    public void stop() throws IOException {
+        server.stop(0);
+        manager.close();
+    }
+
+    /**
+     * @return port the node listens on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Looks up the statistics of this node's shards.
+     * @param searcher searcher over the shards
+     * @param request field and terms to look up
+     * @return statistics
+     * @throws IOException
+     */
+    private ObjectNode stats(IndexSearcher searcher, JsonNode request) throws IOException {
+        List<String> terms = new ArrayList<>();
+        for (JsonNode term : request.path("terms")) {
+            terms.add(term.asText());
+        }
+        IndexStats stats = IndexStats.of(searcher, request.path("field").asText(), terms);
+        return stats.toJson(MAPPER.createObjectNode());
+    }
+
+    /**
+     * Runs a weighted term query, scored with the statistics sent along.
+     * @param searcher searcher over the shards
+     * @param request field, weighted terms, number of hits and statistics
+     * @return top reviews on this node
+     * @throws IOException
+     */
+    private ObjectNode search(IndexSearcher searcher, JsonNode request) throws IOException {
+        String field = request.path("field").asText();
+        IndexStats stats = IndexStats.fromJson(request.path("stats"));
+
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (JsonNode clause : request.path("clauses")) {
+            TermQuery query = new TermQuery(new Term(field, clause.path("term").asText()));
+            builder.add(new BoostQuery(query, (float) clause.path("boost").asDouble()), BooleanClause.Occur.SHOULD);
+        }
+
+        GlobalStatsSearcher global = new GlobalStatsSearcher(searcher.getIndexReader(), stats);
+        global.setSimilarity(searcher.getSimilarity(true));
+        ScoreDoc[] scoreDocs = global.search(builder.build(), request.path("n").asInt()).scoreDocs;
+
+        ObjectNode response = MAPPER.createObjectNode();
+        ArrayNode hits = response.putArray("hits");
+        for (ScoreDoc scoreDoc : scoreDocs) {
+            Review review = QueryRunner.docToReview(searcher.doc(scoreDoc.doc), scoreDoc);
+            hits.add(MAPPER.valueToTree(review));
+        }
+        return response;
+    }
+
+    /**
+     * Reads the term vector of a review, with the same frequencies QueryRunner
+     * scores Rocchio terms with.
+     * @param searcher searcher over the shards
+     * @param request field and document id on this node
+     * @return frequency in the document and document frequency of each term
+     * @throws IOException
+     */
+    private ObjectNode terms(IndexSearcher searcher, JsonNode request) throws IOException {
+        ObjectNode response = MAPPER.createObjectNode();
+        ObjectNode termsJson = response.putObject("terms");
+        Terms terms = searcher.getIndexReader().getTermVector(request.path("doc").asInt(), request.path("field").asText());
+        if (terms != null) {
+            TermsEnum termsEnum = terms.iterator();
+            PostingsEnum pe = null;
+            while (termsEnum.next() != null) {
+                pe = termsEnum.postings(pe);
+                pe.nextDoc();
+                termsJson.putArray(termsEnum.term().utf8ToString()).add(pe.freq()).add(termsEnum.docFreq());
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Answers a JSON request using the current searcher.
+     */
+    private abstract class JsonHandler implements HttpHandler {
+
+        abstract ObjectNode handle(IndexSearcher searcher, JsonNode request) throws IOException;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                JsonNode request = MAPPER.readTree(exchange.getRequestBody());
+                IndexSearcher searcher = manager.acquire();
+                byte[] body;
+                try {
+                    body = MAPPER.writeValueAsBytes(handle(searcher, request));
+                } finally {
+                    manager.release(searcher);
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } catch (IOException | RuntimeException ex) {
+                System.err.println("Error while answering " + exchange.getRequestURI() + ": " + ex.getMessage());
+                exchange.sendResponseHeaders(500, -1);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * Scores with statistics of the whole collection instead of this node's
+     * shards. Fields and terms the statistics do not cover fall back to the
+     * node's own.
+     */
+    private static class GlobalStatsSearcher extends IndexSearcher {
+
+        private final IndexStats stats;
+
+        public GlobalStatsSearcher(IndexReader reader, IndexStats stats) {
+            super(reader);
+            this.stats = stats;
+        }
+
+        @Override
+        public TermStatistics termStatistics(Term term, TermContext context) throws IOException {
+            if (term.field().equals(stats.getField()) && stats.hasTerm(term.text())) {
+                return new TermStatistics(term.bytes(), stats.getDocFreq(term.text()), stats.getTotalTermFreq(term.text()));
+            }
+            return super.termStatistics(term, context);
+        }
+
+        @Override
+        public CollectionStatistics collectionStatistics(String field) throws IOException {
+            if (field.equals(stats.getField())) {
+                return stats.toCollectionStatistics();
+            }
+            return super.collectionStatistics(field);
+        }
+    }
+
+    /**
+     * Runs a node on the given shard directories.
+     * @param args port followed by the shard directories
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: SearchNode <port> <shard directory>...");
+            return;
+        }
+        Directory[] shards = new Directory[args.length - 1];
+        for (int i = 1; i < args.length; i++) {
+            shards[i - 1] = IndexDirectories.open(new File(args[i]).toPath());
+        }
+        SearchNode node = new SearchNode(Integer.parseInt(args[0]), shards);
+        node.start();
+        System.out.println("Search node listening on port " + node.getPort());
+    }
+}
@@ -0,0 +1,26 @@
+package evaluation;
+
+/**
+ * Contains evaluation related constants.
+ */
+public class EvaluationConstants {
+    // threads running the searches of a parameter sweep, the sweep is the
+    // only thing running so it can have every core
+    public final static int SWEEP_THREADS = Runtime.getRuntime().availableProcessors();
+
+    // table of the scores of each labeled run
+    public final static String SUMMARY_FILE = "evaluation summary.txt";
+    // cut off for precision and nDCG
+    public final static int METRIC_K = 10;
+    // also write the runs and qrels in trec_eval input format
+    public final static boolean WRITE_TREC_FILES = false;
+
+    // records waiting for the result file writer, workers wait when it is full
+    public final static int WRITE_QUEUE_DEPTH = 1024;
+    // how often a worker waiting on a full queue checks the writer is still running
+    public final static long WRITE_QUEUE_WAIT_MILLIS = 100;
+    // most records taken off the queue at once
+    public final static int WRITE_BATCH_SIZE = 256;
+    // buffer of each open result file
+    public final static int WRITE_BUFFER_SIZE = 1 << 16;
+}
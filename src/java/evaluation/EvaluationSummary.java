@@ -0,0 +1,52 @@
+package evaluation;
+
+import java.util.ArrayList;
+import java.util.List;
+import models.Review;
+
+/**
+ * Scores the runs of a sweep as they finish and writes one row per run to a
+ * tab separated summary table: run, MAP, P@k, nDCG@k and recall. Runs can be
+ * added from several threads at once, the rows are still written in run order.
+ */
+public class EvaluationSummary {
+
+    private final String filename;
+    private final ResultFileWriter out;
+    private final List<RelevanceJudgments> judgments;
+    private final int k;
+
+    /**
+     *
+     * @param filename summary table file, replaced if it exists
+     * @param out writes the table
+     * @param judgments relevance judgments of each query, in query order
+     * @param k cut off for precision and nDCG
+     */
+    public EvaluationSummary(String filename, ResultFileWriter out, List<RelevanceJudgments> judgments, int k) {
+        this.filename = filename;
+        this.out = out;
+        this.judgments = judgments;
+        this.k = k;
+        out.write(filename, 0, "run\tMAP\tP@" + k + "\tnDCG@" + k + "\trecall\n", false);
+    }
+
+    /**
+     * Scores a run and adds its row to the table.
+     * @param run sweep run, its position in the sweep is its row
+     * @param results reviews found for each query, in query order
+     * @return mean metrics of the run
+     */
+    public RetrievalMetrics add(ParameterSweep.Run run, List<List<Review>> results) {
+        List<RetrievalMetrics> queries = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            queries.add(RetrievalMetrics.evaluate(results.get(i), judgments.get(i), k));
+        }
+        RetrievalMetrics metrics = RetrievalMetrics.mean(queries);
+
+        // the header is record 0
+        out.write(filename, run.getIndex() + 1, String.format("%s\t%.4f\t%.4f\t%.4f\t%.4f%n", run.getName(),
+                metrics.getAveragePrecision(), metrics.getPrecision(), metrics.getNdcg(), metrics.getRecall()), false);
+        return metrics;
+    }
+}
@@ -0,0 +1,203 @@
+package evaluation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import models.Review;
+import searching.QueryPool;
+import searching.QueryRunner;
+
+/**
+ * Runs the same queries with many search configurations, such as a grid of
+ * Rocchio parameters. Every search of the sweep runs concurrently as one batch,
+ * so the intermediate results of each query and r, and the term scores of each
+ * intermediate result, are worked out once and shared by every alpha and beta.
+ * Each configuration is handed over as soon as all of its queries are done.
+ */
+public class ParameterSweep {
+
+    private final QueryRunner qRunner;
+    private final String[] queries;
+    private final String field;
+    private final int n;
+    private final boolean filtered;
+    private final List<Run> runs = new ArrayList<>();
+
+    /**
+     *
+     * @param qRunner QueryRunner to search with
+     * @param queries query text of each query, query numbers start at 1
+     * @param field field to run queries on
+     * @param n number of results of each search
+     * @param filtered true: search in filtered reviews, false: search in unfiltered reviews
+     */
+    public ParameterSweep(QueryRunner qRunner, String[] queries, String field, int n, boolean filtered) {
+        this.qRunner = qRunner;
+        this.queries = queries;
+        this.field = field;
+        this.n = n;
+        this.filtered = filtered;
+    }
+
+    /**
+     * Adds a simple search run.
+     * @param name name of the run
+     */
+    public void addSimple(String name) {
+        runs.add(new Run(runs.size(), name, null, false));
+    }
+
+    /**
+     * Adds a PRF run.
+     * @param name name of the run
+     * @param x number of terms to add from each intermediate result
+     */
+    public void addPrf(String name, int x) {
+        QueryRunner.RocchioConfig config = new QueryRunner.RocchioConfig();
+        config.setX(x);
+        runs.add(new Run(runs.size(), name, config, false));
+    }
+
+    /**
+     * Adds a Rocchio run.
+     * @param name name of the run
+     * @param r number of intermediate results
+     * @param alpha weight of the original query
+     * @param beta weight of the intermediate results
+     * @param fromBooks true: use book subject search and reviews of those books for expansion
+     */
+    public void addRocchio(String name, int r, float alpha, float beta, boolean fromBooks) {
+        QueryRunner.RocchioConfig config = new QueryRunner.RocchioConfig();
+        // x = -1 means do Rocchio search
+        config.setX(-1);
+        config.setR(r);
+        config.setAlpha(alpha);
+        config.setBeta(beta);
+        runs.add(new Run(runs.size(), name, config, fromBooks));
+    }
+
+    /**
+     * Adds an adaptive run of a PRF or Rocchio configuration, which decides
+     * for each query whether to expand it, to compare with the same
+     * configuration always expanding.
+     * @param name name of the run
+     * @param x number of terms to add from each intermediate result, -1 for Rocchio
+     * @param r number of intermediate results
+     * @param alpha weight of the original query
+     * @param beta weight of the intermediate results
+     */
+    public void addAdaptive(String name, int x, int r, float alpha, float beta) {
+        QueryRunner.RocchioConfig config = new QueryRunner.RocchioConfig();
+        config.setX(x);
+        config.setR(r);
+        config.setAlpha(alpha);
+        config.setBeta(beta);
+        config.setAdaptive(true);
+        runs.add(new Run(runs.size(), name, config, false));
+    }
+
+    /**
+     * Runs every search of the sweep and waits for them to finish. The handler
+     * is called once per run, from the thread that finished its last query, so
+     * runs can be handled at the same time.
+     * @param handler receives the results of each run
+     */
+    public void run(final RunHandler handler) {
+        ExecutorService pool = Executors.newFixedThreadPool(EvaluationConstants.SWEEP_THREADS,
+                QueryPool.daemonThreads("sweep"));
+        QueryRunner.BatchCache cache = new QueryRunner.BatchCache();
+        List<CompletableFuture<Void>> handled = new ArrayList<>();
+        try {
+            // runs were added in grid order, so the searches sharing intermediate
+            // results are queued next to each other
+            for (final Run run : runs) {
+                final List<CompletableFuture<List<Review>>> results = new ArrayList<>();
+                for (String query : queries) {
+                    final QueryRunner.BatchQuery batchQuery = new QueryRunner.BatchQuery(query, field, n,
+                            run.config, filtered, run.fromBooks);
+                    results.add(CompletableFuture.supplyAsync(() -> qRunner.executeBatchQuery(batchQuery, cache), pool));
+                }
+                handled.add(CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[results.size()]))
+                        .thenRun(() -> {
+                            List<List<Review>> runResults = new ArrayList<>();
+                            for (CompletableFuture<List<Review>> result : results) {
+                                runResults.add(result.join());
+                            }
+                            handler.handleRun(run, runResults);
+                        }));
+            }
+
+            for (int i = 0; i < handled.size(); i++) {
+                try {
+                    handled.get(i).join();
+                } catch (RuntimeException ex) {
+                    System.err.println("Error in sweep run " + runs.get(i).name + ": " + ex.getMessage());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return runs of the sweep in the order they were added
+     */
+    public List<Run> getRuns() {
+        return Collections.unmodifiableList(runs);
+    }
+
+    /**
+     * Receives the results of a run once all of its queries are done.
+     */
+    public interface RunHandler {
+
+        /**
+         * @param run finished run
+         * @param results reviews found for each query, in query order
+         */
+        void handleRun(Run run, List<List<Review>> results);
+    }
+
+    /**
+     * One search configuration of a sweep.
+     */
+    public static class Run {
+
+        private final int index;
+        private final String name;
+        private final QueryRunner.RocchioConfig config;
+        private final boolean fromBooks;
+
+        private Run(int index, String name, QueryRunner.RocchioConfig config, boolean fromBooks) {
+            this.index = index;
+            this.name = name;
+            this.config = config;
+            this.fromBooks = fromBooks;
+        }
+
+        /**
+         * @return position of the run in the sweep, from 0
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return rocchio configuration, null for a simple search
+         */
+        public QueryRunner.RocchioConfig getConfig() {
+            return config;
+        }
+
+        public boolean isFromBooks() {
+            return fromBooks;
+        }
+    }
+}
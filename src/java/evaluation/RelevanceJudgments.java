@@ -0,0 +1,45 @@
+package evaluation;
+
+import java.util.Set;
+import models.Review;
+import searching.QueryRunner;
+
+/**
+ * Relevance of reviews to a subject query. A review is relevant when its book
+ * has a subject matching the query, as QueryRunner.checkSubject judges it. The
+ * matching books are looked up once, so judging a review is a set lookup
+ * rather than a book search.
+ */
+public class RelevanceJudgments {
+
+    // ASINs of the books with a matching subject
+    private final Set<String> asins;
+    // number of relevant reviews in the searched reviews
+    private final int relevantCount;
+
+    /**
+     *
+     * @param qRunner QueryRunner to search the books and reviews with
+     * @param query subject query text
+     * @param filtered true: judging filtered reviews, false: judging unfiltered reviews
+     */
+    public RelevanceJudgments(QueryRunner qRunner, String query, boolean filtered) {
+        asins = qRunner.subjectAsins(query);
+        relevantCount = qRunner.countReviews(asins, filtered);
+    }
+
+    /**
+     * @param review review to judge
+     * @return true if the review's book has a matching subject
+     */
+    public boolean isRelevant(Review review) {
+        return review.getAsin() != null && asins.contains(review.getAsin().trim());
+    }
+
+    /**
+     * @return number of relevant reviews in the searched reviews
+     */
+    public int getRelevantCount() {
+        return relevantCount;
+    }
+}
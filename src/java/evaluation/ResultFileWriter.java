@@ -0,0 +1,232 @@
+package evaluation;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import searching.QueryPool;
+
+/**
+ * Writes the output files of an evaluation from one thread. Sweep workers
+ * queue records and carry on, the writer thread takes them off the queue in
+ * batches and keeps one buffered writer open per file until the file is
+ * complete. Records of a file are numbered from 0 and written in that order,
+ * whichever order they arrive in, so the files come out the same on every run.
+ * If the writer thread stops early, the files it has open are closed and
+ * every later write and the close fail with the reason it stopped, instead of
+ * waiting on a queue nothing takes from.
+ */
+public class ResultFileWriter implements Closeable {
+
+    // queued after the last record, stops the writer thread
+    private static final Record END = new Record(null, -1, null, false);
+
+    private final BlockingQueue<Record> queue = new LinkedBlockingQueue<>(EvaluationConstants.WRITE_QUEUE_DEPTH);
+    // files being written, only used by the writer thread
+    private final Map<String, OutputFile> files = new HashMap<>();
+    private final Thread thread;
+    // why the writer thread stopped before the end, null while it runs or if it finished
+    private volatile Throwable failure;
+
+    /**
+     * Starts the writer thread.
+     */
+    public ResultFileWriter() {
+        thread = QueryPool.daemonThreads("result-writer").newThread(this::drain);
+        thread.start();
+    }
+
+    /**
+     * Queues a record, waiting while the queue is full.
+     * @param filename file to write to, replaced if it exists
+     * @param number position of the record in the file, from 0
+     * @param text text to write
+     * @param last true if this is the last record of the file, so it can be
+     * closed once every record before it is written
+     * @throws IllegalStateException if the writer thread has stopped
+     */
+    public void write(String filename, int number, String text, boolean last) {
+        try {
+            enqueue(new Record(filename, number, text, last));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            System.err.println("Interrupted writing " + filename);
+        }
+    }
+
+    /**
+     * Writes every queued record and closes the files. Records still waiting
+     * for an earlier record that never came are written anyway, in order.
+     * @throws IllegalStateException if the writer thread stopped before the end
+     */
+    @Override
+    public void close() {
+        try {
+            enqueue(END);
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            System.err.println("Interrupted closing result files");
+        }
+        checkRunning();
+    }
+
+    /**
+     * Queues a record, waiting while the queue is full as long as the writer
+     * thread is running.
+     * @param record record to queue
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void enqueue(Record record) throws InterruptedException {
+        checkRunning();
+        while (!queue.offer(record, EvaluationConstants.WRITE_QUEUE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+            checkRunning();
+            if (!thread.isAlive()) {
+                throw new IllegalStateException("Result writer has stopped");
+            }
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if the writer thread stopped before the end
+     */
+    private void checkRunning() {
+        Throwable stopped = failure;
+        if (stopped != null) {
+            throw new IllegalStateException("Result writer stopped: " + stopped, stopped);
+        }
+    }
+
+    /**
+     * Writer thread loop.
+     */
+    private void drain() {
+        List<Record> batch = new ArrayList<>();
+        boolean open = true;
+        try {
+            while (open) {
+                batch.add(queue.take());
+                queue.drainTo(batch, EvaluationConstants.WRITE_BATCH_SIZE - 1);
+                for (Record record : batch) {
+                    if (record == END) {
+                        open = false;
+                    } else {
+                        accept(record);
+                    }
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException | RuntimeException | Error ex) {
+            failure = ex;
+            System.err.println("Result writer stopped: " + ex);
+        }
+
+        for (OutputFile file : files.values()) {
+            if (!file.pending.isEmpty()) {
+                System.err.println("Missing records in " + file.filename + " before " + file.pending.firstKey());
+            }
+            for (Record record : file.pending.values()) {
+                file.write(record);
+            }
+            file.close();
+        }
+        files.clear();
+    }
+
+    /**
+     * Writes a record, or holds it until the records before it are written.
+     * @param record record to write
+     */
+    private void accept(Record record) {
+        OutputFile file = files.get(record.filename);
+        if (file == null) {
+            file = new OutputFile(record.filename);
+            files.put(record.filename, file);
+        }
+        file.pending.put(record.number, record);
+
+        Record next;
+        while ((next = file.pending.remove(file.next)) != null) {
+            file.write(next);
+            ++file.next;
+            if (next.last) {
+                file.close();
+                files.remove(record.filename);
+                break;
+            }
+        }
+    }
+
+    /**
+     * One output file and the records waiting for their turn.
+     */
+    private static class OutputFile {
+
+        private final String filename;
+        private final TreeMap<Integer, Record> pending = new TreeMap<>();
+        // number of the next record to write
+        private int next;
+        // null once closed, or if it could not be opened
+        private BufferedWriter writer;
+
+        private OutputFile(String filename) {
+            this.filename = filename;
+            try {
+                writer = new BufferedWriter(new FileWriter(new File(filename)), EvaluationConstants.WRITE_BUFFER_SIZE);
+            } catch (IOException ex) {
+                System.err.println("Error opening results file: " + ex.getMessage());
+            }
+        }
+
+        private void write(Record record) {
+            if (writer == null) {
+                return;
+            }
+            try {
+                writer.write(record.text);
+            } catch (IOException ex) {
+                System.err.println("Error writing results file: " + ex.getMessage());
+                close();
+            }
+        }
+
+        private void close() {
+            if (writer == null) {
+                return;
+            }
+            try {
+                writer.close();
+            } catch (IOException ex) {
+                System.err.println("Error writing results file: " + ex.getMessage());
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Text queued for a file.
+     */
+    private static class Record {
+
+        private final String filename;
+        private final int number;
+        private final String text;
+        private final boolean last;
+
+        private Record(String filename, int number, String text, boolean last) {
+            this.filename = filename;
+            this.number = number;
+            this.text = text;
+            this.last = last;
+        }
+    }
+}
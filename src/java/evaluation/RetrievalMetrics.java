@@ -0,0 +1,116 @@
+package evaluation;
+
+import java.util.List;
+import models.Review;
+
+/**
+ * Retrieval quality of a ranked list of reviews, or the mean over the queries
+ * of a run. Relevance is binary, so nDCG gains are 1 for a relevant review and
+ * 0 otherwise. Average precision and recall are taken against every relevant
+ * review, not only the ones retrieved, the same as trec_eval with complete
+ * qrels.
+ */
+public class RetrievalMetrics {
+
+    private final double averagePrecision;
+    private final double precision;
+    private final double ndcg;
+    private final double recall;
+
+    private RetrievalMetrics(double averagePrecision, double precision, double ndcg, double recall) {
+        this.averagePrecision = averagePrecision;
+        this.precision = precision;
+        this.ndcg = ndcg;
+        this.recall = recall;
+    }
+
+    /**
+     * Scores the results of one query.
+     * @param results reviews found, in rank order
+     * @param judgments relevance judgments of the query
+     * @param k cut off for precision and nDCG
+     * @return metrics of the query
+     */
+    public static RetrievalMetrics evaluate(List<Review> results, RelevanceJudgments judgments, int k) {
+        int relevantCount = judgments.getRelevantCount();
+        int found = 0;
+        int foundAtK = 0;
+        double precisionSum = 0;
+        double dcg = 0;
+        for (int rank = 1; rank <= results.size(); rank++) {
+            if (!judgments.isRelevant(results.get(rank - 1))) {
+                continue;
+            }
+            ++found;
+            precisionSum += (double) found / rank;
+            if (rank <= k) {
+                ++foundAtK;
+                dcg += 1 / log2(rank + 1);
+            }
+        }
+
+        // best possible ranking puts every relevant review first
+        double idcg = 0;
+        for (int rank = 1; rank <= Math.min(k, relevantCount); rank++) {
+            idcg += 1 / log2(rank + 1);
+        }
+
+        return new RetrievalMetrics(
+                (relevantCount > 0) ? precisionSum / relevantCount : 0,
+                (k > 0) ? (double) foundAtK / k : 0,
+                (idcg > 0) ? dcg / idcg : 0,
+                (relevantCount > 0) ? (double) found / relevantCount : 0);
+    }
+
+    /**
+     * Averages the metrics of the queries of a run.
+     * @param queries metrics of each query
+     * @return mean of each metric, MAP for average precision
+     */
+    public static RetrievalMetrics mean(List<RetrievalMetrics> queries) {
+        double averagePrecision = 0;
+        double precision = 0;
+        double ndcg = 0;
+        double recall = 0;
+        for (RetrievalMetrics query : queries) {
+            averagePrecision += query.averagePrecision;
+            precision += query.precision;
+            ndcg += query.ndcg;
+            recall += query.recall;
+        }
+        int n = Math.max(1, queries.size());
+        return new RetrievalMetrics(averagePrecision / n, precision / n, ndcg / n, recall / n);
+    }
+
+    private static double log2(double x) {
+        return Math.log(x) / Math.log(2);
+    }
+
+    /**
+     * @return average precision, or MAP for a run
+     */
+    public double getAveragePrecision() {
+        return averagePrecision;
+    }
+
+    /**
+     * @return precision at k
+     */
+    public double getPrecision() {
+        return precision;
+    }
+
+    /**
+     * @return nDCG at k
+     */
+    public double getNdcg() {
+        return ndcg;
+    }
+
+    /**
+     * @return share of the relevant reviews that were found
+     */
+    public double getRecall() {
+        return recall;
+    }
+}
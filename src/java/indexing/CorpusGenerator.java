@@ -0,0 +1,374 @@
+package indexing;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates review and book data files in the formats IndexGenerator reads,
+ * for testing at any scale without the real data. The same seed and size
+ * always give the same files. Word use, review length, reviews per book and
+ * reviews per reviewer follow Zipf distributions like real reviews. Reviews
+ * of a book mention its subjects now and then, so subject searches and the
+ * evaluation find something, and some reviews are of books missing from the
+ * book data, like the real data. The review parts are generated in parallel,
+ * each from its own seed.
+ * Usage: CorpusGenerator directory reviews [seed] [reviews per part]
+ */
+public class CorpusGenerator {
+
+    // defaults for the command line
+    public final static long DEFAULT_SEED = 849;
+    public final static int DEFAULT_REVIEWS_PER_PART = 1000000;
+
+    // reviews per book and per reviewer, on average
+    public final static int REVIEWS_PER_BOOK = 10;
+    public final static int REVIEWS_PER_REVIEWER = 5;
+    public final static int MIN_BOOKS = 100;
+    // share of the reviewed ASINs with no book in the book data
+    public final static double UNKNOWN_BOOK_SHARE = 0.3;
+    // how fast popularity falls off for books and reviewers
+    public final static double POPULARITY_EXPONENT = 1.0;
+
+    // words in the vocabulary and how fast their use falls off
+    public final static int VOCABULARY = 50000;
+    public final static double WORD_EXPONENT = 1.07;
+    // review length in words, a long tail of long reviews
+    public final static int MIN_REVIEW_WORDS = 10;
+    public final static int MAX_REVIEW_WORDS = 1000;
+    public final static double LENGTH_EXPONENT = 1.0;
+    // share of a review's words taken from its book's subjects
+    public final static double SUBJECT_WORD_SHARE = 0.03;
+    // most subjects per book
+    public final static int MAX_SUBJECTS = 3;
+    // most words in a made up search
+    public final static int QUERY_WORDS = 3;
+
+    // most frequent words of the vocabulary, stop words among them like real text
+    private static final String[] COMMON_WORDS = {"the", "and", "a", "to", "of", "i", "is", "it", "this", "book",
+        "in", "that", "was", "for", "read", "with", "but", "you", "story", "not", "on", "as", "great", "good",
+        "characters", "author", "series", "one", "love", "like", "just", "time", "really", "first", "well",
+        "would", "written", "recommend", "more", "life", "ending", "plot", "enjoyed", "next", "world"};
+    // the rest of the vocabulary is made of syllables
+    private static final String[] SYLLABLES = {"ka", "lo", "mi", "nu", "ra", "te", "vo", "zi", "ba", "do",
+        "fu", "gi", "ho", "ju", "pa", "ri"};
+    // subjects by popularity, the queries of CommandLineUI.doTests among them
+    private static final String[] SUBJECTS = {"romance", "mystery", "science fiction", "fantasy", "history",
+        "cooking", "politics", "biography", "thriller", "health", "religion", "poetry", "travel", "business",
+        "horror", "humor", "children", "art", "music", "sports"};
+    private static final String[] MONTHS = {"01", "02", "03", "04", "05", "06", "07", "08", "09", "10", "11", "12"};
+    private static final long FIRST_REVIEW_TIME = 946684800L;   // 1/1/2000
+    private static final long REVIEW_TIME_SPAN = 15L * 365 * 24 * 3600;
+    private static final long SPREAD_PRIME = 1000003;
+
+    private final long reviews;
+    private final long seed;
+    private final int reviewsPerPart;
+    private final int books;
+    private final int asins;
+    private final int reviewers;
+    private final ZipfSampler bookSampler;
+    private final ZipfSampler reviewerSampler;
+    private final ZipfSampler wordSampler = new ZipfSampler(VOCABULARY, WORD_EXPONENT);
+    private final ZipfSampler lengthSampler = new ZipfSampler(MAX_REVIEW_WORDS - MIN_REVIEW_WORDS + 1, LENGTH_EXPONENT);
+    private final ZipfSampler subjectSampler = new ZipfSampler(SUBJECTS.length, POPULARITY_EXPONENT);
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    /**
+     *
+     * @param reviews number of reviews
+     * @param seed seed of all the data
+     * @param reviewsPerPart reviews in each review file
+     */
+    public CorpusGenerator(long reviews, long seed, int reviewsPerPart) {
+        this.reviews = reviews;
+        this.seed = seed;
+        this.reviewsPerPart = reviewsPerPart;
+        books = (int) Math.min(Integer.MAX_VALUE / 2, Math.max(MIN_BOOKS, reviews / REVIEWS_PER_BOOK));
+        int asinCount = (int) Math.min(Integer.MAX_VALUE - 1, (long) (books / (1 - UNKNOWN_BOOK_SHARE)));
+        // ranks are spread over the ASINs by multiplying with a prime, which
+        // only reaches every ASIN if the prime does not divide their number
+        asins = (asinCount % SPREAD_PRIME == 0) ? asinCount + 1 : asinCount;
+        reviewers = (int) Math.min(Integer.MAX_VALUE, Math.max(1, reviews / REVIEWS_PER_REVIEWER));
+        bookSampler = new ZipfSampler(asins, POPULARITY_EXPONENT);
+        reviewerSampler = new ZipfSampler(reviewers, POPULARITY_EXPONENT);
+        // one review per line, nothing between them
+        jsonFactory.setRootValueSeparator(null);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: CorpusGenerator directory reviews [seed] [reviews per part]");
+            return;
+        }
+        File dir = new File(args[0]);
+        dir.mkdirs();
+        CorpusGenerator generator = new CorpusGenerator(Long.parseLong(args[1]),
+                (args.length > 2) ? Long.parseLong(args[2]) : DEFAULT_SEED,
+                (args.length > 3) ? Integer.parseInt(args[3]) : DEFAULT_REVIEWS_PER_PART);
+        long start = System.currentTimeMillis();
+        generator.generate(dir);
+        System.out.println("Generated " + generator.reviews + " reviews of " + generator.books + " books in "
+                + generator.getParts() + " parts in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Writes book_data.json and review_data_part_#.json, parts numbered from 0.
+     * @param dir directory to write the files to
+     * @throws IOException if a file could not be written
+     */
+    public void generate(final File dir) throws IOException {
+        try (Writer out = new BufferedWriter(new FileWriter(new File(dir, "book_data.json")))) {
+            writeBooks(out);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<Void>> parts = new ArrayList<>();
+            for (int part = 0; part < getParts(); part++) {
+                final int number = part;
+                parts.add(pool.submit(() -> {
+                    try (Writer out = new BufferedWriter(new FileWriter(new File(dir, "review_data_part_" + number + ".json")))) {
+                        writeReviews(out, number);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> part : parts) {
+                part.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Writes the book data, one JSON object per line.
+     * @param out where to write
+     * @throws IOException if writing fails
+     */
+    public void writeBooks(Writer out) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed);
+        JsonGenerator json = jsonFactory.createGenerator(out);
+        for (int book = 0; book < books; book++) {
+            json.writeStartObject();
+            json.writeArrayFieldStart("data");
+            json.writeStartObject();
+            json.writeArrayFieldStart("author_data");
+            json.writeStartObject();
+            json.writeStringField("name", name(reviewerSampler.sample(random)));
+            json.writeEndObject();
+            json.writeEndArray();
+            json.writeStringField("title_latin", words(random, 1 + random.nextInt(6)));
+            json.writeArrayFieldStart("subject_ids");
+            for (String subject : subjects(book)) {
+                json.writeString(subject.replace(' ', '_'));
+            }
+            json.writeEndArray();
+            json.writeStringField("isbn10", asin(book));
+            json.writeEndObject();
+            json.writeEndArray();
+            json.writeEndObject();
+            json.writeRaw('\n');
+        }
+        json.flush();
+    }
+
+    /**
+     * Writes one part of the reviews, one JSON object per line.
+     * @param out where to write
+     * @param part part number, from 0
+     * @throws IOException if writing fails
+     */
+    public void writeReviews(Writer out, int part) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + part + 1);
+        JsonGenerator json = jsonFactory.createGenerator(out);
+        long end = Math.min(reviews, (long) (part + 1) * reviewsPerPart);
+        for (long review = (long) part * reviewsPerPart; review < end; review++) {
+            // popular ASINs are spread over known and unknown books
+            int book = (int) (((long) bookSampler.sample(random) * SPREAD_PRIME) % asins);
+            int reviewer = reviewerSampler.sample(random);
+            long time = FIRST_REVIEW_TIME + random.nextLong(REVIEW_TIME_SPAN);
+            int total = (random.nextInt(4) == 0) ? random.nextInt(20) : 0;
+
+            json.writeStartObject();
+            json.writeStringField(IndexConstants.REVIEWER_ID, "A" + Integer.toString(reviewer, 36).toUpperCase());
+            json.writeStringField(IndexConstants.ASIN, asin(book));
+            json.writeStringField(IndexConstants.REVIEWER_NAME, name(reviewer));
+            json.writeArrayFieldStart("helpful");
+            json.writeNumber((total > 0) ? random.nextInt(total + 1) : 0);
+            json.writeNumber(total);
+            json.writeEndArray();
+            json.writeStringField(IndexConstants.TEXT, reviewText(random, book));
+            json.writeNumberField(IndexConstants.RATING, rating(random));
+            json.writeStringField(IndexConstants.SUMMARY, words(random, 1 + random.nextInt(8)));
+            json.writeNumberField(IndexConstants.UNIX_TIME, time);
+            json.writeStringField("reviewTime", reviewTime(time));
+            json.writeEndObject();
+            json.writeRaw('\n');
+        }
+        json.flush();
+    }
+
+    /**
+     * Makes up a search like users type: a subject, a subject and a word, or
+     * a few words, popular ones most often.
+     * @param random source of the search
+     * @return search text
+     */
+    public String query(SplittableRandom random) {
+        int kind = random.nextInt(3);
+        if (kind == 2) {
+            return words(random, 1 + random.nextInt(QUERY_WORDS));
+        }
+        String subject = SUBJECTS[subjectSampler.sample(random) - 1];
+        return (kind == 0) ? subject : subject + " " + words(random, 1);
+    }
+
+    /**
+     * @return number of review parts
+     */
+    public int getParts() {
+        return (int) ((reviews + reviewsPerPart - 1) / reviewsPerPart);
+    }
+
+    /**
+     * @return number of books in the book data
+     */
+    public int getBooks() {
+        return books;
+    }
+
+    /**
+     * Picks the subjects of a book. They only depend on the book, so its
+     * reviews can use them without the books being kept in memory.
+     * @param book book number
+     * @return subjects, the most popular ones most often
+     */
+    private Set<String> subjects(int book) {
+        SplittableRandom random = new SplittableRandom(seed ^ (book * 0xC2B2AE3D27D4EB4FL));
+        int count = 1 + random.nextInt(MAX_SUBJECTS);
+        Set<String> subjects = new LinkedHashSet<>();
+        for (int i = 0; i < count; i++) {
+            subjects.add(SUBJECTS[subjectSampler.sample(random) - 1]);
+        }
+        return subjects;
+    }
+
+    /**
+     * Writes the text of a review. Reviews of a known book use the words of
+     * its subjects now and then.
+     * @param random source of the text
+     * @param book book number of the review's ASIN
+     * @return review text
+     */
+    private String reviewText(SplittableRandom random, int book) {
+        int length = MIN_REVIEW_WORDS - 1 + lengthSampler.sample(random);
+        String[] subjectWords = (book < books) ? String.join(" ", subjects(book)).split(" ") : new String[0];
+        StringBuilder text = new StringBuilder(length * 6);
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            if (subjectWords.length > 0 && random.nextDouble() < SUBJECT_WORD_SHARE) {
+                text.append(subjectWords[random.nextInt(subjectWords.length)]);
+            } else {
+                appendWord(text, wordSampler.sample(random));
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * @param random source of the words
+     * @param length number of words
+     * @return words of the vocabulary separated by spaces
+     */
+    private String words(SplittableRandom random, int length) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            appendWord(text, wordSampler.sample(random));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Appends the word of a vocabulary rank, a common word or made up of
+     * syllables by the digits of the rank.
+     * @param text text to append to
+     * @param rank rank from 1
+     */
+    private static void appendWord(StringBuilder text, int rank) {
+        if (rank <= COMMON_WORDS.length) {
+            text.append(COMMON_WORDS[rank - 1]);
+            return;
+        }
+        // at least two syllables, so made up words are not common words
+        int digits = rank - COMMON_WORDS.length + SYLLABLES.length;
+        while (digits > 0) {
+            text.append(SYLLABLES[digits % SYLLABLES.length]);
+            digits /= SYLLABLES.length;
+        }
+    }
+
+    /**
+     * @param random source of the rating
+     * @return rating from 1 to 5, mostly high like real reviews
+     */
+    private static double rating(SplittableRandom random) {
+        int roll = random.nextInt(100);
+        return (roll < 55) ? 5.0 : (roll < 80) ? 4.0 : (roll < 90) ? 3.0 : (roll < 95) ? 2.0 : 1.0;
+    }
+
+    /**
+     * @param time unix time of the review
+     * @return review date the way the review data writes it, like "05 1, 2014"
+     */
+    private static String reviewTime(long time) {
+        LocalDate date = LocalDate.ofEpochDay(time / (24 * 3600));
+        return MONTHS[date.getMonthValue() - 1] + " " + date.getDayOfMonth() + ", " + date.getYear();
+    }
+
+    /**
+     * @param book book number
+     * @return ten digit ASIN of the book
+     */
+    private static String asin(int book) {
+        String digits = Integer.toString(book);
+        StringBuilder asin = new StringBuilder(10);
+        for (int i = digits.length(); i < 10; i++) {
+            asin.append('0');
+        }
+        return asin.append(digits).toString();
+    }
+
+    /**
+     * @param person reviewer or author number
+     * @return name of the person
+     */
+    private static String name(int person) {
+        return "Person " + person;
+    }
+}
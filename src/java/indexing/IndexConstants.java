@@ -27,8 +27,20 @@ public class IndexConstants {
     public final static String SUBJECT = "subject";
     public final static String PUBLISHER = "publisher";
     
+    // number of shard directories review indexes are split into. With more than
+    // one, each shard is a "shard-#" directory inside the index location.
+    public final static int REVIEW_SHARDS = 1;
+    
+    // seconds between progress lines while indexing reviews
+    public final static int INGEST_PROGRESS_SECONDS = 10;
+    // lines read between samples of the index writers' RAM use
+    public final static int INGEST_SAMPLE_LINES = 1000;
+    // parse failures reported with their line number, the rest are only counted
+    public final static int INGEST_REPORTED_FAILURES = 100;
+    // file the JSON summary of each review indexing run is appended to, empty for none
+    public final static String INGEST_LOG = "ingest_summary.log";
+    
     // THIS SHOULD BE A VALID LOCATION ON YOUR SYSTEM
     public final static String INDEX_LOCATION = "C:\\Users\\LowellStandard\\Documents\\849\\Term Project\\SearchEngine 4\\index";
     public final static String BOOK_INDEX_LOCATION = "C:\\Users\\LowellStandard\\Documents\\849\\Term Project\\SearchEngine 4\\bookIndex";
-    public final static String FILTERED_INDEX_LOCATION = "C:\\Users\\LowellStandard\\Documents\\849\\Term Project\\SearchEngine 4\\filteredIndex";
 }
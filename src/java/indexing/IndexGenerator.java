@@ -12,14 +12,19 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.Iterator;
 import org.apache.lucene.analysis.en.EnglishAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.FloatDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.DirectoryReader;
@@ -34,6 +39,7 @@ import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.similarities.BM25Similarity;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 
 /**
  * This class can create an inverted index given a documents file where each
@@ -46,6 +52,18 @@ public class IndexGenerator {
 
     private final File documentsFile;       // The documents source file
 
+    // field type for review text
+    // need the term vectors for Rocchio and PRF
+    private static final FieldType REVIEW_FIELD_TYPE = new FieldType();
+
+    static {
+        REVIEW_FIELD_TYPE.setStoreTermVectors(true);
+        REVIEW_FIELD_TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
+        REVIEW_FIELD_TYPE.setTokenized(true);
+        REVIEW_FIELD_TYPE.setStored(true);
+        REVIEW_FIELD_TYPE.freeze();
+    }
+
     /**
      * Nothing special here. Just setting the documents file.
      *
@@ -58,11 +76,19 @@ public class IndexGenerator {
     /**
      * Creates an index using Lucene. If filter = true, create a filtered index using
      * the books index. The books index must already exist for this to work.
+     * With more than one review shard the reviews are spread over shard
+     * directories inside indexFile. Lines that cannot be parsed are skipped
+     * and counted. Progress is printed as the reviews are read, and a JSON
+     * summary of the run at the end.
      *
      * @param indexFile reference to the directory
      * @param filter create a filtered index or not
+     * @return counts and times of the run
      */
-    public void createIndex(File indexFile, boolean filter) {
+    public IngestStats createIndex(File indexFile, boolean filter) {
+        IngestStats stats = new IngestStats(documentsFile);
+        BufferedReader reader = null;
+        IndexWriter[] writers = new IndexWriter[IndexConstants.REVIEW_SHARDS];
 
         try {
             // searcher for the book index
@@ -77,86 +103,193 @@ public class IndexGenerator {
                 searcher.setSimilarity(new BM25Similarity());
             }
             
-            // open documents file
-            BufferedReader reader = new BufferedReader(new FileReader(documentsFile));
+            // open documents file, counting the bytes read
+            reader = new BufferedReader(new InputStreamReader(stats.count(new FileInputStream(documentsFile))));
             JsonFactory jsonFactory = new JsonFactory();
 
-            // creating index writer
-            Directory dir = FSDirectory.open(indexFile.toPath());
-            IndexWriterConfig config = new IndexWriterConfig(new EnglishAnalyzer()); // use english analyzer for stemming and stopwords
-            config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND); // append if the index exists
-            config.setSimilarity(new BM25Similarity()); // use BM25 similarity
-            IndexWriter writer = new IndexWriter(dir, config);
+            // creating index writers, one per shard
+            double ramBufferMB = 0;
+            for (int i = 0; i < writers.length; i++) {
+                File shardFile = (writers.length == 1) ? indexFile : shardDirectory(indexFile, i);
+                Directory dir = FSDirectory.open(shardFile.toPath());
+                IndexWriterConfig config = new IndexWriterConfig(new EnglishAnalyzer()); // use english analyzer for stemming and stopwords
+                config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND); // append if the index exists
+                config.setSimilarity(new BM25Similarity()); // use BM25 similarity
+                config.setInfoStream(stats.flushTimer()); // time segment flushes
+                config.setMergeScheduler(stats.mergeTimer()); // time merges
+                ramBufferMB += config.getRAMBufferSizeMB();
+                writers[i] = new IndexWriter(dir, config);
+            }
+            stats.setRamBufferMB(ramBufferMB);
 
             String line;
             
-            // create new field type for review text
-            // need the term vectors for Rocchio and PRF
-            FieldType reviewFieldType = new FieldType();
-            reviewFieldType.setStoreTermVectors(true);
-            reviewFieldType.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
-            reviewFieldType.setTokenized(true);
-            reviewFieldType.setStored(true);
-            reviewFieldType.freeze();
-            
             // each line contains a JSON string
             // parse each json and create a document object to be added to the index
             while ((line = reader.readLine()) != null) {
-                JsonParser jsonParser = jsonFactory.createParser(line);
-                jsonParser.setCodec(new ObjectMapper());
-                Document doc = new Document();
-                while (!jsonParser.isClosed()) {
-                    jsonParser.nextToken();
-                    String fieldname = jsonParser.getCurrentName();
-                    if (fieldname != null) {
-                        switch (fieldname) {
-                            case IndexConstants.TEXT:
-                                jsonParser.nextToken();
-                                doc.add(new Field(IndexConstants.TEXT, jsonParser.getText(), reviewFieldType));
-                                break;
-                            case IndexConstants.ASIN:
-                                jsonParser.nextToken();
-                                doc.add(new StringField(IndexConstants.ASIN, jsonParser.getText(), Field.Store.YES));
-                                break;
-                            case IndexConstants.REVIEWER_ID:
-                                jsonParser.nextToken();
-                                doc.add(new StringField(IndexConstants.REVIEWER_ID, jsonParser.getText(), Field.Store.YES));
-                                break;
-                            case IndexConstants.SUMMARY:
-                                jsonParser.nextToken();
-                                doc.add(new TextField(IndexConstants.SUMMARY, jsonParser.getText(), Field.Store.YES));
-                                break;
-                            case IndexConstants.REVIEWER_NAME:
-                                jsonParser.nextToken();
-                                doc.add(new StringField(IndexConstants.REVIEWER_NAME, jsonParser.getText(), Field.Store.YES));
-                                break;
-                            default:
-                                break;
-                        }
-                    }
+                stats.lineRead();
+                Document doc;
+                try {
+                    doc = parseReview(line, jsonFactory);
+                } catch (IOException ex) {
+                    // one bad line does not stop the run
+                    stats.parseFailed(ex.getMessage());
+                    stats.progress(writers);
+                    continue;
                 }
                 
                 // if the filter is on
                 // attempt to find the ASIN in the books index
                 // if there are no results, do not add to index
                 if(filter) {
-                    String asin = doc.getField(IndexConstants.ASIN).stringValue();
-                    TopDocs topDocs = searcher.search(new TermQuery(new Term(IndexConstants.ASIN, asin)), 1);
-                    if(topDocs.totalHits > 0) {
-                        writer.addDocument(doc);
+                    String asin = doc.get(IndexConstants.ASIN);
+                    TopDocs topDocs = (asin == null) ? null : searcher.search(new TermQuery(new Term(IndexConstants.ASIN, asin)), 1);
+                    if(topDocs != null && topDocs.totalHits > 0) {
+                        addDocument(writers, doc, stats);
+                    } else {
+                        stats.filteredOut();
                     }
                 } else {
-                    writer.addDocument(doc);
+                    addDocument(writers, doc, stats);
                 }
+                stats.progress(writers);
             }
 
-            writer.commit();
-            writer.close();
+            stats.sampleRam(writers);
+            long commitStart = System.nanoTime();
+            for (IndexWriter writer : writers) {
+                writer.commit();
+                writer.close();
+            }
+            stats.committed(System.nanoTime() - commitStart);
         } catch (FileNotFoundException ex) {
             System.err.println("Could not find documents file: " + ex.getMessage());
+            stats.failed("Could not find documents file: " + ex.getMessage());
         } catch (IOException ex) {
             System.err.println("IO error: " + ex.getMessage());
+            stats.failed("IO error: " + ex.getMessage());
+        } catch (RuntimeException ex) {
+            System.err.println("Error while indexing: " + ex);
+            stats.failed("Error while indexing: " + ex);
+        } finally {
+            // writers still open did not commit, their changes are dropped
+            for (IndexWriter writer : writers) {
+                if (writer != null && writer.isOpen()) {
+                    try {
+                        writer.rollback();
+                    } catch (IOException ex) {
+                        System.err.println("IO error while closing index: " + ex.getMessage());
+                    }
+                }
+            }
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ex) {
+                    System.err.println("IO error while closing documents file: " + ex.getMessage());
+                }
+            }
+            stats.end();
+            stats.report(IndexConstants.INGEST_LOG);
         }
+        return stats;
+    }
+
+    /**
+     * Adds a review to its shard. A review the index writer refuses, such as
+     * one with a term too long to index, is counted as a line that could not
+     * be parsed.
+     *
+     * @param writers index writers, one per shard
+     * @param doc review document
+     * @param stats counts of the run
+     * @throws IOException if the index can not be written
+     */
+    private static void addDocument(IndexWriter[] writers, Document doc, IngestStats stats) throws IOException {
+        try {
+            writers[shardOf(doc, writers.length)].addDocument(doc);
+            stats.added();
+        } catch (IllegalArgumentException ex) {
+            stats.parseFailed(ex.getMessage());
+        }
+    }
+
+    /**
+     * Parses one line of a review file into a review document.
+     *
+     * @param line JSON object of one review
+     * @param jsonFactory factory for the JSON parser
+     * @return review document
+     * @throws IOException if the line is not JSON, or has a key more than once
+     */
+    public static Document parseReview(String line, JsonFactory jsonFactory) throws IOException {
+        JsonParser jsonParser = jsonFactory.createParser(line);
+        jsonParser.setCodec(new ObjectMapper());
+        // a second ASIN or rating would be a second value of a single valued doc values field
+        jsonParser.enable(JsonParser.Feature.STRICT_DUPLICATE_DETECTION);
+        Document doc = new Document();
+        while (!jsonParser.isClosed()) {
+            jsonParser.nextToken();
+            String fieldname = jsonParser.getCurrentName();
+            if (fieldname != null) {
+                switch (fieldname) {
+                    case IndexConstants.TEXT:
+                        jsonParser.nextToken();
+                        doc.add(new Field(IndexConstants.TEXT, jsonParser.getText(), REVIEW_FIELD_TYPE));
+                        break;
+                    case IndexConstants.ASIN:
+                        jsonParser.nextToken();
+                        doc.add(new StringField(IndexConstants.ASIN, jsonParser.getText(), Field.Store.YES));
+                        // per document ASIN for collapsing results to one review per book
+                        doc.add(new SortedDocValuesField(IndexConstants.ASIN, new BytesRef(jsonParser.getText())));
+                        break;
+                    case IndexConstants.REVIEWER_ID:
+                        jsonParser.nextToken();
+                        doc.add(new StringField(IndexConstants.REVIEWER_ID, jsonParser.getText(), Field.Store.YES));
+                        break;
+                    case IndexConstants.SUMMARY:
+                        jsonParser.nextToken();
+                        doc.add(new TextField(IndexConstants.SUMMARY, jsonParser.getText(), Field.Store.YES));
+                        break;
+                    case IndexConstants.REVIEWER_NAME:
+                        jsonParser.nextToken();
+                        doc.add(new StringField(IndexConstants.REVIEWER_NAME, jsonParser.getText(), Field.Store.YES));
+                        break;
+                    case IndexConstants.RATING:
+                        jsonParser.nextToken();
+                        // per document rating for facet counts
+                        doc.add(new FloatDocValuesField(IndexConstants.RATING, jsonParser.getFloatValue()));
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        return doc;
+    }
+
+    /**
+     * Returns the directory of one shard of a sharded review index.
+     *
+     * @param indexFile index directory holding the shards
+     * @param shard shard number
+     * @return shard directory
+     */
+    public static File shardDirectory(File indexFile, int shard) {
+        return new File(indexFile, "shard-" + shard);
+    }
+
+    /**
+     * Picks the shard for a review by hashing its ASIN and reviewer, so the same
+     * review always lands in the same shard and shards fill up evenly.
+     *
+     * @param doc review document
+     * @param shards number of shards
+     * @return shard number
+     */
+    private static int shardOf(Document doc, int shards) {
+        String key = doc.get(IndexConstants.ASIN) + '\t' + doc.get(IndexConstants.REVIEWER_ID);
+        return Math.floorMod(key.hashCode(), shards);
     }
 
     /**
@@ -201,6 +334,8 @@ public class IndexGenerator {
                 while(its.hasNext()) {
                     JsonNode subject = its.next();
                     subjects += subject.asText().replace('_', ' ') + '\n';
+                    // each subject on its own for facet counts
+                    doc.add(new SortedSetDocValuesField(IndexConstants.SUBJECT, new BytesRef(subject.asText().replace('_', ' '))));
                 }
                 doc.add(new TextField(IndexConstants.SUBJECT, subjects, Field.Store.YES));
                 
@@ -0,0 +1,319 @@
+package indexing;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MergeScheduler;
+import org.apache.lucene.util.InfoStream;
+
+/**
+ * Counts what one run of the review indexer did: lines and bytes read,
+ * reviews added, reviews left out by the book filter, lines that could not
+ * be parsed, and the time the index writers spent flushing segments and
+ * merging them. The indexer prints a progress line from these every
+ * IndexConstants.INGEST_PROGRESS_SECONDS and a JSON summary at the end.
+ * <p>
+ * Flushes are timed from the messages the writers log for them, merges by
+ * the merge scheduler handed to each writer. Merges run on their own
+ * threads, so those counts are striped.
+ */
+public class IngestStats {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    // start of the message a segment flush logs with its time
+    private static final String FLUSH_TIME = "flush time ";
+
+    private final File source;
+    private final long sourceBytes;
+    private final long start = System.nanoTime();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushMicros = new LongAdder();
+    private final LongAdder merges = new LongAdder();
+    private final LongAdder mergeNanos = new LongAdder();
+    private long lines;
+    private long docsAdded;
+    private long docsFiltered;
+    private long parseFailures;
+    // line numbers of the first parse failures
+    private final List<Long> failedLines = new ArrayList<>();
+    private double ramBufferMB;
+    private long ramBytes;
+    private long peakRamBytes;
+    private long commitNanos;
+    private long endNanos;
+    private String error;
+    // counts at the last progress line, for the rates since then
+    private long lastProgress = start;
+    private long lastBytes;
+    private long lastDocs;
+
+    /**
+     * @param source documents file being indexed
+     */
+    public IngestStats(File source) {
+        this.source = source;
+        sourceBytes = source.length();
+    }
+
+    /**
+     * Wraps the documents file stream so the bytes read are counted. Reads
+     * run ahead of the lines parsed by the size of the reader's buffer.
+     * @param in documents file stream
+     * @return counting stream
+     */
+    public InputStream count(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytes.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int n = super.read(buffer, offset, length);
+                if (n > 0) {
+                    bytes.add(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * @return info stream that times segment flushes, for one index writer
+     */
+    public InfoStream flushTimer() {
+        return new InfoStream() {
+            @Override
+            public void message(String component, String message) {
+                if (message.startsWith(FLUSH_TIME)) {
+                    try {
+                        double millis = Double.parseDouble(message.substring(FLUSH_TIME.length(), message.indexOf(' ', FLUSH_TIME.length())));
+                        flushes.increment();
+                        flushMicros.add((long) (millis * 1000));
+                    } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+                        // some other message, not a flush
+                    }
+                }
+            }
+
+            @Override
+            public boolean isEnabled(String component) {
+                // only the per segment messages, the writer's own are many more
+                return "DWPT".equals(component);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * @return merge scheduler that times merges, for one index writer
+     */
+    public MergeScheduler mergeTimer() {
+        return new ConcurrentMergeScheduler() {
+            @Override
+            protected void doMerge(IndexWriter writer, MergePolicy.OneMerge merge) throws IOException {
+                long mergeStart = System.nanoTime();
+                try {
+                    super.doMerge(writer, merge);
+                } finally {
+                    mergeNanos.add(System.nanoTime() - mergeStart);
+                    merges.increment();
+                }
+            }
+        };
+    }
+
+    public void lineRead() {
+        lines++;
+    }
+
+    public void added() {
+        docsAdded++;
+    }
+
+    public void filteredOut() {
+        docsFiltered++;
+    }
+
+    /**
+     * Counts a line that could not be parsed, reporting the first few.
+     * @param message why it could not be parsed
+     */
+    public void parseFailed(String message) {
+        parseFailures++;
+        if (failedLines.size() < IndexConstants.INGEST_REPORTED_FAILURES) {
+            failedLines.add(lines);
+            System.err.println("Could not parse line " + lines + " of " + source.getName() + ": " + message.replace('\n', ' '));
+        }
+    }
+
+    /**
+     * @param ramBufferMB RAM the writers buffer documents in before flushing, in total
+     */
+    public void setRamBufferMB(double ramBufferMB) {
+        this.ramBufferMB = ramBufferMB;
+    }
+
+    /**
+     * Samples the RAM the writers are using for buffered documents.
+     * @param writers index writers
+     */
+    public void sampleRam(IndexWriter[] writers) {
+        long used = 0;
+        for (IndexWriter writer : writers) {
+            used += writer.ramBytesUsed();
+        }
+        ramBytes = used;
+        peakRamBytes = Math.max(peakRamBytes, used);
+    }
+
+    /**
+     * @param nanos time taken committing and closing the writers
+     */
+    public void committed(long nanos) {
+        commitNanos = nanos;
+    }
+
+    /**
+     * Marks the run as stopped by an error.
+     * @param message what went wrong
+     */
+    public void failed(String message) {
+        error = message;
+    }
+
+    /**
+     * Stops the clock.
+     */
+    public void end() {
+        endNanos = System.nanoTime();
+    }
+
+    /**
+     * Called after each line. Every IndexConstants.INGEST_SAMPLE_LINES lines
+     * samples the writers' RAM use and prints a progress line if one is due.
+     * Rates are since the last progress line, so a stall shows up at once.
+     * @param writers index writers
+     */
+    public void progress(IndexWriter[] writers) {
+        if (lines % IndexConstants.INGEST_SAMPLE_LINES != 0) {
+            return;
+        }
+        sampleRam(writers);
+        long now = System.nanoTime();
+        if (now - lastProgress < IndexConstants.INGEST_PROGRESS_SECONDS * 1000000000L) {
+            return;
+        }
+        double seconds = (now - lastProgress) / 1e9;
+        long read = bytes.sum();
+        System.out.println(String.format("Indexed %.1f%%: %d lines, %d added, %d filtered, %d failed,"
+                + " %.1f MB/s, %.0f docs/s, RAM %.1f MB, flush %.1f s, merge %.1f s",
+                (sourceBytes > 0) ? 100.0 * read / sourceBytes : 0.0, lines, docsAdded, docsFiltered, parseFailures,
+                (read - lastBytes) / seconds / (1 << 20), (docsAdded - lastDocs) / seconds,
+                ramBytes / (double) (1 << 20), flushMicros.sum() / 1e6, mergeNanos.sum() / 1e9));
+        lastProgress = now;
+        lastBytes = read;
+        lastDocs = docsAdded;
+    }
+
+    /**
+     * @return summary of the run as one line of JSON
+     */
+    public String summary() {
+        long end = (endNanos == 0) ? System.nanoTime() : endNanos;
+        double seconds = (end - start) / 1e9;
+        ObjectNode json = MAPPER.createObjectNode();
+        json.put("source", source.getPath());
+        json.put("completed", error == null);
+        if (error != null) {
+            json.put("error", error);
+        }
+        json.put("seconds", seconds);
+        json.put("lines", lines);
+        json.put("bytes", bytes.sum());
+        json.put("docsAdded", docsAdded);
+        json.put("docsFiltered", docsFiltered);
+        json.put("parseFailures", parseFailures);
+        ArrayNode failed = json.putArray("failedLines");
+        for (long line : failedLines) {
+            failed.add(line);
+        }
+        json.put("bytesPerSecond", (seconds > 0) ? bytes.sum() / seconds : 0);
+        json.put("docsPerSecond", (seconds > 0) ? docsAdded / seconds : 0);
+        json.put("flushes", flushes.sum());
+        json.put("flushSeconds", flushMicros.sum() / 1e6);
+        json.put("merges", merges.sum());
+        json.put("mergeSeconds", mergeNanos.sum() / 1e9);
+        json.put("commitSeconds", commitNanos / 1e9);
+        json.put("ramBufferMB", ramBufferMB);
+        json.put("peakRamBytes", peakRamBytes);
+        try {
+            return MAPPER.writeValueAsString(json);
+        } catch (IOException ex) {
+            return "{}";
+        }
+    }
+
+    /**
+     * Prints the summary, and appends it to the ingest log if there is one.
+     * @param logPath file summaries are appended to, empty for none
+     */
+    public void report(String logPath) {
+        String line = summary();
+        System.out.println(line);
+        if (logPath == null || logPath.isEmpty()) {
+            return;
+        }
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(logPath, true), StandardCharsets.UTF_8)) {
+            out.write(line + "\n");
+        } catch (IOException ex) {
+            System.err.println("IO error while writing ingest log: " + ex.getMessage());
+        }
+    }
+
+    public long getLines() {
+        return lines;
+    }
+
+    public long getDocsAdded() {
+        return docsAdded;
+    }
+
+    public long getDocsFiltered() {
+        return docsFiltered;
+    }
+
+    public long getParseFailures() {
+        return parseFailures;
+    }
+
+    /**
+     * @return error that stopped the run, null if it completed
+     */
+    public String getError() {
+        return error;
+    }
+}
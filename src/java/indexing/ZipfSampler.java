@@ -0,0 +1,93 @@
+package indexing;
+
+import java.util.SplittableRandom;
+
+/**
+ * Draws ranks from a Zipf distribution, rank k having a chance proportional to
+ * 1 / k^exponent. Uses rejection-inversion sampling (Hormann and Derflinger),
+ * which takes constant time and no table however many ranks there are, so
+ * millions of books cost no more than a few hundred words.
+ */
+public class ZipfSampler {
+
+    private final int ranks;
+    private final double exponent;
+    private final double hIntegralX1;
+    private final double hIntegralRanks;
+    private final double s;
+
+    /**
+     *
+     * @param ranks number of ranks, at least 1
+     * @param exponent how fast the chance falls off with rank, more than 0
+     */
+    public ZipfSampler(int ranks, double exponent) {
+        this.ranks = ranks;
+        this.exponent = exponent;
+        hIntegralX1 = hIntegral(1.5) - 1;
+        hIntegralRanks = hIntegral(ranks + 0.5);
+        s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+    }
+
+    /**
+     * @param random source of randomness
+     * @return rank from 1 to the number of ranks
+     */
+    public int sample(SplittableRandom random) {
+        while (true) {
+            double u = hIntegralRanks + random.nextDouble() * (hIntegralX1 - hIntegralRanks);
+            double x = hIntegralInverse(u);
+            int k = (int) (x + 0.5);
+            if (k < 1) {
+                k = 1;
+            } else if (k > ranks) {
+                k = ranks;
+            }
+            if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+                return k;
+            }
+        }
+    }
+
+    /**
+     * @return number of ranks
+     */
+    public int getRanks() {
+        return ranks;
+    }
+
+    // integral of h, the continuous version of the chance of a rank
+    private double hIntegral(double x) {
+        double logX = Math.log(x);
+        return helper2((1 - exponent) * logX) * logX;
+    }
+
+    private double h(double x) {
+        return Math.exp(-exponent * Math.log(x));
+    }
+
+    private double hIntegralInverse(double x) {
+        double t = x * (1 - exponent);
+        if (t < -1) {
+            // rounding can take t just past -1
+            t = -1;
+        }
+        return Math.exp(helper1(t) * x);
+    }
+
+    // log(1 + x) / x, accurate near 0
+    private static double helper1(double x) {
+        if (Math.abs(x) > 1e-8) {
+            return Math.log1p(x) / x;
+        }
+        return 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+    }
+
+    // (exp(x) - 1) / x, accurate near 0
+    private static double helper2(double x) {
+        if (Math.abs(x) > 1e-8) {
+            return Math.expm1(x) / x;
+        }
+        return 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+    }
+}
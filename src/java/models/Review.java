@@ -6,6 +6,8 @@
  */
 package models;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 /**
  * Model for a Review.
  * @author Lowell Milliken
@@ -19,6 +21,8 @@ public class Review {
     private Book book;
     private int docId;
     private float score;
+    // number of reviews of the book found, only set when results are collapsed to one review per book
+    private Integer groupSize;
 
     public String getAsin() {
         return asin;
@@ -83,5 +87,13 @@ public class Review {
     public void setScore(float score) {
         this.score = score;
     }
-    
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Integer getGroupSize() {
+        return groupSize;
+    }
+
+    public void setGroupSize(Integer groupSize) {
+        this.groupSize = groupSize;
+    }
 }
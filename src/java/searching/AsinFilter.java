@@ -0,0 +1,304 @@
+package searching;
+
+import indexing.IndexConstants;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Keeps only the reviews whose ASIN is in the book index. This replaces the
+ * separate filtered index: the filtered reviews are a view over the review
+ * index in which every other review looks deleted. Which documents of a
+ * segment pass is worked out once and cached until the segment is closed, so
+ * reopening the review index only looks at new segments. A view scores with
+ * statistics of its own reviews, as a separate index would, see
+ * FilteredReader.
+ */
+public class AsinFilter {
+
+    // book index the ASINs were read from
+    private final IndexReader books;
+    // ASINs with at least one book
+    private final Set<BytesRef> asins = new HashSet<>();
+    // reviews that pass in each segment, by segment core
+    private final Map<Object, FixedBitSet> segments = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * @param books book index reader
+     * @throws IOException
+     */
+    public AsinFilter(IndexReader books) throws IOException {
+        this.books = books;
+        for (LeafReaderContext leaf : books.leaves()) {
+            Terms terms = leaf.reader().terms(IndexConstants.ASIN);
+            if (terms == null) {
+                continue;
+            }
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            TermsEnum termsEnum = terms.iterator();
+            PostingsEnum pe = null;
+            BytesRef asin;
+            while ((asin = termsEnum.next()) != null) {
+                pe = termsEnum.postings(pe, PostingsEnum.NONE);
+                // only books that are not deleted count
+                for (int doc = pe.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = pe.nextDoc()) {
+                    if (liveDocs == null || liveDocs.get(doc)) {
+                        asins.add(BytesRef.deepCopyOf(asin));
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return book index reader the filter was built from
+     */
+    public IndexReader getBooks() {
+        return books;
+    }
+
+    /**
+     * Creates a view of the reviews that only holds reviews of known books.
+     * The view keeps the review reader open until the view is closed.
+     * @param reviews review index reader
+     * @return filtered view
+     * @throws IOException
+     */
+    public FilteredReader wrap(IndexReader reviews) throws IOException {
+        List<LeafReaderContext> leaves = reviews.leaves();
+        LeafReader[] filtered = new LeafReader[leaves.size()];
+        for (int i = 0; i < filtered.length; i++) {
+            LeafReader leaf = leaves.get(i).reader();
+            filtered[i] = new FilteredLeafReader(leaf, passing(leaf));
+        }
+        return new FilteredReader(filtered, reviews, this);
+    }
+
+    /**
+     * Returns the documents of a segment whose ASIN has a book, from the cache
+     * if the segment was seen before.
+     * @param leaf segment reader
+     * @return passing documents, deleted or not
+     * @throws IOException
+     */
+    private FixedBitSet passing(LeafReader leaf) throws IOException {
+        Object key = leaf.getCoreCacheKey();
+        FixedBitSet bits = segments.get(key);
+        if (bits != null) {
+            return bits;
+        }
+
+        bits = new FixedBitSet(leaf.maxDoc());
+        Terms terms = leaf.terms(IndexConstants.ASIN);
+        if (terms != null) {
+            TermsEnum termsEnum = terms.iterator();
+            PostingsEnum pe = null;
+            BytesRef asin;
+            while ((asin = termsEnum.next()) != null) {
+                if (asins.contains(asin)) {
+                    pe = termsEnum.postings(pe, PostingsEnum.NONE);
+                    for (int doc = pe.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = pe.nextDoc()) {
+                        bits.set(doc);
+                    }
+                }
+            }
+        }
+
+        if (segments.putIfAbsent(key, bits) == null) {
+            leaf.addCoreClosedListener(segments::remove);
+        }
+        return bits;
+    }
+
+    /**
+     * @return number of segments with cached results
+     */
+    public int getCachedSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Filtered view over a review reader. Term and collection statistics of
+     * the segments still count every review, like they count deleted ones, so
+     * the view works out its own from the reviews that pass, for searchers to
+     * score with. Term statistics are counted from the postings the first time
+     * a term is looked up and cached for the life of the view, which is one
+     * generation of the review index. Field length totals are scaled by the
+     * share of reviews that pass, taking the average review length to be the
+     * same for the filtered reviews.
+     */
+    public static class FilteredReader extends MultiReader {
+
+        private final IndexReader reviews;
+        private final AsinFilter filter;
+        // statistics of the filtered reviews, by term and by field
+        private final QueryCache<Term, TermStatistics> termStatistics =
+                new QueryCache<>(SearchConstants.FILTERED_STATISTICS_MAX_TERMS, statistics -> 1);
+        private final Map<String, CollectionStatistics> collectionStatistics = new ConcurrentHashMap<>();
+
+        private FilteredReader(LeafReader[] filtered, final IndexReader reviews, AsinFilter filter) throws IOException {
+            super(filtered, true);
+            this.reviews = reviews;
+            this.filter = filter;
+            reviews.incRef();
+            addReaderClosedListener(reader -> reviews.decRef());
+        }
+
+        /**
+         * @return review reader the view is over
+         */
+        public IndexReader getReviews() {
+            return reviews;
+        }
+
+        /**
+         * @return filter the view applies
+         */
+        public AsinFilter getFilter() {
+            return filter;
+        }
+
+        /**
+         * Counts the filtered reviews containing a term.
+         * @param term term to count
+         * @return number of filtered reviews with the term
+         * @throws IOException
+         */
+        public int liveDocFreq(Term term) throws IOException {
+            return (int) termStatistics(term).docFreq();
+        }
+
+        /**
+         * Returns the statistics of a term over the filtered reviews.
+         * @param term term to look up
+         * @return number of filtered reviews with the term and its total frequency in them
+         * @throws IOException
+         */
+        public TermStatistics termStatistics(Term term) throws IOException {
+            TermStatistics statistics = termStatistics.get(term);
+            if (statistics != null) {
+                return statistics;
+            }
+            long docFreq = 0;
+            long totalTermFreq = 0;
+            for (LeafReaderContext leaf : leaves()) {
+                Bits liveDocs = leaf.reader().getLiveDocs();
+                PostingsEnum pe = leaf.reader().postings(term, PostingsEnum.FREQS);
+                if (pe == null) {
+                    continue;
+                }
+                for (int doc = pe.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = pe.nextDoc()) {
+                    if (liveDocs.get(doc)) {
+                        docFreq++;
+                        totalTermFreq += pe.freq();
+                    }
+                }
+            }
+            Term key = new Term(term.field(), BytesRef.deepCopyOf(term.bytes()));
+            statistics = new TermStatistics(key.bytes(), docFreq, totalTermFreq);
+            termStatistics.put(key, statistics);
+            return statistics;
+        }
+
+        /**
+         * Returns the statistics of a field over the filtered reviews.
+         * @param field field to look up
+         * @return number of filtered reviews with the field and their term totals
+         * @throws IOException
+         */
+        public CollectionStatistics collectionStatistics(String field) throws IOException {
+            CollectionStatistics statistics = collectionStatistics.get(field);
+            if (statistics != null) {
+                return statistics;
+            }
+            Terms terms = MultiFields.getTerms(this, field);
+            if (terms == null) {
+                statistics = new CollectionStatistics(field, maxDoc(), 0, 0, 0);
+            } else {
+                double share = (maxDoc() > 0) ? (double) numDocs() / maxDoc() : 0;
+                statistics = new CollectionStatistics(field, maxDoc(), scale(terms.getDocCount(), share),
+                        scale(terms.getSumTotalTermFreq(), share), scale(terms.getSumDocFreq(), share));
+            }
+            collectionStatistics.put(field, statistics);
+            return statistics;
+        }
+
+        // -1 stays -1, the statistic is not recorded for the field
+        private static long scale(long value, double share) {
+            return (value < 0) ? -1 : Math.round(value * share);
+        }
+    }
+
+    /**
+     * A segment in which reviews that do not pass look deleted. Closing it
+     * leaves the segment itself open, the review reader owns that.
+     */
+    private static class FilteredLeafReader extends FilterLeafReader {
+
+        private final Bits liveDocs;
+        private final int numDocs;
+
+        public FilteredLeafReader(LeafReader in, final FixedBitSet passing) {
+            super(in);
+            final Bits inLiveDocs = in.getLiveDocs();
+            if (inLiveDocs == null) {
+                liveDocs = passing;
+                numDocs = passing.cardinality();
+            } else {
+                liveDocs = new Bits() {
+                    @Override
+                    public boolean get(int index) {
+                        return passing.get(index) && inLiveDocs.get(index);
+                    }
+
+                    @Override
+                    public int length() {
+                        return passing.length();
+                    }
+                };
+                int count = 0;
+                for (int doc = 0; doc < passing.length(); doc++) {
+                    if (liveDocs.get(doc)) {
+                        count++;
+                    }
+                }
+                numDocs = count;
+            }
+        }
+
+        @Override
+        public Bits getLiveDocs() {
+            return liveDocs;
+        }
+
+        @Override
+        public int numDocs() {
+            return numDocs;
+        }
+
+        @Override
+        protected void doClose() {
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package searching;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import indexing.IndexConstants;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import models.Review;
+
+/**
+ * Takes a JSON array of searches, each with the same search, mode, count and
+ * base parameters as SearchServlet, and writes one JSON line per search in the
+ * same order. The searches run together as one QueryRunner batch.
+ */
+public class BatchSearchServlet extends HttpServlet {
+
+    /**
+     * Processes requests for HTTP <code>POST</code> methods.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    protected void processRequest(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        JsonNode body;
+        try {
+            body = SearchServlet.MAPPER.readTree(request.getInputStream());
+        } catch (JsonProcessingException ex) {
+            body = null;
+        }
+        if (body == null || !body.isArray() || body.size() == 0 || body.size() > SearchConstants.MAX_BATCH_QUERIES) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Expected a JSON array of 1 to " + SearchConstants.MAX_BATCH_QUERIES + " searches");
+            return;
+        }
+
+        final List<QueryRunner.BatchQuery> queries = new ArrayList<>();
+        for (JsonNode search : body) {
+            String mode = search.path("mode").asText("simple").toLowerCase();
+            String base = search.path("base").asText("");
+            queries.add(new QueryRunner.BatchQuery(search.path("search").asText(), IndexConstants.TEXT,
+                    search.path("count").asInt(10), SearchServlet.configFor(mode), false, base.equalsIgnoreCase("books")));
+        }
+
+        final List<CompletableFuture<List<Review>>> results = QueryRunner.getQueryRunner().executeBatch(queries);
+
+        // if no search got into the pools, shed the whole batch
+        boolean allRejected = true;
+        for (CompletableFuture<List<Review>> result : results) {
+            allRejected &= isRejected(result);
+        }
+        if (allRejected) {
+            SearchServlet.reject(response);
+            return;
+        }
+
+        response.setContentType("application/x-ndjson");
+        final LineStream lines = new LineStream(SearchServlet.MAPPER.getFactory()
+                .createGenerator(response.getOutputStream(), JsonEncoding.UTF8), results);
+
+        // write each line as soon as it and every line before it is ready
+        CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+        for (int i = 0; i < results.size(); i++) {
+            final int index = i;
+            final CompletableFuture<List<Review>> result = results.get(i);
+            written = written.thenCompose(nothing -> result.handle((reviews, error) -> {
+                try {
+                    lines.write(index, queries.get(index), reviews, error);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                return null;
+            }));
+        }
+
+        if (!request.isAsyncSupported()) {
+            written.handle((nothing, error) -> {
+                lines.end(error);
+                return null;
+            }).join();
+            return;
+        }
+
+        final AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(SearchConstants.REQUEST_TIMEOUT_MILLIS);
+        lines.resumeWith(asyncContext);
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                lines.stop();
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                lines.stop();
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        written.whenComplete((nothing, error) -> lines.end(error));
+    }
+
+    /**
+     * @param result future result of one search
+     * @return true if the search was turned away by a full pool
+     */
+    private boolean isRejected(CompletableFuture<List<Review>> result) {
+        if (!result.isCompletedExceptionally()) {
+            return false;
+        }
+        try {
+            result.join();
+            return false;
+        } catch (CompletionException ex) {
+            return ex.getCause() instanceof QueryRejectedException;
+        }
+    }
+
+    /**
+     * Lines of one batch response. Writing a line and ending the response
+     * exclude each other, so no line is written once a timeout or error has
+     * completed the request.
+     */
+    private static class LineStream {
+
+        private final JsonGenerator generator;
+        private final List<CompletableFuture<List<Review>>> results;
+        // null while the request runs on the container thread
+        private AsyncContext asyncContext;
+        // set when the response is finished or cut off, no more lines are written after
+        private boolean done;
+
+        private LineStream(JsonGenerator generator, List<CompletableFuture<List<Review>>> results) {
+            this.generator = generator;
+            this.results = results;
+            // lines are ended by hand
+            generator.setRootValueSeparator(null);
+        }
+
+        /**
+         * Hands over the async context to complete.
+         * @param asyncContext context the request was put in async mode with
+         */
+        private synchronized void resumeWith(AsyncContext asyncContext) {
+            this.asyncContext = asyncContext;
+        }
+
+        /**
+         * Writes the line for one search, unless the response is done.
+         *
+         * @param index position of the search in the batch
+         * @param query the search
+         * @param reviews reviews found, null if the search failed
+         * @param error reason the search failed, null if it did not
+         * @throws IOException if an I/O error occurs
+         */
+        private synchronized void write(int index, QueryRunner.BatchQuery query, List<Review> reviews,
+                Throwable error) throws IOException {
+            if (done) {
+                return;
+            }
+            generator.writeStartObject();
+            generator.writeNumberField("index", index);
+            generator.writeStringField("search", query.getText());
+            if (error == null) {
+                generator.writeArrayFieldStart("results");
+                for (Review review : reviews) {
+                    SearchServlet.MAPPER.writeValue(generator, review);
+                }
+                generator.writeEndArray();
+            } else {
+                Throwable cause = (error instanceof CompletionException) ? error.getCause() : error;
+                generator.writeStringField("error", (cause instanceof QueryRejectedException) ? "busy" : "failed");
+            }
+            generator.writeEndObject();
+            generator.writeRaw('\n');
+            // send each line as it is done
+            generator.flush();
+        }
+
+        /**
+         * Closes the response once every line is written. Does nothing if a
+         * timeout or error already completed it.
+         * @param error reason the lines could not all be written, null if they were
+         */
+        private synchronized void end(Throwable error) {
+            if (done) {
+                return;
+            }
+            done = true;
+            if (error != null) {
+                Throwable cause = (error instanceof CompletionException) ? error.getCause() : error;
+                System.err.println("IO Error while writing results: " + cause.getMessage());
+            }
+            try {
+                generator.close();
+            } catch (IOException ex) {
+                System.err.println("IO Error while writing results: " + ex.getMessage());
+            } finally {
+                if (asyncContext != null) {
+                    asyncContext.complete();
+                }
+            }
+        }
+
+        /**
+         * Cuts the response off on a timeout or error and cancels the searches
+         * not done yet, so the pools skip those not started. The lines
+         * already written stay.
+         */
+        private synchronized void stop() {
+            if (done) {
+                return;
+            }
+            done = true;
+            for (CompletableFuture<List<Review>> result : results) {
+                result.cancel(false);
+            }
+            if (asyncContext != null) {
+                asyncContext.complete();
+            }
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
+    /**
+     * Handles the HTTP <code>POST</code> method.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        processRequest(request, response);
+    }
+
+    /**
+     * Returns a short description of the servlet.
+     *
+     * @return a String containing servlet description
+     */
+    @Override
+    public String getServletInfo() {
+        return "Runs a batch of searches";
+    }// </editor-fold>
+
+}
@@ -0,0 +1,96 @@
+package searching;
+
+import indexing.IndexConstants;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * The subjects of each book, by ASIN, read from the subject doc values of the
+ * book index. Reviews only know their ASIN, so review counts by subject are
+ * worked out from review counts by ASIN. Built once per book reader.
+ */
+public class BookSubjects {
+
+    // book index the subjects were read from
+    private final IndexReader books;
+    // subjects of each ASIN, a book listed twice has the subjects of both
+    private final Map<BytesRef, String[]> subjects = new HashMap<>();
+
+    /**
+     *
+     * @param books book index reader
+     * @throws IOException
+     */
+    public BookSubjects(IndexReader books) throws IOException {
+        this.books = books;
+        for (LeafReaderContext leaf : books.leaves()) {
+            Terms terms = leaf.reader().terms(IndexConstants.ASIN);
+            if (terms == null) {
+                continue;
+            }
+            SortedSetDocValues values = DocValues.getSortedSet(leaf.reader(), IndexConstants.SUBJECT);
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            TermsEnum termsEnum = terms.iterator();
+            PostingsEnum pe = null;
+            BytesRef asin;
+            while ((asin = termsEnum.next()) != null) {
+                pe = termsEnum.postings(pe, PostingsEnum.NONE);
+                for (int doc = pe.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = pe.nextDoc()) {
+                    if (liveDocs == null || liveDocs.get(doc)) {
+                        add(BytesRef.deepCopyOf(asin), values, doc);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the subjects of one book.
+     * @param asin ASIN of the book
+     * @param values subject doc values of the book's segment
+     * @param doc book document in the segment
+     */
+    private void add(BytesRef asin, SortedSetDocValues values, int doc) {
+        Set<String> all = new LinkedHashSet<>();
+        String[] known = subjects.get(asin);
+        if (known != null) {
+            all.addAll(Arrays.asList(known));
+        }
+        values.setDocument(doc);
+        for (long ord = values.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = values.nextOrd()) {
+            all.add(values.lookupOrd(ord).utf8ToString());
+        }
+        if (!all.isEmpty()) {
+            subjects.put(asin, all.toArray(new String[all.size()]));
+        }
+    }
+
+    /**
+     * @return book index reader the subjects were read from
+     */
+    public IndexReader getBooks() {
+        return books;
+    }
+
+    /**
+     * @param asin ASIN of a book
+     * @return subjects of the book, null if it has none or is not in the book index
+     */
+    public String[] get(BytesRef asin) {
+        return subjects.get(asin);
+    }
+}
@@ -0,0 +1,276 @@
+package searching;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Collects the best scoring document of each value of a sorted doc values
+ * field, and optionally how many documents matched with that value, in one
+ * pass over the hits. Used to keep one review per book. Documents without a
+ * value are not collapsed, each one stands on its own, and segments without
+ * the field are collected as a plain top hits search. Works with searchers
+ * that search slices in parallel, each slice gets its own collector.
+ * <p>
+ * Each collector keeps only its top n groups in a heap, so a hit is only
+ * looked up when it would make the top n. The best document of a group in the
+ * overall top n is always in the top n of its own slice, so merging the slices
+ * gives the same groups as keeping them all. Group sizes are counted from the
+ * value ordinal of every hit, kept only when counts are asked for, and only
+ * for the groups that make the top n.
+ */
+public class CollapsingCollectorManager implements CollectorManager<CollapsingCollectorManager.GroupCollector, GroupScoreDoc[]> {
+
+    // best first, ties go to the lower document like a plain top hits search
+    private static final Comparator<ScoreDoc> BEST_FIRST = (a, b) -> {
+        int byScore = Float.compare(b.score, a.score);
+        return (byScore != 0) ? byScore : Integer.compare(a.doc, b.doc);
+    };
+
+    private final String field;
+    private final int n;
+    private final boolean countGroups;
+
+    /**
+     *
+     * @param field sorted doc values field to collapse on
+     * @param n number of groups to return
+     * @param countGroups whether to count the hits of each group returned
+     */
+    public CollapsingCollectorManager(String field, int n, boolean countGroups) {
+        this.field = field;
+        this.n = n;
+        this.countGroups = countGroups;
+    }
+
+    @Override
+    public GroupCollector newCollector() {
+        return new GroupCollector(field, n, countGroups);
+    }
+
+    /**
+     * Merges the groups of every collector and keeps the top n.
+     * @param collectors collectors of the search
+     * @return best document of each of the top groups, in order
+     * @throws IOException if a group can not be counted
+     */
+    @Override
+    public GroupScoreDoc[] reduce(Collection<GroupCollector> collectors) throws IOException {
+        Map<BytesRef, Group> groups = new HashMap<>();
+        List<GroupScoreDoc> singles = new ArrayList<>();
+        for (GroupCollector collector : collectors) {
+            for (Group group : collector.top) {
+                Group merged = groups.putIfAbsent(group.value, group);
+                if (merged != null && BEST_FIRST.compare(group, merged) < 0) {
+                    merged.doc = group.doc;
+                    merged.score = group.score;
+                }
+            }
+            for (ScoreDoc single : collector.singles.topDocs().scoreDocs) {
+                singles.add(new GroupScoreDoc(single.doc, single.score));
+            }
+        }
+
+        // keep the n best in a heap with the worst of them on top
+        PriorityQueue<GroupScoreDoc> top = new PriorityQueue<>(Math.max(1, n), BEST_FIRST.reversed());
+        for (Collection<? extends GroupScoreDoc> candidates : Arrays.asList(groups.values(), singles)) {
+            for (GroupScoreDoc group : candidates) {
+                if (top.size() < n) {
+                    top.add(group);
+                } else if (n > 0 && BEST_FIRST.compare(group, top.peek()) < 0) {
+                    top.poll();
+                    top.add(group);
+                }
+            }
+        }
+
+        GroupScoreDoc[] results = new GroupScoreDoc[top.size()];
+        for (int i = results.length - 1; i >= 0; i--) {
+            results[i] = top.poll();
+        }
+        if (countGroups) {
+            for (GroupScoreDoc result : results) {
+                if (result instanceof Group) {
+                    result.groupSize = count(collectors, ((Group) result).value);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Counts the hits of one group over every segment.
+     * @param collectors collectors of the search
+     * @param value value of the group
+     * @return number of hits with the value
+     */
+    private static int count(Collection<GroupCollector> collectors, BytesRef value) {
+        int count = 0;
+        for (GroupCollector collector : collectors) {
+            for (SegmentOrds segment : collector.segments) {
+                int ord = segment.values.lookupTerm(value);
+                if (ord >= 0) {
+                    count += segment.count(ord);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Best document of a group with the value it was collapsed on.
+     */
+    private static class Group extends GroupScoreDoc {
+
+        private final BytesRef value;
+
+        private Group(BytesRef value, int doc, float score) {
+            super(doc, score);
+            this.value = value;
+        }
+    }
+
+    /**
+     * Value ordinal of each hit of one segment, sorted before counting.
+     */
+    private static class SegmentOrds {
+
+        private final SortedDocValues values;
+        private int[] ords = new int[16];
+        private int size;
+        private boolean sorted;
+
+        private SegmentOrds(SortedDocValues values) {
+            this.values = values;
+        }
+
+        private void add(int ord) {
+            if (size == ords.length) {
+                ords = ArrayUtil.grow(ords, size + 1);
+            }
+            ords[size++] = ord;
+        }
+
+        private int count(int ord) {
+            if (!sorted) {
+                Arrays.sort(ords, 0, size);
+                sorted = true;
+            }
+            int first = Arrays.binarySearch(ords, 0, size, ord);
+            if (first < 0) {
+                return 0;
+            }
+            int from = first;
+            while (from > 0 && ords[from - 1] == ord) {
+                from--;
+            }
+            int to = first + 1;
+            while (to < size && ords[to] == ord) {
+                to++;
+            }
+            return to - from;
+        }
+    }
+
+    /**
+     * Keeps the top n groups seen by one slice, and the top n documents without a value.
+     */
+    public static class GroupCollector implements Collector {
+
+        private final String field;
+        private final int n;
+        private final boolean countGroups;
+        // the worst of the top groups on top
+        private final PriorityQueue<Group> top;
+        // the top groups by value
+        private final Map<BytesRef, Group> byValue = new HashMap<>();
+        private final TopScoreDocCollector singles;
+        private final List<SegmentOrds> segments = new ArrayList<>();
+
+        private GroupCollector(String field, int n, boolean countGroups) {
+            this.field = field;
+            this.n = n;
+            this.countGroups = countGroups;
+            top = new PriorityQueue<>(Math.max(1, n), BEST_FIRST.reversed());
+            singles = TopScoreDocCollector.create(Math.max(1, n));
+        }
+
+        @Override
+        public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+            final LeafCollector single = singles.getLeafCollector(context);
+            final SortedDocValues values = context.reader().getSortedDocValues(field);
+            if (values == null) {
+                return single;
+            }
+            final int docBase = context.docBase;
+            final SegmentOrds ords = countGroups ? new SegmentOrds(values) : null;
+            if (ords != null) {
+                segments.add(ords);
+            }
+            return new LeafCollector() {
+                private Scorer scorer;
+
+                @Override
+                public void setScorer(Scorer scorer) throws IOException {
+                    this.scorer = scorer;
+                    single.setScorer(scorer);
+                }
+
+                @Override
+                public void collect(int doc) throws IOException {
+                    int ord = values.getOrd(doc);
+                    if (ord < 0) {
+                        single.collect(doc);
+                        return;
+                    }
+                    if (ords != null) {
+                        ords.add(ord);
+                    }
+                    float score = scorer.score();
+                    // documents come in order, so a tie with the worst group loses
+                    if (n <= 0 || (top.size() == n && score <= top.peek().score)) {
+                        return;
+                    }
+                    BytesRef value = values.lookupOrd(ord);
+                    Group group = byValue.get(value);
+                    if (group != null) {
+                        if (score > group.score) {
+                            top.remove(group);
+                            group.doc = docBase + doc;
+                            group.score = score;
+                            top.add(group);
+                        }
+                        return;
+                    }
+                    if (top.size() == n) {
+                        byValue.remove(top.poll().value);
+                    }
+                    group = new Group(BytesRef.deepCopyOf(value), docBase + doc, score);
+                    top.add(group);
+                    byValue.put(group.value, group);
+                }
+            };
+        }
+
+        @Override
+        public boolean needsScores() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package searching;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * Whether an adaptive PRF or Rocchio search expands its query, worked out
+ * from the initial search the expansion starts from. Expansion is skipped
+ * when nothing was found, or when the query terms are rare and the top
+ * review scores well ahead of the next one, and so of every other review, as
+ * the ranking is then already decisive.
+ * Fewer intermediate results are used when the scores fall off quickly,
+ * keeping only those close to the top one, and fewer results and terms for
+ * long queries, which say enough on their own. Otherwise the search expands
+ * as configured.
+ */
+public class ExpansionDecision {
+
+    /**
+     * What the search does with its query.
+     */
+    public enum Action {
+        // expand as configured
+        FULL,
+        // expand from fewer intermediate results, or with fewer terms from each
+        REDUCED,
+        // run the query as a simple search
+        SKIPPED;
+
+        /**
+         * @return name used in the response header and the metrics
+         */
+        public String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final Action action;
+    // signal the action was taken on, empty for a full expansion
+    private final String reason;
+    private final int r;
+    private final int x;
+    private final int hits;
+    private final double scoreGap;
+    private final double topLead;
+    private final int terms;
+    private final double minIdf;
+
+    private ExpansionDecision(Action action, String reason, int r, int x, int hits, double scoreGap, double topLead,
+            int terms, double minIdf) {
+        this.action = action;
+        this.reason = reason;
+        this.r = r;
+        this.x = x;
+        this.hits = hits;
+        this.scoreGap = scoreGap;
+        this.topLead = topLead;
+        this.terms = terms;
+        this.minIdf = minIdf;
+    }
+
+    /**
+     * Decides how to expand a query. Only statistics go in, so the same
+     * decision comes out wherever they were looked up.
+     * @param tokens the query text tokenized, stemmed, and de-stop worded
+     * @param docFreqs document frequency of each query token
+     * @param numDocs total number of documents
+     * @param initial results of the simple search for the query, at least the top r
+     * @param config rocchio configuration asked for
+     * @return decision
+     */
+    public static ExpansionDecision decide(List<String> tokens, Map<String, Integer> docFreqs, int numDocs,
+            TopDocs initial, QueryRunner.RocchioConfig config) {
+        int r = config.getR();
+        int x = config.getX();
+        int terms = new HashSet<>(tokens).size();
+        // idf of the most common query term, terms missing from the index left out
+        double minIdf = 0;
+        boolean first = true;
+        for (Integer docFreq : docFreqs.values()) {
+            if (docFreq > 0) {
+                double idf = Math.log10((double) numDocs / docFreq);
+                minIdf = first ? idf : Math.min(minIdf, idf);
+                first = false;
+            }
+        }
+
+        // share of the top score the second result is behind by, all of it
+        // when there is no second result
+        ScoreDoc[] docs = initial.scoreDocs;
+        double topLead = 1;
+        if (docs.length > 1 && docs[0].score > 0) {
+            topLead = (docs[0].score - docs[1].score) / docs[0].score;
+        }
+
+        // share of the top score lost by the last intermediate result, and
+        // the intermediate results that score close to the top one
+        int feedback = Math.min(r, docs.length);
+        double scoreGap = 0;
+        int close = feedback;
+        if (feedback > 1 && docs[0].score > 0) {
+            scoreGap = (docs[0].score - docs[feedback - 1].score) / docs[0].score;
+            close = 1;
+            while (close < feedback && docs[close].score >= docs[0].score * (1 - SearchConstants.ADAPTIVE_REDUCE_SCORE_GAP)) {
+                close++;
+            }
+        }
+
+        if (initial.totalHits == 0) {
+            return new ExpansionDecision(Action.SKIPPED, "no_hits", 0, x, initial.totalHits, scoreGap, topLead, terms,
+                    minIdf);
+        }
+        if (topLead >= SearchConstants.ADAPTIVE_SKIP_TOP_LEAD && minIdf >= SearchConstants.ADAPTIVE_SKIP_MIN_IDF) {
+            return new ExpansionDecision(Action.SKIPPED, "confident", 0, x, initial.totalHits, scoreGap, topLead, terms,
+                    minIdf);
+        }
+        if (terms >= SearchConstants.ADAPTIVE_LONG_QUERY_TERMS) {
+            int reducedR = Math.min(close, shrink(r));
+            int reducedX = (x > 0) ? shrink(x) : x;
+            return new ExpansionDecision(Action.REDUCED, "long_query", reducedR, reducedX, initial.totalHits, scoreGap,
+                    topLead, terms, minIdf);
+        }
+        if (close < feedback) {
+            return new ExpansionDecision(Action.REDUCED, "score_gap", close, x, initial.totalHits, scoreGap, topLead, terms,
+                    minIdf);
+        }
+        return new ExpansionDecision(Action.FULL, "", r, x, initial.totalHits, scoreGap, topLead, terms, minIdf);
+    }
+
+    // a share of r or x, at least one
+    private static int shrink(int value) {
+        return Math.max(1, (int) Math.ceil(value * SearchConstants.ADAPTIVE_REDUCE_FACTOR));
+    }
+
+    /**
+     * @param config rocchio configuration asked for
+     * @return configuration to expand with, the same one for a full expansion
+     */
+    public QueryRunner.RocchioConfig apply(QueryRunner.RocchioConfig config) {
+        if (action == Action.FULL) {
+            return config;
+        }
+        QueryRunner.RocchioConfig applied = new QueryRunner.RocchioConfig();
+        applied.setX(x);
+        applied.setR(r);
+        applied.setAlpha(config.getAlpha());
+        applied.setBeta(config.getBeta());
+        return applied;
+    }
+
+    /**
+     * @return the decision with its reason and signals, as sent in the
+     * X-Expansion-Decision header
+     */
+    @Override
+    public String toString() {
+        StringBuilder value = new StringBuilder(action.label());
+        if (!reason.isEmpty()) {
+            value.append("; reason=").append(reason);
+        }
+        if (action != Action.SKIPPED) {
+            value.append("; r=").append(r).append("; x=").append(x);
+        }
+        value.append(String.format(Locale.ROOT, "; hits=%d; gap=%.3f; lead=%.3f; terms=%d; idf=%.3f", hits, scoreGap, topLead,
+                terms, minIdf));
+        return value.toString();
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    /**
+     * @return signal the action was taken on, empty for a full expansion
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * @return intermediate results to expand from, 0 when skipped
+     */
+    public int getR() {
+        return r;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * @return total hits of the initial search
+     */
+    public int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return share of the top score lost by the last intermediate result
+     */
+    public double getScoreGap() {
+        return scoreGap;
+    }
+
+    /**
+     * @return share of the top score the second initial result is behind by
+     */
+    public double getTopLead() {
+        return topLead;
+    }
+
+    /**
+     * @return distinct query terms
+     */
+    public int getTerms() {
+        return terms;
+    }
+
+    /**
+     * @return idf of the most common query term
+     */
+    public double getMinIdf() {
+        return minIdf;
+    }
+}
@@ -0,0 +1,326 @@
+package searching;
+
+import indexing.IndexConstants;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.MultiCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Counts the reviews found by a search by ASIN, rating and book subject, from
+ * the doc values of the review index. Counting runs next to the top hits
+ * collector, so the search goes over the hits once. Each segment keeps the
+ * ASIN ordinal of each hit and counts them by sorting, so the work follows the
+ * number of hits rather than the number of books. Once the hits are a large
+ * share of the segment's ASINs, see SearchConstants.FACET_DENSE_ASIN_SHARE, it
+ * counts into an array by ordinal instead. Only the ASINs that were found are
+ * looked up afterwards. Subject counts add up the ASIN counts over the
+ * subjects of each book.
+ */
+public class FacetCollectorManager implements CollectorManager<FacetCollectorManager.FacetCollector, FacetCounts> {
+
+    private final Set<QueryRunner.Facet> facets;
+    private final BookSubjects subjects;
+    private final int maxValues;
+
+    /**
+     *
+     * @param facets facets to count
+     * @param subjects subjects of each book, only needed to count subjects
+     * @param maxValues most values returned for each facet
+     */
+    public FacetCollectorManager(Set<QueryRunner.Facet> facets, BookSubjects subjects, int maxValues) {
+        this.facets = facets;
+        this.subjects = subjects;
+        this.maxValues = maxValues;
+    }
+
+    @Override
+    public FacetCollector newCollector() {
+        return new FacetCollector(facets.contains(QueryRunner.Facet.ASIN) || facets.contains(QueryRunner.Facet.SUBJECT),
+                facets.contains(QueryRunner.Facet.RATING));
+    }
+
+    /**
+     * Adds up the counts of every collector.
+     * @param collectors collectors of the search
+     * @return counts of each facet
+     */
+    @Override
+    public FacetCounts reduce(Collection<FacetCollector> collectors) {
+        Map<BytesRef, int[]> asins = new HashMap<>();
+        RatingCounts ratings = new RatingCounts();
+        for (FacetCollector collector : collectors) {
+            for (LeafCounts leaf : collector.leaves) {
+                leaf.addTo(asins);
+            }
+            for (int i = 0; i < collector.ratings.size; i++) {
+                ratings.add(collector.ratings.values[i], collector.ratings.counts[i]);
+            }
+        }
+
+        FacetCounts counts = new FacetCounts();
+        if (facets.contains(QueryRunner.Facet.SUBJECT)) {
+            Map<String, int[]> bySubject = new HashMap<>();
+            for (Map.Entry<BytesRef, int[]> asin : asins.entrySet()) {
+                String[] bookSubjects = (subjects != null) ? subjects.get(asin.getKey()) : null;
+                if (bookSubjects != null) {
+                    for (String subject : bookSubjects) {
+                        int[] count = bySubject.get(subject);
+                        if (count == null) {
+                            bySubject.put(subject, new int[]{asin.getValue()[0]});
+                        } else {
+                            count[0] += asin.getValue()[0];
+                        }
+                    }
+                }
+            }
+            Map<String, Integer> subjectCounts = new HashMap<>();
+            for (Map.Entry<String, int[]> subject : bySubject.entrySet()) {
+                subjectCounts.put(subject.getKey(), subject.getValue()[0]);
+            }
+            counts.put("subject", subjectCounts, maxValues);
+        }
+        if (facets.contains(QueryRunner.Facet.RATING)) {
+            Map<String, Integer> byRating = new HashMap<>();
+            for (int i = 0; i < ratings.size; i++) {
+                byRating.put(String.valueOf(Float.intBitsToFloat((int) ratings.values[i])), ratings.counts[i]);
+            }
+            counts.put("rating", byRating, maxValues);
+        }
+        if (facets.contains(QueryRunner.Facet.ASIN)) {
+            Map<String, Integer> byAsin = new HashMap<>();
+            for (Map.Entry<BytesRef, int[]> asin : asins.entrySet()) {
+                byAsin.put(asin.getKey().utf8ToString().trim(), asin.getValue()[0]);
+            }
+            counts.put("asin", byAsin, maxValues);
+        }
+        return counts;
+    }
+
+    /**
+     * Runs a search for its top hits and facet counts in one pass over the hits.
+     * @param <C> collector type of the top hits
+     * @param searcher searcher to use
+     * @param query query to run
+     * @param hits collects the top hits
+     * @return top hits and facet counts
+     * @throws IOException
+     */
+    public <C extends Collector> FacetedHits search(IndexSearcher searcher, Query query,
+            final CollectorManager<C, ? extends ScoreDoc[]> hits) throws IOException {
+        // the searcher asks for the collectors of its slices in slice order
+        final List<C> hitCollectors = new ArrayList<>();
+        final List<FacetCollector> facetCollectors = new ArrayList<>();
+        searcher.search(query, new CollectorManager<Collector, Void>() {
+            @Override
+            public Collector newCollector() throws IOException {
+                C hitCollector = hits.newCollector();
+                FacetCollector facetCollector = FacetCollectorManager.this.newCollector();
+                hitCollectors.add(hitCollector);
+                facetCollectors.add(facetCollector);
+                return MultiCollector.wrap(hitCollector, facetCollector);
+            }
+
+            @Override
+            public Void reduce(Collection<Collector> collectors) {
+                return null;
+            }
+        });
+        return new FacetedHits(hits.reduce(hitCollectors), reduce(facetCollectors));
+    }
+
+    /**
+     * Top hits of a search with its facet counts.
+     */
+    public static class FacetedHits {
+
+        private final ScoreDoc[] hits;
+        private final FacetCounts facets;
+
+        public FacetedHits(ScoreDoc[] hits, FacetCounts facets) {
+            this.hits = hits;
+            this.facets = facets;
+        }
+
+        public ScoreDoc[] getHits() {
+            return hits;
+        }
+
+        public FacetCounts getFacets() {
+            return facets;
+        }
+    }
+
+    /**
+     * ASIN counts of one segment, as the ordinal of each hit until the hits
+     * are many enough to count by ordinal.
+     */
+    private static class LeafCounts {
+
+        private final SortedDocValues asins;
+        // hits above which they are counted by ordinal
+        private final int denseAbove;
+        // ordinal of each hit while counting sparsely, null once dense
+        private int[] hitOrds = new int[16];
+        private int hits;
+        // hits by ordinal once dense, null until then
+        private int[] asinCounts;
+
+        private LeafCounts(SortedDocValues asins) {
+            this.asins = asins;
+            denseAbove = (int) (asins.getValueCount() * SearchConstants.FACET_DENSE_ASIN_SHARE);
+        }
+
+        private void collect(int ord) {
+            if (asinCounts != null) {
+                asinCounts[ord]++;
+                return;
+            }
+            if (hits == hitOrds.length) {
+                if (hits >= denseAbove) {
+                    asinCounts = new int[asins.getValueCount()];
+                    for (int i = 0; i < hits; i++) {
+                        asinCounts[hitOrds[i]]++;
+                    }
+                    asinCounts[ord]++;
+                    hitOrds = null;
+                    return;
+                }
+                hitOrds = ArrayUtil.grow(hitOrds, hits + 1);
+            }
+            hitOrds[hits++] = ord;
+        }
+
+        /**
+         * Adds the count of each ASIN found in the segment.
+         * @param totals hits by ASIN
+         */
+        private void addTo(Map<BytesRef, int[]> totals) {
+            if (asinCounts != null) {
+                for (int ord = 0; ord < asinCounts.length; ord++) {
+                    if (asinCounts[ord] > 0) {
+                        add(totals, ord, asinCounts[ord]);
+                    }
+                }
+                return;
+            }
+            Arrays.sort(hitOrds, 0, hits);
+            int i = 0;
+            while (i < hits) {
+                int first = i;
+                while (i < hits && hitOrds[i] == hitOrds[first]) {
+                    i++;
+                }
+                add(totals, hitOrds[first], i - first);
+            }
+        }
+
+        private void add(Map<BytesRef, int[]> totals, int ord, int count) {
+            BytesRef asin = asins.lookupOrd(ord);
+            int[] total = totals.get(asin);
+            if (total == null) {
+                totals.put(BytesRef.deepCopyOf(asin), new int[]{count});
+            } else {
+                total[0] += count;
+            }
+        }
+    }
+
+    /**
+     * Hits by rating, as the bits of the float rating. Reviews have only a
+     * few distinct ratings, so a rating is found by going over them.
+     */
+    private static class RatingCounts {
+
+        private long[] values = new long[8];
+        private int[] counts = new int[8];
+        private int size;
+
+        private void add(long value, int count) {
+            for (int i = 0; i < size; i++) {
+                if (values[i] == value) {
+                    counts[i] += count;
+                    return;
+                }
+            }
+            if (size == values.length) {
+                values = ArrayUtil.grow(values, size + 1);
+                counts = ArrayUtil.grow(counts, size + 1);
+            }
+            values[size] = value;
+            counts[size++] = count;
+        }
+    }
+
+    /**
+     * Counts the hits of one slice.
+     */
+    public static class FacetCollector implements Collector {
+
+        private final boolean countAsins;
+        private final boolean countRatings;
+        private final List<LeafCounts> leaves = new ArrayList<>();
+        private final RatingCounts ratings = new RatingCounts();
+
+        private FacetCollector(boolean countAsins, boolean countRatings) {
+            this.countAsins = countAsins;
+            this.countRatings = countRatings;
+        }
+
+        @Override
+        public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+            final LeafCounts leaf = countAsins
+                    ? new LeafCounts(DocValues.getSorted(context.reader(), IndexConstants.ASIN)) : null;
+            if (leaf != null) {
+                leaves.add(leaf);
+            }
+            final NumericDocValues ratingValues = countRatings
+                    ? DocValues.getNumeric(context.reader(), IndexConstants.RATING) : null;
+            final Bits hasRating = countRatings
+                    ? DocValues.getDocsWithField(context.reader(), IndexConstants.RATING) : null;
+            return new LeafCollector() {
+                @Override
+                public void setScorer(Scorer scorer) {
+                }
+
+                @Override
+                public void collect(int doc) {
+                    if (leaf != null) {
+                        int ord = leaf.asins.getOrd(doc);
+                        if (ord >= 0) {
+                            leaf.collect(ord);
+                        }
+                    }
+                    if (ratingValues != null && hasRating.get(doc)) {
+                        ratings.add(ratingValues.get(doc), 1);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public boolean needsScores() {
+            return false;
+        }
+    }
+}
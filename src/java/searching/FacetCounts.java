@@ -0,0 +1,67 @@
+package searching;
+
+import com.fasterxml.jackson.annotation.JsonValue;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Number of reviews found for each value of some facets, such as subject or
+ * rating. Only the values with the most reviews are kept, most first. Written
+ * to JSON as {"facet": {"value": count, ...}, ...}.
+ */
+public class FacetCounts {
+
+    private final Map<String, Map<String, Integer>> counts = new LinkedHashMap<>();
+
+    /**
+     * Adds the counts of one facet.
+     * @param facet facet name
+     * @param values number of reviews for each value
+     * @param maxValues most values to keep
+     */
+    public void put(String facet, Map<String, Integer> values, int maxValues) {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(values.entrySet());
+        // most reviews first, values with the same count in order
+        entries.sort((a, b) -> {
+            int byCount = Integer.compare(b.getValue(), a.getValue());
+            return (byCount != 0) ? byCount : a.getKey().compareTo(b.getKey());
+        });
+
+        Map<String, Integer> top = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> entry : entries.subList(0, Math.min(maxValues, entries.size()))) {
+            top.put(entry.getKey(), entry.getValue());
+        }
+        counts.put(facet, top);
+    }
+
+    /**
+     * @param facet facet name
+     * @return number of reviews for the top values of the facet, null if not counted
+     */
+    public Map<String, Integer> get(String facet) {
+        return counts.get(facet);
+    }
+
+    /**
+     * @return total number of values over every facet
+     */
+    public int size() {
+        int size = 0;
+        for (Map<String, Integer> values : counts.values()) {
+            size += values.size();
+        }
+        return size;
+    }
+
+    @JsonValue
+    public Map<String, Map<String, Integer>> getCounts() {
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        return counts.toString();
+    }
+}
@@ -0,0 +1,89 @@
+package searching;
+
+import java.io.IOException;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+
+/**
+ * Hands out searchers over the reviews of known books, as a view over the
+ * current review searcher. A refresh, after the review and book indexes are
+ * refreshed, builds a new view if either of them changed. The ASIN filter is
+ * kept while the book index stays the same, so only new review segments are
+ * looked at.
+ */
+public class FilteredSearcherManager extends ReferenceManager<IndexSearcher> {
+
+    private final ReferenceManager<IndexSearcher> reviews;
+    private final ReferenceManager<IndexSearcher> books;
+    private final SearcherFactory searcherFactory;
+
+    /**
+     *
+     * @param reviews review searchers to filter
+     * @param books book searchers the ASINs come from
+     * @param searcherFactory creates the searchers over the view
+     * @throws IOException
+     */
+    public FilteredSearcherManager(ReferenceManager<IndexSearcher> reviews, ReferenceManager<IndexSearcher> books,
+            SearcherFactory searcherFactory) throws IOException {
+        this.reviews = reviews;
+        this.books = books;
+        this.searcherFactory = searcherFactory;
+        current = open(null);
+    }
+
+    @Override
+    protected void decRef(IndexSearcher reference) throws IOException {
+        reference.getIndexReader().decRef();
+    }
+
+    @Override
+    protected IndexSearcher refreshIfNeeded(IndexSearcher referenceToRefresh) throws IOException {
+        return open((AsinFilter.FilteredReader) referenceToRefresh.getIndexReader());
+    }
+
+    @Override
+    protected boolean tryIncRef(IndexSearcher reference) throws IOException {
+        return reference.getIndexReader().tryIncRef();
+    }
+
+    @Override
+    protected int getRefCount(IndexSearcher reference) {
+        return reference.getIndexReader().getRefCount();
+    }
+
+    /**
+     * Creates a searcher over the current reviews, filtered by the current books.
+     * @param previous view being replaced, null on first open
+     * @return new searcher, null if neither index changed since the previous view
+     * @throws IOException
+     */
+    private IndexSearcher open(AsinFilter.FilteredReader previous) throws IOException {
+        IndexSearcher reviewSearcher = reviews.acquire();
+        try {
+            IndexSearcher bookSearcher = books.acquire();
+            try {
+                IndexReader reviewReader = reviewSearcher.getIndexReader();
+                IndexReader bookReader = bookSearcher.getIndexReader();
+                AsinFilter filter = null;
+                if (previous != null && previous.getFilter().getBooks() == bookReader) {
+                    if (previous.getReviews() == reviewReader) {
+                        return null;
+                    }
+                    filter = previous.getFilter();
+                }
+                if (filter == null) {
+                    filter = new AsinFilter(bookReader);
+                }
+                return SearcherManager.getSearcher(searcherFactory, filter.wrap(reviewReader), previous);
+            } finally {
+                books.release(bookSearcher);
+            }
+        } finally {
+            reviews.release(reviewSearcher);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package searching;
+
+import org.apache.lucene.search.ScoreDoc;
+
+/**
+ * The best document of a group of hits, with the number of hits in the group.
+ */
+public class GroupScoreDoc extends ScoreDoc {
+
+    // number of hits in the group, 1 unless counted
+    public int groupSize;
+
+    /**
+     *
+     * @param doc best document of the group
+     * @param score score of the document
+     */
+    public GroupScoreDoc(int doc, float score) {
+        super(doc, score);
+        groupSize = 1;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + " groupSize=" + groupSize;
+    }
+}
@@ -0,0 +1,46 @@
+package searching;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FileSwitchDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+
+/**
+ * Opens index directories for searching with the implementation chosen in
+ * SearchConstants. Memory mapped indexes can load the files every search
+ * reads into memory up front, so the first searches after a start do not wait
+ * on the disk for them.
+ */
+public class IndexDirectories {
+
+    /**
+     * Opens an index directory for searching.
+     * @param path index directory
+     * @return directory
+     * @throws IOException
+     */
+    public static Directory open(Path path) throws IOException {
+        switch (SearchConstants.INDEX_DIRECTORY) {
+            case "mmap":
+                if (SearchConstants.PRELOAD_EXTENSIONS.length == 0) {
+                    return new MMapDirectory(path);
+                }
+                // two mappings of the same directory, files are opened through
+                // the preloading one if their extension is listed
+                MMapDirectory preloaded = new MMapDirectory(path);
+                preloaded.setPreload(true);
+                Set<String> extensions = new HashSet<>(Arrays.asList(SearchConstants.PRELOAD_EXTENSIONS));
+                return new FileSwitchDirectory(extensions, preloaded, new MMapDirectory(path), true);
+            case "nio":
+                return new NIOFSDirectory(path);
+            default:
+                return FSDirectory.open(path);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package searching;
+
+/**
+ * Counts latencies in buckets that grow with the latency, each power of two
+ * split into SUB_BUCKETS equal parts, so percentiles are within about 3% from
+ * microseconds to days in a few thousand counters. Not thread safe, each
+ * load test worker keeps its own and they are added up at the end.
+ */
+public class LatencyHistogram {
+
+    // buckets per power of two, a power of two itself
+    public final static int SUB_BUCKETS = 32;
+    // powers of two covered, latencies above that go in the last bucket
+    public final static int POWERS = 40;
+
+    private static final int SUB_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+
+    private final long[] counts = new long[(POWERS + 1) * SUB_BUCKETS];
+    private long count;
+    private long max;
+    private long total;
+
+    /**
+     * @param micros latency in microseconds
+     */
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        counts[bucket(micros)]++;
+        count++;
+        total += micros;
+        if (micros > max) {
+            max = micros;
+        }
+    }
+
+    /**
+     * Adds the counts of another histogram to this one.
+     * @param other histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return highest latency of the bucket the percentile falls in, in
+     * microseconds, never more than the highest latency recorded
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, highest(i));
+            }
+        }
+        return max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @return mean latency in microseconds
+     */
+    public double getMean() {
+        return (count == 0) ? 0 : (double) total / count;
+    }
+
+    /**
+     * Values below SUB_BUCKETS get a bucket each. Above, the power of two
+     * picks a row of buckets and the next SUB_BITS bits the bucket in it.
+     */
+    private static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int power = 63 - Long.numberOfLeadingZeros(micros) - SUB_BITS + 1;
+        if (power > POWERS) {
+            return (POWERS + 1) * SUB_BUCKETS - 1;
+        }
+        int sub = (int) (micros >>> (power - 1)) - SUB_BUCKETS;
+        return power * SUB_BUCKETS + sub;
+    }
+
+    // highest value that goes in a bucket
+    private static long highest(int bucket) {
+        int power = bucket / SUB_BUCKETS;
+        int sub = bucket % SUB_BUCKETS;
+        if (power == 0) {
+            return sub;
+        }
+        return ((long) (SUB_BUCKETS + sub + 1) << (power - 1)) - 1;
+    }
+}
@@ -0,0 +1,184 @@
+package searching;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+
+/**
+ * An index that is opened in the background, either right away or the first
+ * time a search needs it. An index that fails to open stays failed and does
+ * not hold up the others.
+ */
+public class LazyIndex {
+
+    /**
+     * Where an index is in being opened.
+     */
+    public enum State {
+        NOT_OPENED, OPENING, OPEN, FAILED
+    }
+
+    /**
+     * Opens the searcher manager of an index.
+     */
+    public interface Opener {
+
+        /**
+         * @return manager handing out searchers for the index
+         * @throws IOException if the index can not be opened
+         */
+        ReferenceManager<IndexSearcher> open() throws IOException;
+    }
+
+    private final String name;
+    private final Opener opener;
+    private final Executor executor;
+    // set once opening starts, completed with null if opening failed
+    private volatile CompletableFuture<ReferenceManager<IndexSearcher>> manager;
+    private volatile String error;
+    private volatile long openMillis;
+
+    /**
+     *
+     * @param name name of the index, used for status and errors
+     * @param opener opens the index
+     * @param executor threads the index is opened on
+     */
+    public LazyIndex(String name, Opener opener, Executor executor) {
+        this.name = name;
+        this.opener = opener;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts opening the index unless it has been started before.
+     * @return future manager, completed with null if the index could not be opened
+     */
+    public synchronized CompletableFuture<ReferenceManager<IndexSearcher>> start() {
+        if (manager == null) {
+            manager = CompletableFuture.supplyAsync(this::open, executor);
+            // searches waiting for the index go ahead before this is printed
+            manager.thenAcceptAsync(this::printOpened, executor);
+        }
+        return manager;
+    }
+
+    /**
+     * Returns the manager of the index, opening it first if needed.
+     * @return manager, null if the index could not be opened
+     */
+    public ReferenceManager<IndexSearcher> get() {
+        return join(start());
+    }
+
+    /**
+     * Returns the manager of the index if opening was started, waiting for it
+     * to finish.
+     * @return manager, null if opening was not started or failed
+     */
+    public ReferenceManager<IndexSearcher> getIfStarted() {
+        CompletableFuture<ReferenceManager<IndexSearcher>> started = manager;
+        return (started != null) ? join(started) : null;
+    }
+
+    /**
+     * Returns the manager of the index if it is open, without waiting.
+     * @return manager, null if the index is not open yet or failed
+     */
+    public ReferenceManager<IndexSearcher> getIfOpen() {
+        CompletableFuture<ReferenceManager<IndexSearcher>> started = manager;
+        return (started != null && started.isDone()) ? join(started) : null;
+    }
+
+    /**
+     * @return name of the index
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return how far opening the index got
+     */
+    public State getState() {
+        CompletableFuture<ReferenceManager<IndexSearcher>> started = manager;
+        if (started == null) {
+            return State.NOT_OPENED;
+        } else if (!started.isDone()) {
+            return State.OPENING;
+        }
+        return (join(started) != null) ? State.OPEN : State.FAILED;
+    }
+
+    /**
+     * @return why the index failed to open, null if it did not fail
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return milliseconds it took to open the index, 0 if it is not open
+     */
+    public long getOpenMillis() {
+        return openMillis;
+    }
+
+    /**
+     * Opens the index, recording the time taken or the error.
+     * @return manager, null if the index could not be opened
+     */
+    private ReferenceManager<IndexSearcher> open() {
+        long start = System.nanoTime();
+        try {
+            ReferenceManager<IndexSearcher> opened = opener.open();
+            openMillis = Math.max(1, (System.nanoTime() - start) / 1000000);
+            return opened;
+        } catch (IOException | RuntimeException ex) {
+            error = ex.getMessage();
+            System.err.println("Error opening " + name + " index: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Prints the number of documents in a newly opened index.
+     * @param opened manager of the index, null if it failed to open
+     */
+    private void printOpened(ReferenceManager<IndexSearcher> opened) {
+        if (opened == null) {
+            return;
+        }
+        try {
+            System.out.println("Opened " + name + " index with " + numDocs(opened) + " documents in " + openMillis + " ms");
+        } catch (IOException ex) {
+            System.err.println("Error reading " + name + " index: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Counts the documents of the current searcher of an index.
+     * @param manager manager of the index
+     * @return number of documents that are not deleted
+     * @throws IOException
+     */
+    public static int numDocs(ReferenceManager<IndexSearcher> manager) throws IOException {
+        IndexSearcher searcher = manager.acquire();
+        try {
+            return searcher.getIndexReader().numDocs();
+        } finally {
+            manager.release(searcher);
+        }
+    }
+
+    private static ReferenceManager<IndexSearcher> join(CompletableFuture<ReferenceManager<IndexSearcher>> future) {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,633 @@
+package searching;
+
+import indexing.CorpusGenerator;
+import indexing.IndexConstants;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Puts a steady search load on QueryRunner in this process, or on a running
+ * SearchServlet over HTTP, and reports throughput and latency percentiles for
+ * each search mode. A fixed number of workers each send one search at a time.
+ * With a target rate the searches are sent on a fixed schedule, and latency is
+ * counted from when a search was due, not from when a worker got around to
+ * sending it. Otherwise a slow server would hold the workers back and hide the
+ * waiting its slowness causes, leaving only the fast searches in the numbers.
+ * Searches that were due but never sent before time ran out are counted as
+ * missed, with the time they had waited by then as their latency.
+ * <p>
+ * Usage: LoadTester [-url servlet URL] [-log query log] [-threads n] [-qps n]
+ * [-duration seconds] [-warmup seconds] [-mix mode=weight,...] [-count n]
+ * [-seed n] [-out file]
+ * <p>
+ * Without -url the searches run on QueryRunner.getQueryRunner(), through the
+ * same query pools as the servlet. The query log has the format of
+ * SearchConstants.WARMUP_QUERY_LOG, searches logged without a mode get one
+ * from the mix. Without a log, searches are made up by CorpusGenerator. Modes
+ * are simple, prf and rocchio, "/books" after prf or rocchio expands from the
+ * reviews of books found by subject. Without -qps each worker sends its next
+ * search as soon as the last one is done.
+ */
+public class LoadTester {
+
+    // defaults for the command line
+    public final static int DEFAULT_THREADS = 8;
+    public final static int DEFAULT_DURATION_SECONDS = 60;
+    public final static int DEFAULT_WARMUP_SECONDS = 10;
+    public final static String DEFAULT_MIX = "simple=60,prf=20,rocchio=15,rocchio/books=5";
+    public final static int DEFAULT_COUNT = 10;
+    public final static long DEFAULT_SEED = 849;
+    // searches made up when there is no query log, replayed in turn
+    public final static int SYNTHETIC_SEARCHES = 10000;
+    // most searches read from a query log
+    public final static int MAX_LOG_SEARCHES = 1000000;
+    // corpus size the made up searches are drawn for
+    public final static int SYNTHETIC_CORPUS_REVIEWS = 1000000;
+    // percentiles in the summary table
+    public final static double[] SUMMARY_PERCENTILES = {50, 90, 99, 99.9};
+    // percentiles written to the output file
+    public final static double[] OUTPUT_PERCENTILES = {0, 10, 25, 50, 75, 90, 95, 99, 99.5, 99.9, 99.99, 100};
+
+    private final Target target;
+    private final List<Search> searches;
+    private final int threads;
+    private final double qps;
+    private final int durationSeconds;
+    private final int warmupSeconds;
+
+    // next search to send, every search sent takes the next one
+    private final AtomicLong nextSlot = new AtomicLong();
+
+    /**
+     *
+     * @param target where to send the searches
+     * @param searches searches to send in turn, starting over at the end
+     * @param threads number of workers
+     * @param qps searches per second to send, 0 to send as fast as the workers can
+     * @param durationSeconds how long to measure for
+     * @param warmupSeconds how long to send searches before measuring
+     */
+    public LoadTester(Target target, List<Search> searches, int threads, double qps, int durationSeconds,
+            int warmupSeconds) {
+        this.target = target;
+        this.searches = searches;
+        this.threads = threads;
+        this.qps = qps;
+        this.durationSeconds = durationSeconds;
+        this.warmupSeconds = warmupSeconds;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("-") || i + 1 >= args.length) {
+                System.out.println("Usage: LoadTester [-url servlet URL] [-log query log] [-threads n] [-qps n]"
+                        + " [-duration seconds] [-warmup seconds] [-mix mode=weight,...] [-count n] [-seed n] [-out file]");
+                return;
+            }
+            options.put(args[i].substring(1), args[i + 1]);
+        }
+        int threads = intOption(options, "threads", DEFAULT_THREADS);
+        int count = intOption(options, "count", DEFAULT_COUNT);
+        long seed = options.containsKey("seed") ? Long.parseLong(options.get("seed")) : DEFAULT_SEED;
+        double qps = options.containsKey("qps") ? Double.parseDouble(options.get("qps")) : 0;
+
+        Map<String, Integer> mix = parseMix(options.containsKey("mix") ? options.get("mix") : DEFAULT_MIX);
+        List<Search> searches = options.containsKey("log")
+                ? logSearches(options.get("log"), mix, seed)
+                : syntheticSearches(mix, seed);
+        if (searches.isEmpty()) {
+            System.err.println("No searches to send");
+            return;
+        }
+
+        Target target;
+        if (options.containsKey("url")) {
+            // keep a connection open for every worker between searches
+            System.setProperty("http.maxConnections", String.valueOf(threads));
+            target = new HttpTarget(options.get("url"), count);
+        } else {
+            target = new InProcessTarget(QueryRunner.getQueryRunner(), count);
+        }
+
+        LoadTester tester = new LoadTester(target, searches, threads, qps,
+                intOption(options, "duration", DEFAULT_DURATION_SECONDS),
+                intOption(options, "warmup", DEFAULT_WARMUP_SECONDS));
+        Map<String, ModeStats> stats = tester.run();
+        tester.report(stats, new PrintWriter(System.out, true));
+        if (options.containsKey("out")) {
+            try (PrintWriter out = new PrintWriter(options.get("out"), "UTF-8")) {
+                writeDistribution(stats, out);
+            }
+        }
+    }
+
+    /**
+     * Sends searches from every worker for the warm-up and the measured time.
+     * @return statistics of each mode over the measured time, in the order
+     * the modes were first seen, then "all" for every mode together
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    public Map<String, ModeStats> run() throws InterruptedException {
+        long start = System.nanoTime();
+        long measureStart = start + warmupSeconds * 1000000000L;
+        long end = measureStart + durationSeconds * 1000000000L;
+        long interval = (qps > 0) ? (long) (1000000000L / qps) : 0;
+        nextSlot.set(0);
+
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Worker worker = new Worker(start, measureStart, end, interval);
+            worker.setName("load-" + (i + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+
+        Map<String, ModeStats> stats = new LinkedHashMap<>();
+        for (Search search : searches) {
+            if (!stats.containsKey(search.getMode())) {
+                stats.put(search.getMode(), new ModeStats());
+            }
+        }
+        ModeStats all = new ModeStats();
+        for (Worker worker : workers) {
+            worker.join();
+            for (Map.Entry<String, ModeStats> entry : worker.stats.entrySet()) {
+                stats.get(entry.getKey()).add(entry.getValue());
+                all.add(entry.getValue());
+            }
+        }
+        stats.put("all", all);
+        return stats;
+    }
+
+    /**
+     * Prints the throughput and latency percentiles of each mode. When there
+     * is a target rate, service time, from when a search was actually sent,
+     * is printed as well.
+     * @param stats statistics returned by run
+     * @param out where to print
+     */
+    public void report(Map<String, ModeStats> stats, PrintWriter out) {
+        out.println("Sent " + stats.get("all").getSent() + " searches from " + threads + " workers in "
+                + durationSeconds + " s" + ((qps > 0) ? ", target " + qps + " searches/s" : ""));
+        out.println((qps > 0) ? "Latency from when each search was due (ms):" : "Latency (ms):");
+        printTable(stats, true, out);
+        if (qps > 0) {
+            out.println("Service time from when each search was sent (ms):");
+            printTable(stats, false, out);
+        }
+        out.flush();
+    }
+
+    /**
+     * @param stats statistics of each mode
+     * @param response true for latency from when searches were due, false from when they were sent
+     * @param out where to print
+     */
+    private void printTable(Map<String, ModeStats> stats, boolean response, PrintWriter out) {
+        StringBuilder header = new StringBuilder(String.format("%-16s %9s %9s %8s %8s %8s", "mode", "ok", "per s",
+                "rejected", "errors", "missed"));
+        for (double percentile : SUMMARY_PERCENTILES) {
+            header.append(String.format(" %9s", "p" + percentileName(percentile)));
+        }
+        header.append(String.format(" %9s %9s", "max", "mean"));
+        out.println(header);
+        for (Map.Entry<String, ModeStats> entry : stats.entrySet()) {
+            ModeStats mode = entry.getValue();
+            LatencyHistogram histogram = response ? mode.response : mode.service;
+            long ok = mode.service.getCount();
+            StringBuilder row = new StringBuilder(String.format("%-16s %9d %9.1f %8d %8d %8d", entry.getKey(),
+                    ok, (double) ok / durationSeconds, mode.rejected, mode.errors, mode.missed));
+            for (double percentile : SUMMARY_PERCENTILES) {
+                row.append(String.format(" %9.2f", histogram.getPercentile(percentile) / 1000.0));
+            }
+            row.append(String.format(" %9.2f %9.2f", histogram.getMax() / 1000.0, histogram.getMean() / 1000.0));
+            out.println(row);
+            if (mode.lastError != null) {
+                out.println("    last error: " + mode.lastError);
+            }
+        }
+    }
+
+    /**
+     * Writes the latency distribution of each mode as tab separated lines of
+     * mode, percentile, latency from when due and service time in ms, to
+     * compare runs or plot.
+     * @param stats statistics returned by run
+     * @param out where to write
+     */
+    public static void writeDistribution(Map<String, ModeStats> stats, PrintWriter out) {
+        out.println("mode\tpercentile\tlatency_ms\tservice_ms");
+        for (Map.Entry<String, ModeStats> entry : stats.entrySet()) {
+            for (double percentile : OUTPUT_PERCENTILES) {
+                out.println(entry.getKey() + "\t" + percentileName(percentile) + "\t"
+                        + entry.getValue().response.getPercentile(percentile) / 1000.0 + "\t"
+                        + entry.getValue().service.getPercentile(percentile) / 1000.0);
+            }
+        }
+    }
+
+    /**
+     * Parses a mode mix like "simple=60,prf=20,rocchio/books=20".
+     * @param mix comma separated modes and weights
+     * @return weight of each mode
+     * @throws IllegalArgumentException if a mode or weight is not valid
+     */
+    static Map<String, Integer> parseMix(String mix) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String part : mix.split(",")) {
+            String[] modeWeight = part.trim().split("=");
+            String mode = modeWeight[0].trim().toLowerCase();
+            Search.checkMode(mode);
+            weights.put(mode, (modeWeight.length > 1) ? Integer.parseInt(modeWeight[1].trim()) : 1);
+        }
+        return weights;
+    }
+
+    /**
+     * Reads the searches of a query log. Searches logged with a mode keep it.
+     * @param path query log
+     * @param mix weight of each mode for searches logged without one
+     * @param seed seed for picking modes
+     * @return searches in the order of the log
+     * @throws IOException if the log could not be read
+     */
+    static List<Search> logSearches(String path, Map<String, Integer> mix, long seed) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed);
+        List<Search> searches = new ArrayList<>();
+        for (String[] logged : SearchWarmer.readLog(path, MAX_LOG_SEARCHES, null)) {
+            String mode = (logged[0] == null) ? pickMode(mix, random) : logged[0];
+            try {
+                Search.checkMode(mode);
+            } catch (IllegalArgumentException ex) {
+                System.err.println("Skipping logged search: " + ex.getMessage());
+                continue;
+            }
+            searches.add(new Search(mode, logged[1]));
+        }
+        return searches;
+    }
+
+    /**
+     * Makes up searches with the words and subjects of a generated corpus.
+     * @param mix weight of each mode
+     * @param seed seed of the searches and modes
+     * @return searches
+     */
+    static List<Search> syntheticSearches(Map<String, Integer> mix, long seed) {
+        CorpusGenerator generator = new CorpusGenerator(SYNTHETIC_CORPUS_REVIEWS, seed, SYNTHETIC_CORPUS_REVIEWS);
+        SplittableRandom random = new SplittableRandom(seed);
+        List<Search> searches = new ArrayList<>();
+        for (int i = 0; i < SYNTHETIC_SEARCHES; i++) {
+            searches.add(new Search(pickMode(mix, random), generator.query(random)));
+        }
+        return searches;
+    }
+
+    /**
+     * @param mix weight of each mode
+     * @param random source of the choice
+     * @return mode picked with a chance proportional to its weight
+     */
+    private static String pickMode(Map<String, Integer> mix, SplittableRandom random) {
+        int total = 0;
+        for (int weight : mix.values()) {
+            total += weight;
+        }
+        int roll = random.nextInt(total);
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            roll -= entry.getValue();
+            if (roll < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException("mix weights changed");
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    // 99.9 rather than 99.900000
+    private static String percentileName(double percentile) {
+        return (percentile == Math.rint(percentile)) ? String.valueOf((long) percentile) : String.valueOf(percentile);
+    }
+
+    /**
+     * Sends searches one at a time until the end. Each search takes the next
+     * slot of the schedule; with a target rate the worker waits for the
+     * slot's time if it is early, and sends right away if it is late. Once
+     * time is up the slots due before the end are recorded as missed.
+     */
+    private class Worker extends Thread {
+
+        private final long start;
+        private final long measureStart;
+        private final long end;
+        private final long interval;
+        // statistics of each mode, only touched by this worker until it ends
+        private final Map<String, ModeStats> stats = new LinkedHashMap<>();
+
+        public Worker(long start, long measureStart, long end, long interval) {
+            this.start = start;
+            this.measureStart = measureStart;
+            this.end = end;
+            this.interval = interval;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                long slot = nextSlot.getAndIncrement();
+                Search search = searches.get((int) (slot % searches.size()));
+                long due;
+                if (interval > 0) {
+                    due = start + slot * interval;
+                    if (due >= end) {
+                        return;
+                    }
+                    // searches still due when time is up are not sent, but
+                    // they waited at least until the end
+                    if (System.nanoTime() >= end) {
+                        if (due >= measureStart) {
+                            ModeStats mode = modeStats(search);
+                            mode.missed++;
+                            mode.response.record((end - due) / 1000);
+                        }
+                        continue;
+                    }
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                } else {
+                    due = System.nanoTime();
+                    if (due >= end) {
+                        return;
+                    }
+                }
+
+                long sent = System.nanoTime();
+                String error = null;
+                boolean rejected = false;
+                try {
+                    target.search(search);
+                } catch (QueryRejectedException ex) {
+                    rejected = true;
+                } catch (Exception ex) {
+                    error = ex.toString();
+                }
+                long done = System.nanoTime();
+
+                if (due < measureStart) {
+                    continue;
+                }
+                ModeStats mode = modeStats(search);
+                if (rejected) {
+                    mode.rejected++;
+                } else if (error != null) {
+                    mode.errors++;
+                    mode.lastError = error;
+                } else {
+                    mode.response.record((done - due) / 1000);
+                    mode.service.record((done - sent) / 1000);
+                }
+            }
+        }
+
+        /**
+         * @param search search sent or missed
+         * @return statistics of the search's mode
+         */
+        private ModeStats modeStats(Search search) {
+            ModeStats mode = stats.get(search.getMode());
+            if (mode == null) {
+                mode = new ModeStats();
+                stats.put(search.getMode(), mode);
+            }
+            return mode;
+        }
+    }
+
+    /**
+     * Latencies of the searches that succeeded and counts of the ones that
+     * did not, for one mode. Rejected and failed searches are left out of the
+     * latencies, as they are usually much faster than real ones. Missed
+     * searches are in the latencies from when they were due, but not in the
+     * service times.
+     */
+    public static class ModeStats {
+
+        // from when each search was due, missed searches until the end
+        private final LatencyHistogram response = new LatencyHistogram();
+        // from when each search was sent
+        private final LatencyHistogram service = new LatencyHistogram();
+        private long rejected;
+        private long errors;
+        // due before the end with a target rate, but never sent
+        private long missed;
+        private String lastError;
+
+        /**
+         * Adds the counts of another worker.
+         * @param other statistics to add
+         */
+        public void add(ModeStats other) {
+            response.add(other.response);
+            service.add(other.service);
+            rejected += other.rejected;
+            errors += other.errors;
+            missed += other.missed;
+            if (other.lastError != null) {
+                lastError = other.lastError;
+            }
+        }
+
+        public LatencyHistogram getResponse() {
+            return response;
+        }
+
+        public LatencyHistogram getService() {
+            return service;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getMissed() {
+            return missed;
+        }
+
+        /**
+         * @return number of searches sent in the measured time
+         */
+        public long getSent() {
+            return service.getCount() + rejected + errors;
+        }
+    }
+
+    /**
+     * A search to send: the mode as the servlet takes it, with "/books" for
+     * expansion from books, and the search text.
+     */
+    public static class Search {
+
+        private final String mode;
+        private final String text;
+
+        public Search(String mode, String text) {
+            this.mode = mode;
+            this.text = text;
+        }
+
+        /**
+         * @param mode mode to check
+         * @throws IllegalArgumentException if the mode is not a known one
+         */
+        static void checkMode(String mode) {
+            String base = mode.endsWith("/books") ? mode.substring(0, mode.length() - 6) : mode;
+            if (!base.equals("simple") && !base.equals("prf") && !base.equals("rocchio")
+                    || base.equals("simple") && !base.equals(mode)) {
+                throw new IllegalArgumentException("Unknown search mode " + mode);
+            }
+        }
+
+        public String getMode() {
+            return mode;
+        }
+
+        /**
+         * @return mode without "/books", as the servlet takes it
+         */
+        public String getBaseMode() {
+            return isFromBooks() ? mode.substring(0, mode.length() - 6) : mode;
+        }
+
+        public boolean isFromBooks() {
+            return mode.endsWith("/books");
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * Where the searches go.
+     */
+    public interface Target {
+
+        /**
+         * Runs a search and waits for all of its results.
+         * @param search search to run
+         * @throws QueryRejectedException if the server was too busy to take it
+         * @throws Exception if the search failed
+         */
+        void search(Search search) throws Exception;
+    }
+
+    /**
+     * Runs searches on a QueryRunner through its query pools, the way the
+     * servlet does, without HTTP or serializing the reviews.
+     */
+    public static class InProcessTarget implements Target {
+
+        private final QueryRunner qRunner;
+        private final int count;
+
+        /**
+         *
+         * @param qRunner QueryRunner to search with
+         * @param count number of results of each search
+         */
+        public InProcessTarget(QueryRunner qRunner, int count) {
+            this.qRunner = qRunner;
+            this.count = count;
+        }
+
+        @Override
+        public void search(Search search) throws Exception {
+            QueryRunner.RocchioConfig config = SearchServlet.configFor(search.getBaseMode());
+            try {
+                if (config == null) {
+                    qRunner.executeReviewAsync(search.getText(), IndexConstants.TEXT, count, false).join();
+                } else {
+                    qRunner.rocchioAsync(search.getText(), IndexConstants.TEXT, count, config, false,
+                            search.isFromBooks()).join();
+                }
+            } catch (CompletionException ex) {
+                if (ex.getCause() instanceof Exception) {
+                    throw (Exception) ex.getCause();
+                }
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Sends searches to SearchServlet and reads each whole response.
+     */
+    public static class HttpTarget implements Target {
+
+        private final String url;
+        private final int count;
+
+        /**
+         *
+         * @param url URL of the search servlet, like http://localhost:8080/review-search/SearchServlet
+         * @param count number of results of each search
+         */
+        public HttpTarget(String url, int count) {
+            this.url = url;
+            this.count = count;
+        }
+
+        @Override
+        public void search(Search search) throws IOException {
+            URL searchUrl = new URL(url + "?search=" + URLEncoder.encode(search.getText(), "UTF-8")
+                    + "&mode=" + search.getBaseMode() + "&count=" + count
+                    + "&base=" + (search.isFromBooks() ? "books" : "reviews"));
+            HttpURLConnection connection = (HttpURLConnection) searchUrl.openConnection();
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            connection.setConnectTimeout((int) SearchConstants.REQUEST_TIMEOUT_MILLIS);
+            connection.setReadTimeout((int) SearchConstants.REQUEST_TIMEOUT_MILLIS);
+            int status = connection.getResponseCode();
+            // read every response to the end so the connection can be used again
+            InputStream in = (status < 400) ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                try {
+                    byte[] bytes = new byte[8192];
+                    while (in.read(bytes) >= 0) {
+                        // only the time to read it matters
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            if (status == HttpURLConnection.HTTP_UNAVAILABLE) {
+                throw new QueryRejectedException("server busy");
+            } else if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + status + " for " + search.getMode() + " search " + search.getText());
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package searching;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the search metrics in the Prometheus text format: time per search
+ * and per phase, expansion sizes, adaptive expansion decisions and hits for
+ * each search mode, the hit, miss and eviction counts of the caches, and how
+ * many slow searches were logged. Asking does not open any index.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    /**
+     * Handles the HTTP <code>GET</code> method.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        QueryRunner qRunner = QueryRunner.getQueryRunner();
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        response.setHeader("Cache-Control", "no-store");
+        Writer out = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+        qRunner.getMetrics().write(out);
+        writeCaches(out, new String[]{"result", "expansion", "decision", "facet"},
+                new QueryCache<?, ?>[]{qRunner.getResultCache(), qRunner.getExpansionCache(), qRunner.getDecisionCache(),
+                    qRunner.getFacetCache()});
+        QueryMetrics.header(out, "coalesced_searches_total", "counter",
+                "Searches that waited for an identical running search.");
+        QueryMetrics.sample(out, "coalesced_searches_total", "", qRunner.getCoalescedCount());
+        SlowQueryLog slowLog = qRunner.getSlowQueryLog();
+        if (slowLog != null) {
+            QueryMetrics.header(out, "slow_queries_total", "counter", "Slow searches by whether they were logged.");
+            QueryMetrics.sample(out, "slow_queries_total", "result=\"logged\"", slowLog.getLoggedCount());
+            QueryMetrics.sample(out, "slow_queries_total", "result=\"dropped\"", slowLog.getDroppedCount());
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the lookups, evictions and weight of the caches, each metric
+     * with the samples of every cache together.
+     * @param out where to write
+     * @param names cache labels
+     * @param caches caches to report, in the order of the labels
+     * @throws IOException if writing fails
+     */
+    private static void writeCaches(Writer out, String[] names, QueryCache<?, ?>[] caches) throws IOException {
+        QueryMetrics.header(out, "cache_requests_total", "counter", "Cache lookups by result.");
+        for (int i = 0; i < caches.length; i++) {
+            String labels = "cache=\"" + names[i] + "\"";
+            QueryMetrics.sample(out, "cache_requests_total", labels + ",result=\"hit\"", caches[i].getHitCount());
+            QueryMetrics.sample(out, "cache_requests_total", labels + ",result=\"miss\"", caches[i].getMissCount());
+        }
+        QueryMetrics.header(out, "cache_evictions_total", "counter", "Entries evicted from the cache.");
+        for (int i = 0; i < caches.length; i++) {
+            QueryMetrics.sample(out, "cache_evictions_total", "cache=\"" + names[i] + "\"", caches[i].getEvictionCount());
+        }
+        QueryMetrics.header(out, "cache_weight", "gauge", "Hits, clauses or decisions held by the cache.");
+        for (int i = 0; i < caches.length; i++) {
+            QueryMetrics.sample(out, "cache_weight", "cache=\"" + names[i] + "\"", caches[i].getWeight());
+        }
+    }
+
+    /**
+     * Returns a short description of the servlet.
+     *
+     * @return a String containing servlet description
+     */
+    @Override
+    public String getServletInfo() {
+        return "Search metrics";
+    }
+}
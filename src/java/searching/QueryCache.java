@@ -0,0 +1,127 @@
+package searching;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+/**
+ * A least recently used cache bounded by the total weight of its entries
+ * rather than their number, so a few large entries can not crowd out memory
+ * meant for many small ones. Hits, misses and evictions are counted.
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class QueryCache<K, V> {
+
+    private final long maxWeight;
+    private final ToIntFunction<V> weigher;
+    // access ordered, so the first entry is the least recently used
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     *
+     * @param maxWeight most total weight the cache holds
+     * @param weigher weight of an entry
+     */
+    public QueryCache(long maxWeight, ToIntFunction<V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Returns the cached value for the key.
+     * @param key key to look up
+     * @return cached value, null if there is none
+     */
+    public V get(K key) {
+        V value;
+        synchronized (this) {
+            value = entries.get(key);
+        }
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Caches a value, evicting the least recently used entries until the total
+     * weight fits. A value heavier than the whole cache is not cached.
+     * @param key key for the value
+     * @param value value to cache
+     */
+    public void put(K key, V value) {
+        int valueWeight = weigher.applyAsInt(value);
+        if (valueWeight > maxWeight) {
+            return;
+        }
+
+        synchronized (this) {
+            V old = entries.put(key, value);
+            if (old != null) {
+                weight -= weigher.applyAsInt(old);
+            }
+            weight += valueWeight;
+
+            Iterator<Map.Entry<K, V>> it = entries.entrySet().iterator();
+            while (weight > maxWeight && it.hasNext()) {
+                Map.Entry<K, V> eldest = it.next();
+                it.remove();
+                weight -= weigher.applyAsInt(eldest.getValue());
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Drops every entry. Dropped entries are not counted as evictions.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    /**
+     * @return number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return total weight of the entries
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return number of lookups that found a value
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of lookups that found nothing
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of entries evicted to make room
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+}
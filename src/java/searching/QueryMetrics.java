@@ -0,0 +1,195 @@
+package searching;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adds up the traces of finished searches into histograms for each search
+ * mode, and writes them in the Prometheus text format. Recording only adds to
+ * striped counters, so searches on many threads do not hold each other up.
+ */
+public class QueryMetrics {
+
+    // prefix of every metric name
+    public final static String PREFIX = "review_search_";
+
+    private final ConcurrentHashMap<String, ModeMetrics> modes = new ConcurrentHashMap<>();
+
+    /**
+     * @param trace trace of a finished search
+     */
+    public void record(QueryTrace trace) {
+        ModeMetrics metrics = modes.get(trace.getMode());
+        if (metrics == null) {
+            modes.putIfAbsent(trace.getMode(), new ModeMetrics());
+            metrics = modes.get(trace.getMode());
+        }
+        metrics.record(trace);
+    }
+
+    /**
+     * Writes the search metrics, modes in name order.
+     * @param out where to write
+     * @throws IOException if writing fails
+     */
+    public void write(Writer out) throws IOException {
+        Map<String, ModeMetrics> sorted = new TreeMap<>(modes);
+
+        header(out, "query_seconds", "histogram", "Time taken by each search.");
+        for (Map.Entry<String, ModeMetrics> entry : sorted.entrySet()) {
+            entry.getValue().total.write(out, PREFIX + "query_seconds", "mode=\"" + entry.getKey() + "\"");
+        }
+        header(out, "query_phase_seconds", "histogram", "Time taken by each phase of a search.");
+        for (Map.Entry<String, ModeMetrics> entry : sorted.entrySet()) {
+            for (QueryTrace.Phase phase : QueryTrace.Phase.values()) {
+                entry.getValue().phases[phase.ordinal()].write(out, PREFIX + "query_phase_seconds",
+                        "mode=\"" + entry.getKey() + "\",phase=\"" + phase.label() + "\"");
+            }
+        }
+        header(out, "query_expansion_terms", "histogram", "Terms added to the query by each expansion.");
+        for (Map.Entry<String, ModeMetrics> entry : sorted.entrySet()) {
+            entry.getValue().expansionTerms.write(out, PREFIX + "query_expansion_terms", "mode=\"" + entry.getKey() + "\"");
+        }
+        header(out, "query_dropped_clauses_total", "counter", "Expansion clauses left out at the clause limit.");
+        for (Map.Entry<String, ModeMetrics> entry : sorted.entrySet()) {
+            sample(out, "query_dropped_clauses_total", "mode=\"" + entry.getKey() + "\"", entry.getValue().droppedClauses.sum());
+        }
+        header(out, "query_expansion_decisions_total", "counter", "Adaptive searches by how they expanded their query.");
+        for (Map.Entry<String, ModeMetrics> entry : sorted.entrySet()) {
+            for (ExpansionDecision.Action action : ExpansionDecision.Action.values()) {
+                sample(out, "query_expansion_decisions_total", "mode=\"" + entry.getKey() + "\",decision=\""
+                        + action.label() + "\"", entry.getValue().decisions[action.ordinal()].sum());
+            }
+        }
+        header(out, "query_hits", "histogram", "Hits fetched by each search.");
+        for (Map.Entry<String, ModeMetrics> entry : sorted.entrySet()) {
+            entry.getValue().hits.write(out, PREFIX + "query_hits", "mode=\"" + entry.getKey() + "\"");
+        }
+    }
+
+    /**
+     * Writes the HELP and TYPE lines of a metric.
+     * @param out where to write
+     * @param name metric name without the prefix
+     * @param type counter, gauge or histogram
+     * @param help description of the metric
+     * @throws IOException if writing fails
+     */
+    public static void header(Writer out, String name, String type, String help) throws IOException {
+        out.write("# HELP " + PREFIX + name + " " + help + "\n");
+        out.write("# TYPE " + PREFIX + name + " " + type + "\n");
+    }
+
+    /**
+     * Writes one sample of a metric.
+     * @param out where to write
+     * @param name metric name without the prefix
+     * @param labels labels as name="value" separated by commas, empty for none
+     * @param value value of the sample
+     * @throws IOException if writing fails
+     */
+    public static void sample(Writer out, String name, String labels, double value) throws IOException {
+        out.write(PREFIX + name + (labels.isEmpty() ? "" : "{" + labels + "}") + " " + format(value) + "\n");
+    }
+
+    // whole numbers without a fraction, as counts usually are, and no exponents
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return String.valueOf((long) value);
+        }
+        return BigDecimal.valueOf(value).toPlainString();
+    }
+
+    /**
+     * Histograms and counters of one search mode.
+     */
+    private static class ModeMetrics {
+
+        private final Histogram total = new Histogram(SearchConstants.METRICS_SECONDS_BUCKETS);
+        private final Histogram[] phases = new Histogram[QueryTrace.Phase.values().length];
+        private final Histogram expansionTerms = new Histogram(SearchConstants.METRICS_COUNT_BUCKETS);
+        private final Histogram hits = new Histogram(SearchConstants.METRICS_COUNT_BUCKETS);
+        private final LongAdder droppedClauses = new LongAdder();
+        private final LongAdder[] decisions = new LongAdder[ExpansionDecision.Action.values().length];
+
+        public ModeMetrics() {
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new Histogram(SearchConstants.METRICS_SECONDS_BUCKETS);
+            }
+            for (int i = 0; i < decisions.length; i++) {
+                decisions[i] = new LongAdder();
+            }
+        }
+
+        public void record(QueryTrace trace) {
+            total.observe(trace.getTotalNanos() / 1e9);
+            for (QueryTrace.Phase phase : QueryTrace.Phase.values()) {
+                phases[phase.ordinal()].observe(trace.getPhaseNanos(phase) / 1e9);
+            }
+            if (trace.getExpansionTerms() >= 0) {
+                expansionTerms.observe(trace.getExpansionTerms());
+                droppedClauses.add(trace.getDroppedClauses());
+            }
+            if (trace.getDecision() != null) {
+                decisions[trace.getDecision().getAction().ordinal()].increment();
+            }
+            hits.observe(trace.getHits());
+        }
+    }
+
+    /**
+     * A Prometheus histogram: counts of the values up to each bucket bound,
+     * their sum and their number.
+     */
+    private static class Histogram {
+
+        private final double[] bounds;
+        // one counter per bucket, the last for values above every bound
+        private final LongAdder[] counts;
+        private final DoubleAdder sum = new DoubleAdder();
+
+        /**
+         * @param bounds upper bounds of the buckets, ascending
+         */
+        public Histogram(double[] bounds) {
+            this.bounds = bounds;
+            counts = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        public void observe(double value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+            counts[bucket].increment();
+            sum.add(value);
+        }
+
+        /**
+         * Writes the cumulative buckets, sum and count.
+         * @param out where to write
+         * @param name full metric name
+         * @param labels labels of the histogram as name="value" separated by commas
+         * @throws IOException if writing fails
+         */
+        public void write(Writer out, String name, String labels) throws IOException {
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i].sum();
+                String le = (i < bounds.length) ? format(bounds[i]) : "+Inf";
+                out.write(name + "_bucket{" + labels + ",le=\"" + le + "\"} " + cumulative + "\n");
+            }
+            out.write(name + "_sum{" + labels + "} " + format(sum.sum()) + "\n");
+            out.write(name + "_count{" + labels + "} " + cumulative + "\n");
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package searching;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A fixed number of worker threads with a fixed length queue for running
+ * queries. When every worker is busy and the queue is full, new queries are
+ * rejected right away instead of waiting.
+ */
+public class QueryPool {
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     *
+     * @param name name of the pool, used for thread names and errors
+     * @param threads maximum number of queries running at the same time
+     * @param queueDepth maximum number of queries waiting for a worker
+     */
+    public QueryPool(String name, int threads, int queueDepth) {
+        this.name = name;
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueDepth), daemonThreads(name),
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs a query on the pool. If the pool is full the returned future is
+     * already completed with a QueryRejectedException.
+     *
+     * @param <T> result type
+     * @param query query to run
+     * @return future holding the query result
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> query) {
+        try {
+            return CompletableFuture.supplyAsync(query, executor);
+        } catch (RejectedExecutionException ex) {
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new QueryRejectedException(name + " is full: "
+                    + executor.getActiveCount() + " running, " + executor.getQueue().size() + " waiting"));
+            return rejected;
+        }
+    }
+
+    /**
+     * Returns the number of queries running right now.
+     * @return number of busy workers
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Returns the number of queries waiting for a worker.
+     * @return queue length
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stops accepting queries. Queries already accepted are still run.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Creates numbered daemon threads, so idle workers never keep the program running.
+     *
+     * @param name name prefix for the threads
+     * @return thread factory
+     */
+    public static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,14 @@
+package searching;
+
+/**
+ * Thrown when a query pool is full and can not accept another query.
+ */
+public class QueryRejectedException extends RuntimeException {
+
+    /**
+     * @param message description of the pool that rejected the query
+     */
+    public QueryRejectedException(String message) {
+        super(message);
+    }
+}
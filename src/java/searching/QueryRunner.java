@@ -10,13 +10,28 @@
 package searching;
 
 import indexing.IndexConstants;
+import indexing.IndexGenerator;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import models.Book;
 import models.Review;
 import org.apache.lucene.analysis.Analyzer;
@@ -24,24 +39,31 @@ import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.en.EnglishAnalyzer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.CollectorManager;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermStatistics;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
 import org.apache.lucene.search.similarities.BM25Similarity;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
 
 /**
  *
@@ -51,69 +73,355 @@ public class QueryRunner {
     // Stores a query runner so that do not have to initialize twice.
     private static QueryRunner qRunner = null;
     
-    // review searcher
-    private IndexSearcher rSearcher;
-    // book searcher
-    private IndexSearcher bSearcher;
-    // filtered review searcher
-    private IndexSearcher filteredSearcher;
+    // threads the indexes are opened on, each index opens on its own thread
+    private final ExecutorService openPool = Executors.newCachedThreadPool(QueryPool.daemonThreads("index-open"));
+    // review index
+    private final LazyIndex reviewIndex;
+    // book index
+    private final LazyIndex bookIndex;
+    // reviews of known books, a view over the review index
+    private final LazyIndex filteredIndex;
+    // counts index reopens that found changes, cached results are tied to it
+    private final AtomicLong generation = new AtomicLong();
+    // a refresh holds the write lock so searchers are always acquired
+    // together with the generation they belong to
+    private final ReadWriteLock refreshLock = new ReentrantReadWriteLock();
+    // top hits of recent searches, weighed by number of hits
+    private final QueryCache<List<Object>, ScoreDoc[]> resultCache =
+            new QueryCache<>(SearchConstants.RESULT_CACHE_MAX_HITS, hits -> hits.length + 1);
+    // expanded PRF/Rocchio queries, weighed by number of clauses. These do not
+    // depend on the number of results, so a search for more or fewer results
+    // only has to run the final query.
+    private final QueryCache<List<Object>, BooleanQuery> expansionCache =
+            new QueryCache<>(SearchConstants.EXPANSION_CACHE_MAX_CLAUSES, query -> query.clauses().size() + 1);
+    // expansion decisions of adaptive searches, so a repeated search does not
+    // run its initial search again just to decide
+    private final QueryCache<List<Object>, ExpansionDecision> decisionCache =
+            new QueryCache<>(SearchConstants.DECISION_CACHE_MAX_ENTRIES, decision -> 1);
+    // facet counts of recent searches, weighed by number of values
+    private final QueryCache<List<Object>, FacetCounts> facetCache =
+            new QueryCache<>(SearchConstants.FACET_CACHE_MAX_VALUES, counts -> counts.size() + 1);
+    // searches running right now, identical searches arriving meanwhile wait
+    // for the running one instead of starting their own
+    private final SingleFlight<List<Object>, ScoreDoc[]> searchesInFlight = new SingleFlight<>();
+    private final SingleFlight<List<Object>, FacetCollectorManager.FacetedHits> facetedInFlight = new SingleFlight<>();
+    // subjects of each book for the current book searcher, for subject counts
+    private volatile BookSubjects bookSubjects;
+    // query analyzer, tokenizes, stems and removes stop words the same way as the index
+    private final Analyzer analyzer = new EnglishAnalyzer();
+    // phase times and sizes of finished searches, for the metrics servlet
+    private final QueryMetrics metrics = new QueryMetrics();
+    // searches slower than SearchConstants.SLOW_QUERY_MILLIS, null for no log
+    private final SlowQueryLog slowLog = SlowQueryLog.open(SearchConstants.SLOW_QUERY_LOG);
+    // replays logged searches on the review searchers when they are first opened
+    private final SearchWarmer warmer = SearchWarmer.fromLog(SearchConstants.WARMUP_QUERY_LOG,
+            SearchConstants.WARMUP_MAX_SEARCHES);
+    // threads for searching the segments of one query in parallel
+    private final ExecutorService segmentPool = Executors.newFixedThreadPool(SearchConstants.SEGMENT_SEARCH_THREADS,
+            QueryPool.daemonThreads("segment-search"));
+    // workers for the async simple searches
+    private final QueryPool simplePool = new QueryPool("simple-query",
+            SearchConstants.SIMPLE_QUERY_THREADS, SearchConstants.SIMPLE_QUERY_QUEUE_DEPTH);
+    // workers for the async PRF and Rocchio searches
+    private final QueryPool expansionPool = new QueryPool("expansion-query",
+            SearchConstants.EXPANSION_QUERY_THREADS, SearchConstants.EXPANSION_QUERY_QUEUE_DEPTH);
 
     /**
      * Returns a QueryRunner instance.
      * @return 
      */
-    public static QueryRunner getQueryRunner() {
+    public static synchronized QueryRunner getQueryRunner() {
         if(qRunner == null) {
-            qRunner = new QueryRunner(IndexConstants.INDEX_LOCATION, IndexConstants.BOOK_INDEX_LOCATION, IndexConstants.FILTERED_INDEX_LOCATION);
+            qRunner = new QueryRunner(IndexConstants.INDEX_LOCATION, IndexConstants.BOOK_INDEX_LOCATION);
         }
         
         return qRunner;
     }
     
     /**
-     * 
+     * The indexes are opened in the background, each on its own thread, and
+     * the constructor returns right away. A search waits for the indexes it
+     * uses. The book and filtered indexes can be left until a search first
+     * needs them. The filtered reviews are a view over the review index,
+     * keeping the reviews whose ASIN is in the book index. Outside of
+     * getQueryRunner only the benchmarks open their own QueryRunner, on a
+     * fixture index.
      * @param indexPath path to review index
      * @param bookIndexPath path to book index
      */
-    private QueryRunner(String indexPath, String bookIndexPath) {
-        try {
-            System.out.println("Loading index...");
-            File indexFile = new File(indexPath);
-            Directory dir = FSDirectory.open(indexFile.toPath());
-            IndexReader reader = DirectoryReader.open(dir);
-            rSearcher = new IndexSearcher(reader);
-            rSearcher.setSimilarity(new BM25Similarity());
-            System.out.println(rSearcher.collectionStatistics(IndexConstants.ASIN).docCount());
-
-            File bindexFile = new File(bookIndexPath);
-            Directory bdir = FSDirectory.open(bindexFile.toPath());
-            IndexReader breader = DirectoryReader.open(bdir);
-            bSearcher = new IndexSearcher(breader);
-            bSearcher.setSimilarity(new BM25Similarity());
-            System.out.println(bSearcher.collectionStatistics(IndexConstants.ASIN).docCount());
+    QueryRunner(String indexPath, String bookIndexPath) {
+        System.out.println("Loading index...");
+        reviewIndex = new LazyIndex("review", () -> openIndex(indexPath,
+                new BM25SearcherFactory(parallel(indexPath, SearchConstants.REVIEW_PARALLEL_SEGMENTS),
+                        SearchConstants.REVIEW_SLICE_MAX_DOCS, SearchConstants.REVIEW_SLICE_MAX_SEGMENTS, warmer)), openPool);
+        bookIndex = new LazyIndex("book", () -> openIndex(bookIndexPath,
+                new BM25SearcherFactory(SearchConstants.BOOK_PARALLEL_SEGMENTS ? segmentPool : null,
+                        SearchConstants.BOOK_SLICE_MAX_DOCS, SearchConstants.BOOK_SLICE_MAX_SEGMENTS, null)), openPool);
+        filteredIndex = new LazyIndex("filtered", () -> openFiltered(
+                new BM25SearcherFactory(parallel(indexPath, SearchConstants.FILTERED_PARALLEL_SEGMENTS),
+                        SearchConstants.FILTERED_SLICE_MAX_DOCS, SearchConstants.FILTERED_SLICE_MAX_SEGMENTS, warmer)), openPool);
 
-        } catch (IOException ex) {
-            System.err.println("Error opening index: " + ex.getMessage());
+        reviewIndex.start();
+        if (!SearchConstants.LAZY_BOOK_INDEX) {
+            bookIndex.start();
+        }
+        if (!SearchConstants.LAZY_FILTERED_INDEX) {
+            filteredIndex.start();
         }
     }
 
     /**
-     * 
-     * @param indexPath path to review index
-     * @param bookIndexPath path to book index
-     * @param filteredIndexPath path to filtered review index
+     * Picks the executor for searching a review index. A sharded index is
+     * always searched in parallel, one shard next to the other.
+     * @param indexPath path to the review index
+     * @param parallelSegments whether the index searches segments in parallel
+     * @return executor, null to search segments one by one
+     */
+    private ExecutorService parallel(String indexPath, boolean parallelSegments) {
+        return (parallelSegments || shardDirectories(new File(indexPath)).size() > 0) ? segmentPool : null;
+    }
+
+    /**
+     * Returns the shard directories of a review index split by IndexGenerator.
+     * @param indexFile index directory
+     * @return shard directories in shard order, empty if the index is not sharded
+     */
+    private static List<File> shardDirectories(File indexFile) {
+        List<File> shards = new ArrayList<>();
+        File shard;
+        while ((shard = IndexGenerator.shardDirectory(indexFile, shards.size())).isDirectory()) {
+            shards.add(shard);
+        }
+        return shards;
+    }
+
+    /**
+     * Opens an index. A sharded index is opened as one index over all of its
+     * shards.
+     * @param indexPath path to the index
+     * @param searcherFactory creates the searchers for the index
+     * @return manager handing out searchers for the index
+     * @throws IOException if the index could not be opened
+     */
+    private ReferenceManager<IndexSearcher> openIndex(String indexPath, SearcherFactory searcherFactory) throws IOException {
+        File indexFile = new File(indexPath);
+        List<File> shardFiles = shardDirectories(indexFile);
+        ReferenceManager<IndexSearcher> manager;
+        if (shardFiles.isEmpty()) {
+            manager = new SearcherManager(IndexDirectories.open(indexFile.toPath()), searcherFactory);
+        } else {
+            Directory[] shards = new Directory[shardFiles.size()];
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = IndexDirectories.open(shardFiles.get(i).toPath());
+            }
+            manager = new ShardedSearcherManager(shards, searcherFactory);
+        }
+        track(manager);
+        return manager;
+    }
+
+    /**
+     * Opens the filtered reviews over the review and book indexes, opening
+     * the book index first if it is not open yet.
+     * @param searcherFactory creates the searchers over the filtered reviews
+     * @return manager handing out filtered searchers
+     * @throws IOException if the review or book index could not be opened
+     */
+    private ReferenceManager<IndexSearcher> openFiltered(SearcherFactory searcherFactory) throws IOException {
+        // the book index opens while this waits for the reviews
+        bookIndex.start();
+        ReferenceManager<IndexSearcher> rManager = reviewIndex.get();
+        ReferenceManager<IndexSearcher> bManager = bookIndex.get();
+        if (rManager == null || bManager == null) {
+            throw new IOException("the " + ((rManager == null) ? "review" : "book") + " index is not open");
+        }
+        ReferenceManager<IndexSearcher> manager = new FilteredSearcherManager(rManager, bManager, searcherFactory);
+        track(manager);
+        return manager;
+    }
+
+    /**
+     * @param filtered true: filtered reviews, false: unfiltered reviews
+     * @return review index searched
      */
-    private QueryRunner(String indexPath, String bookIndexPath, String filteredIndexPath) {
-        this(indexPath, bookIndexPath);
+    private LazyIndex reviewIndex(boolean filtered) {
+        return filtered ? filteredIndex : reviewIndex;
+    }
+
+    /**
+     * @param facets facets a search counts
+     * @return book index if subjects are counted, otherwise the review index
+     */
+    private LazyIndex subjectIndex(Set<Facet> facets) {
+        return facets.contains(Facet.SUBJECT) ? bookIndex : reviewIndex;
+    }
+
+    /**
+     * Counts the reopens of a manager that found changes in the index generation.
+     * @param manager manager to watch
+     */
+    private void track(ReferenceManager<IndexSearcher> manager) {
+        manager.addListener(new ReferenceManager.RefreshListener() {
+            @Override
+            public void beforeRefresh() {
+            }
+
+            @Override
+            public void afterRefresh(boolean didRefresh) {
+                if (didRefresh) {
+                    generation.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Reopens every index that changed since it was last opened. Searches
+     * already running finish on the old searchers. Cached results from before
+     * the reopen are dropped.
+     * @throws IOException 
+     */
+    public void refresh() throws IOException {
+        refreshLock.writeLock().lock();
         try {
-            File indexFile = new File(filteredIndexPath);
-            Directory dir = FSDirectory.open(indexFile.toPath());
-            IndexReader reader = DirectoryReader.open(dir);
-            filteredSearcher = new IndexSearcher(reader);
-            filteredSearcher.setSimilarity(new BM25Similarity());
-            System.out.println(filteredSearcher.collectionStatistics(IndexConstants.ASIN).docCount());
-        } catch (IOException ex) {
-            System.err.println("Error opening index: " + ex.getMessage());
+            long before = generation.get();
+            // the filtered view goes last, over the refreshed reviews and books.
+            // An index still opening is waited for, one started after its turn
+            // here opens over the refreshed indexes anyway.
+            for (LazyIndex index : Arrays.asList(reviewIndex, bookIndex, filteredIndex)) {
+                ReferenceManager<IndexSearcher> manager = index.getIfStarted();
+                if (manager != null) {
+                    manager.maybeRefreshBlocking();
+                }
+            }
+            if (generation.get() != before) {
+                resultCache.clear();
+                expansionCache.clear();
+                decisionCache.clear();
+                facetCache.clear();
+            }
+        } finally {
+            refreshLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the review, book and filtered indexes, for how far each of them
+     * got in opening.
+     * @return indexes in that order
+     */
+    public List<LazyIndex> getIndexes() {
+        return Arrays.asList(reviewIndex, bookIndex, filteredIndex);
+    }
+
+    /**
+     * Returns whether searches can run, which only needs the review index.
+     * @return true once the review index is open
+     */
+    public boolean isReady() {
+        return reviewIndex.getState() == LazyIndex.State.OPEN;
+    }
+
+    /**
+     * Returns the cache of search results, for its hit, miss and eviction counts.
+     * @return result cache
+     */
+    public QueryCache<?, ?> getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Returns the cache of expanded PRF/Rocchio queries, for its hit, miss and
+     * eviction counts.
+     * @return expanded query cache
+     */
+    public QueryCache<?, ?> getExpansionCache() {
+        return expansionCache;
+    }
+
+    /**
+     * Returns the cache of expansion decisions of adaptive searches, for its
+     * hit, miss and eviction counts.
+     * @return expansion decision cache
+     */
+    public QueryCache<?, ?> getDecisionCache() {
+        return decisionCache;
+    }
+
+    /**
+     * Returns the cache of facet counts, for its hit, miss and eviction counts.
+     * @return facet count cache
+     */
+    public QueryCache<?, ?> getFacetCache() {
+        return facetCache;
+    }
+
+    /**
+     * Returns the number of searches that waited for an identical search
+     * already running instead of running themselves.
+     * @return number of coalesced searches
+     */
+    public long getCoalescedCount() {
+        return searchesInFlight.getCoalescedCount();
+    }
+
+    /**
+     * Returns the phase times and sizes of the searches run so far.
+     * @return search metrics
+     */
+    public QueryMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the slow query log.
+     * @return slow query log, null if there is none
+     */
+    public SlowQueryLog getSlowQueryLog() {
+        return slowLog;
+    }
+
+    /**
+     * Starts tracing a search on this thread, if search metrics or the slow
+     * query log are on.
+     * @param mode search mode, as labeled in the metrics
+     * @param text query text
+     * @param config rocchio configuration, null for a simple search
+     * @param filtered true if the filtered reviews are searched
+     * @return trace to pass to endTrace, null if searches are not traced
+     */
+    private QueryTrace beginTrace(String mode, String text, RocchioConfig config, boolean filtered) {
+        return (SearchConstants.QUERY_METRICS || slowLog != null) ? QueryTrace.begin(mode, text, config, filtered) : null;
+    }
+
+    /**
+     * Ends the trace of a search, adds it to the metrics and logs it if the
+     * search was slow.
+     * @param trace trace from beginTrace, may be null
+     */
+    private void endTrace(QueryTrace trace) {
+        if (trace != null) {
+            trace.end();
+            if (SearchConstants.QUERY_METRICS) {
+                metrics.record(trace);
+            }
+            if (slowLog != null && trace.getTotalNanos() >= SearchConstants.SLOW_QUERY_MILLIS * 1000000L) {
+                slowLog.log(trace);
+            }
+        }
+    }
+
+    /**
+     * Caches part of a search unless the indexes were reopened while it ran.
+     * @param <V> cached value type
+     * @param cache cache to put the value in
+     * @param key search key, including the generation it ran on
+     * @param searchers searchers the search ran on
+     * @param value value to cache
+     */
+    private <V> void cacheIfCurrent(QueryCache<List<Object>, V> cache, List<Object> key, Searchers searchers, V value) {
+        if (searchers.generation == generation.get()) {
+            cache.put(key, value);
         }
     }
 
@@ -123,24 +431,83 @@ public class QueryRunner {
      * @param field query field
      * @param n number of results to return
      * @param and true = use AND, false = use OR
-     * @param searcher searcher to use
+     * @param filtered true: search in filtered reviews, false: search in unfiltered reviews
      * @return list of reviews found in order
      */
-    private List<Review> executeReview(String text, String field, int n, boolean and, IndexSearcher searcher) {
+    private List<Review> executeReview(String text, String field, int n, boolean and, boolean filtered) {
         List<Review> results = new ArrayList<>();
+        executeReview(text, field, n, and, filtered, Collapse.NONE, Collections.<Facet>emptySet(), results::add);
+        return results;
+    }
 
-        try {
-            TopDocs topDocs = execute(text, field, searcher, n, and);
-            for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
-                Document doc = searcher.doc(scoreDoc.doc);
-                results.add(docToReview(doc, scoreDoc));
-            }
-
+    /**
+     * Execute a simple search through reviews, passing each review to the
+     * handler as it is read from the index.
+     * @param text query text
+     * @param field query field
+     * @param n number of results to return
+     * @param and true = use AND, false = use OR
+     * @param filtered true: search in filtered reviews, false: search in unfiltered reviews
+     * @param collapse whether to keep only the best review of each book
+     * @param facets facets to count the reviews found by
+     * @param handler receives the facet counts, then the reviews found in order
+     */
+    private void executeReview(String text, String field, int n, boolean and, boolean filtered, Collapse collapse,
+            Set<Facet> facets, ReviewHandler handler) {
+        try (Searchers searchers = new Searchers(reviewIndex(filtered), subjectIndex(facets))) {
+            executeReview(text, field, n, and, filtered, collapse, facets, searchers, handler, null);
         } catch (IOException ex) {
             System.err.println("IO Error while searching: " + ex.getMessage());
         }
+    }
 
-        return results;
+    /**
+     * Execute a simple search through reviews, sharing work with the other
+     * queries of a batch.
+     * @param text query text
+     * @param field query field
+     * @param n number of results to return
+     * @param and true = use AND, false = use OR
+     * @param filtered true: search in filtered reviews, false: search in unfiltered reviews
+     * @param collapse whether to keep only the best review of each book
+     * @param facets facets to count the reviews found by
+     * @param searchers searchers to use
+     * @param handler receives the facet counts, then the reviews found in order
+     * @param cache work shared with the rest of the batch, null if the query is on its own
+     * @throws IOException 
+     */
+    private void executeReview(String text, String field, int n, boolean and, boolean filtered, Collapse collapse,
+            Set<Facet> facets, Searchers searchers, ReviewHandler handler, BatchCache cache) throws IOException {
+        QueryTrace trace = beginTrace("simple", text, null, filtered);
+        try {
+            IndexSearcher searcher = searchers.reviews(filtered);
+            List<String> tokens = analyze(text, field, cache);
+            List<Object> key = simpleKey(searchers, field, tokens, n, and, filtered, collapse);
+            ScoreDoc[] hits = topHits(key, searchers, searcher, () -> buildQuery(tokens, field, and, searcher, cache),
+                    n, collapse, facets, handler);
+            hydrate(searcher, hits, collapse, handler);
+        } finally {
+            endTrace(trace);
+        }
+    }
+
+    /**
+     * Key of the hits of a simple search, shared by simple searches and
+     * adaptive searches that skip expansion. The hits only depend on the
+     * analyzed query, not the raw text, and group sizes are only counted when
+     * asked for.
+     * @param searchers searchers of the search
+     * @param field query field
+     * @param tokens analyzed query
+     * @param n number of results
+     * @param and true = use AND, false = use OR
+     * @param filtered true: search in filtered reviews, false: search in unfiltered reviews
+     * @param collapse whether to keep only the best review of each book
+     * @return cache key of the hits
+     */
+    private static List<Object> simpleKey(Searchers searchers, String field, List<String> tokens, int n, boolean and,
+            boolean filtered, Collapse collapse) {
+        return Arrays.asList(searchers.generation, "simple", field, tokens, n, and, filtered, collapse);
     }
 
     /**
@@ -152,7 +519,36 @@ public class QueryRunner {
      * @return list of reviews found in order
      */
     public List<Review> executeReview(String text, String field, int n, boolean and) {
-        return executeReview(text, field, n, and, rSearcher);
+        return executeReview(text, field, n, and, false);
+    }
+
+    /**
+     * Execute a simple search on the unfiltered reviews, passing each review
+     * to the handler as it is read from the index.
+     * @param text query text
+     * @param field query field
+     * @param n number of results to return
+     * @param and true = use AND, false = use OR
+     * @param handler receives the reviews found in order
+     */
+    public void executeReview(String text, String field, int n, boolean and, ReviewHandler handler) {
+        executeReview(text, field, n, and, false, Collapse.NONE, Collections.<Facet>emptySet(), handler);
+    }
+
+    /**
+     * Execute a simple search on the unfiltered reviews, passing each review
+     * to the handler as it is read from the index.
+     * @param text query text
+     * @param field query field
+     * @param n number of results to return, books when collapsing
+     * @param and true = use AND, false = use OR
+     * @param collapse whether to keep only the best review of each book
+     * @param facets facets to count the reviews found by
+     * @param handler receives the facet counts, then the reviews found in order
+     */
+    public void executeReview(String text, String field, int n, boolean and, Collapse collapse, Set<Facet> facets,
+            ReviewHandler handler) {
+        executeReview(text, field, n, and, false, collapse, facets, handler);
     }
 
     /**
@@ -164,7 +560,212 @@ public class QueryRunner {
      * @return list of reviews found in order
      */
     public List<Review> executeReviewFiltered(String text, String field, int n, boolean and) {
-        return executeReview(text, field, n, and, filteredSearcher);
+        return executeReview(text, field, n, and, true);
+    }
+
+    /**
+     * Execute a simple search on the unfiltered reviews on the simple query pool.
+     * @param text query text
+     * @param field query field
+     * @param n number of results to return
+     * @param and true = use AND, false = use OR
+     * @return future list of reviews found in order, completed with a
+     * QueryRejectedException if the query pool is full
+     */
+    public CompletableFuture<List<Review>> executeReviewAsync(final String text, final String field, final int n, final boolean and) {
+        return simplePool.submit(() -> executeReview(text, field, n, and));
+    }
+
+    /**
+     * Execute a simple search on the unfiltered reviews on the simple query
+     * pool, passing each review to the handler as it is read from the index.
+     * @param text query text
+     * @param field query field
+     * @param n number of results to return
+     * @param and true = use AND, false = use OR
+     * @param handler receives the reviews found in order, on a pool thread
+     * @return future completed when every review has been handled, or with a
+     * QueryRejectedException if the query pool is full
+     */
+    public CompletableFuture<Void> executeReviewAsync(final String text, final String field, final int n, final boolean and,
+            final ReviewHandler handler) {
+        return executeReviewAsync(text, field, n, and, Collapse.NONE, Collections.<Facet>emptySet(), handler);
+    }
+
+    /**
+     * Execute a simple search on the unfiltered reviews on the simple query
+     * pool, passing each review to the handler as it is read from the index.
+     * @param text query text
+     * @param field query field
+     * @param n number of results to return, books when collapsing
+     * @param and true = use AND, false = use OR
+     * @param collapse whether to keep only the best review of each book
+     * @param facets facets to count the reviews found by
+     * @param handler receives the facet counts, then the reviews found in order, on a pool thread
+     * @return future completed when every review has been handled, or with a
+     * QueryRejectedException if the query pool is full
+     */
+    public CompletableFuture<Void> executeReviewAsync(final String text, final String field, final int n, final boolean and,
+            final Collapse collapse, final Set<Facet> facets, final ReviewHandler handler) {
+        return simplePool.submit(() -> {
+            executeReview(text, field, n, and, collapse, facets, handler);
+            return null;
+        });
+    }
+
+    /**
+     * Finds the top hits of a search and passes the facet counts, if any were
+     * asked for, to the handler. Hits and counts are cached for the index
+     * generation, and identical searches running at the same time share one
+     * computation. Counting goes over the hits in the same pass as finding
+     * the top ones.
+     * @param key search key, including the generation it runs on
+     * @param searchers searchers to use
+     * @param searcher review searcher to search
+     * @param query builds the query, only called if the search has to run
+     * @param n number of hits to return, books when collapsing
+     * @param collapse whether to keep only the best review of each book
+     * @param facets facets to count the reviews found by
+     * @param handler receives the facet counts
+     * @return top hits in order
+     * @throws IOException 
+     */
+    private ScoreDoc[] topHits(List<Object> key, Searchers searchers, IndexSearcher searcher, SingleFlight.Work<Query> query,
+            int n, Collapse collapse, Set<Facet> facets, ReviewHandler handler) throws IOException {
+        ScoreDoc[] hits = resultCache.get(key);
+        if (facets.isEmpty()) {
+            if (hits == null) {
+                hits = searchesInFlight.run(key, () -> {
+                    Query built = query.run();
+                    QueryTrace.searched(built, searcher);
+                    QueryTrace.Phase outer = QueryTrace.enter(QueryTrace.Phase.SEARCH);
+                    try {
+                        ScoreDoc[] found = topHits(searcher, built, n, collapse);
+                        cacheIfCurrent(resultCache, key, searchers, found);
+                        return found;
+                    } finally {
+                        QueryTrace.exit(outer);
+                    }
+                });
+            }
+            QueryTrace.found(hits.length);
+            return hits;
+        }
+
+        List<Object> facetKey = Arrays.asList(key, facets);
+        FacetCounts counts = facetCache.get(facetKey);
+        if (hits == null || counts == null) {
+            FacetCollectorManager.FacetedHits found = facetedInFlight.run(facetKey, () -> {
+                BookSubjects subjects = facets.contains(Facet.SUBJECT) ? subjects(searchers.books) : null;
+                FacetCollectorManager manager = new FacetCollectorManager(facets, subjects, SearchConstants.FACET_MAX_VALUES);
+                Query built = query.run();
+                QueryTrace.searched(built, searcher);
+                QueryTrace.Phase outer = QueryTrace.enter(QueryTrace.Phase.SEARCH);
+                try {
+                    FacetCollectorManager.FacetedHits faceted = manager.search(searcher, built, hitsManager(n, collapse));
+                    cacheIfCurrent(resultCache, key, searchers, faceted.getHits());
+                    cacheIfCurrent(facetCache, facetKey, searchers, faceted.getFacets());
+                    return faceted;
+                } finally {
+                    QueryTrace.exit(outer);
+                }
+            });
+            hits = found.getHits();
+            counts = found.getFacets();
+        }
+        QueryTrace.found(hits.length);
+        handler.handleFacets(counts);
+        return hits;
+    }
+
+    /**
+     * Returns the collector manager finding the top hits of a search. Used
+     * when the hits are collected together with facet counts.
+     * @param n number of hits to return, books when collapsing
+     * @param collapse whether to keep only the best review of each book
+     * @return collector manager for the top hits
+     */
+    private static CollectorManager<?, ? extends ScoreDoc[]> hitsManager(final int n, Collapse collapse) {
+        if (collapse != Collapse.NONE) {
+            return new CollapsingCollectorManager(IndexConstants.ASIN, n, collapse == Collapse.BOOK_WITH_COUNT);
+        }
+        return new CollectorManager<TopScoreDocCollector, ScoreDoc[]>() {
+            @Override
+            public TopScoreDocCollector newCollector() {
+                return TopScoreDocCollector.create(Math.max(1, n));
+            }
+
+            @Override
+            public ScoreDoc[] reduce(Collection<TopScoreDocCollector> collectors) {
+                // merged in slice order, so ties come out as in a plain search
+                TopDocs[] topDocs = new TopDocs[collectors.size()];
+                int i = 0;
+                for (TopScoreDocCollector collector : collectors) {
+                    topDocs[i++] = collector.topDocs();
+                }
+                return TopDocs.merge(n, topDocs).scoreDocs;
+            }
+        };
+    }
+
+    /**
+     * Returns the subjects of each book for the current book searcher.
+     * @param books book searcher, null if the book index is not open
+     * @return subjects of each book, null without a book index
+     * @throws IOException 
+     */
+    private BookSubjects subjects(IndexSearcher books) throws IOException {
+        if (books == null) {
+            return null;
+        }
+        BookSubjects current = bookSubjects;
+        if (current == null || current.getBooks() != books.getIndexReader()) {
+            current = new BookSubjects(books.getIndexReader());
+            bookSubjects = current;
+        }
+        return current;
+    }
+
+    /**
+     * Runs a search for its top hits.
+     * @param searcher searcher to use
+     * @param query query to run
+     * @param n number of hits to return, books when collapsing
+     * @param collapse whether to keep only the best review of each book
+     * @return top hits in order, GroupScoreDocs when collapsing
+     * @throws IOException 
+     */
+    private static ScoreDoc[] topHits(IndexSearcher searcher, Query query, int n, Collapse collapse) throws IOException {
+        if (collapse == Collapse.NONE) {
+            return searcher.search(query, n).scoreDocs;
+        }
+        return searcher.search(query, new CollapsingCollectorManager(IndexConstants.ASIN, n,
+                collapse == Collapse.BOOK_WITH_COUNT));
+    }
+
+    /**
+     * Reads each result from the index and passes it to the handler as a Review.
+     * @param searcher searcher the results came from
+     * @param scoreDocs results in order
+     * @param collapse how the results were collapsed, for whether to pass on the counts
+     * @param handler receives the reviews
+     * @throws IOException 
+     */
+    private void hydrate(IndexSearcher searcher, ScoreDoc[] scoreDocs, Collapse collapse, ReviewHandler handler)
+            throws IOException {
+        QueryTrace.Phase outer = QueryTrace.enter(QueryTrace.Phase.HYDRATION);
+        try {
+            for (ScoreDoc scoreDoc : scoreDocs) {
+                Document doc = searcher.doc(scoreDoc.doc);
+                Review review = docToReview(doc, scoreDoc);
+                if (collapse == Collapse.BOOK_WITH_COUNT && scoreDoc instanceof GroupScoreDoc) {
+                    review.setGroupSize(((GroupScoreDoc) scoreDoc).groupSize);
+                }
+                handler.handle(review);
+            }
+        } finally {
+            QueryTrace.exit(outer);
+        }
     }
 
     /**
@@ -199,19 +800,35 @@ public class QueryRunner {
      * @return list of reviews found in order
      */
     public List<Book> executeBook(String text, String field, int n, boolean and) {
-        List<Book> results = new ArrayList<>();
-
-        try {
-            TopDocs topDocs = execute(text, field, bSearcher, n, and);
-            for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
-                Document doc = bSearcher.doc(scoreDoc.doc);
-                results.add(docToBook(doc));
-            }
-
+        try (Searchers searchers = new Searchers(bookIndex)) {
+            return executeBook(text, field, n, and, searchers.books, null);
         } catch (IOException ex) {
             System.err.println("IO Error while searching: " + ex.getMessage());
         }
 
+        return new ArrayList<>();
+    }
+
+    /**
+     * Execute a simple search on the books, sharing work with the other
+     * queries of a batch.
+     * @param text query text
+     * @param field query field
+     * @param n number of results to return
+     * @param and true = use AND, false = use OR
+     * @param bSearcher book searcher to use
+     * @param cache work shared with the rest of the batch, null if the query is on its own
+     * @return list of books found in order
+     * @throws IOException 
+     */
+    private List<Book> executeBook(String text, String field, int n, boolean and, IndexSearcher bSearcher, BatchCache cache)
+            throws IOException {
+        List<Book> results = new ArrayList<>();
+        TopDocs topDocs = execute(text, field, bSearcher, n, and, cache);
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            Document doc = bSearcher.doc(scoreDoc.doc);
+            results.add(docToBook(doc));
+        }
         return results;
     }
 
@@ -221,11 +838,11 @@ public class QueryRunner {
      * @return true: the ASIN is in the index
      */
     public boolean checkASIN(String text) {
-        try {
+        try (Searchers searchers = new Searchers(bookIndex)) {
             BooleanQuery.Builder builder = new BooleanQuery.Builder();
             TermQuery tq = new TermQuery(new Term(IndexConstants.ASIN, text.trim()));
             builder.add(tq, BooleanClause.Occur.MUST);
-            TopDocs topDocs = bSearcher.search(builder.build(), 1);
+            TopDocs topDocs = searchers.books.search(builder.build(), 1);
             if (topDocs.totalHits > 0) {
                 return true;
             }
@@ -243,12 +860,12 @@ public class QueryRunner {
      * @return true if an ASIN with the subject exists in the index
      */
     public boolean checkSubject(String asin, String text) {
-        try {
+        try (Searchers searchers = new Searchers(bookIndex)) {
             BooleanQuery.Builder builder = new BooleanQuery.Builder();
             TermQuery tq = new TermQuery(new Term(IndexConstants.ASIN, asin.trim()));
             builder.add(tq, BooleanClause.Occur.MUST);
             builder.add(buildQuery(text, IndexConstants.SUBJECT, false), BooleanClause.Occur.MUST);
-            TopDocs topDocs = bSearcher.search(builder.build(), 1);
+            TopDocs topDocs = searchers.books.search(builder.build(), 1);
             if (topDocs.totalHits > 0) {
                 return true;
             }
@@ -259,6 +876,48 @@ public class QueryRunner {
         return false;
     }
 
+    /**
+     * Finds every book with a subject matching the subject query, the same
+     * books checkSubject accepts.
+     * @param text subject query
+     * @return ASINs of the matching books
+     */
+    public Set<String> subjectAsins(String text) {
+        Set<String> asins = new HashSet<>();
+        try (Searchers searchers = new Searchers(bookIndex)) {
+            BooleanQuery query = buildQuery(text, IndexConstants.SUBJECT, false);
+            int count = searchers.books.count(query);
+            TopDocs topDocs = searchers.books.search(query, Math.max(1, count));
+            for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+                asins.add(docToBook(searchers.books.doc(scoreDoc.doc)).getAsin());
+            }
+        } catch (IOException ex) {
+            System.err.println("IO Error while searching: " + ex.getMessage());
+        }
+
+        return asins;
+    }
+
+    /**
+     * Counts the reviews of some books.
+     * @param asins ASINs of the books
+     * @param filtered true: count in filtered reviews, false: count in unfiltered reviews
+     * @return number of reviews of the books
+     */
+    public int countReviews(Collection<String> asins, boolean filtered) {
+        int count = 0;
+        try (Searchers searchers = new Searchers(reviewIndex(filtered))) {
+            IndexSearcher searcher = searchers.reviews(filtered);
+            for (String asin : asins) {
+                count += docFreq(new Term(IndexConstants.ASIN, asin), searcher, null);
+            }
+        } catch (IOException ex) {
+            System.err.println("IO Error while searching: " + ex.getMessage());
+        }
+
+        return count;
+    }
+
     /**
      * Convert a Lucene Document to a Book.
      * @param doc Document to convert
@@ -305,160 +964,338 @@ public class QueryRunner {
      * @return List of top reviews
      */
     public List<Review> rocchio(String text, String field, int n, RocchioConfig config, boolean filtered, boolean fromBooks) {
-        int x = config.getX();
-        int r = config.getR();
-        float alpha = config.getAlpha();
-        float beta = config.getBeta();
-
-        // intermediate results
         List<Review> results = new ArrayList<>();
-        IndexSearcher searcher = filtered ? filteredSearcher : rSearcher;
-
-        if (fromBooks) {
-            List<Book> books;
-            
-            // book subject search
-            books = executeBook(text, IndexConstants.SUBJECT, r, false);
-            for (Book book : books) {
-                try {
-                    // run review search for top review for this book
-                    TermQuery tq = new TermQuery(new Term(IndexConstants.ASIN, book.getAsin().trim()));
-                    TopDocs topDocs = searcher.search(tq, 1);
-                
-                    // if the review exists (which it should) add it to the results
-                    if (topDocs.totalHits > 0) {
-                        results.add(docToReview(searcher.doc(topDocs.scoreDocs[0].doc), topDocs.scoreDocs[0]));
+        rocchio(text, field, n, config, filtered, fromBooks, results::add);
+        return results;
+    }
+
+    /**
+     * Run a Rocchio search. If x > 0 in config, run a PRF search. Each of the
+     * top reviews is passed to the handler as it is read from the index.
+     * @param text Free text query.
+     * @param field field to run query on
+     * @param n number of results to return
+     * @param config rocchio configuration
+     * @param filtered true: use filtered review set. false: use unfiltered
+     * review set.
+     * @param fromBooks true: use book subject search and reviews of those books for expansion
+     * @param handler receives the top reviews in order
+     */
+    public void rocchio(String text, String field, int n, RocchioConfig config, boolean filtered, boolean fromBooks,
+            ReviewHandler handler) {
+        rocchio(text, field, n, config, filtered, fromBooks, Collapse.NONE, Collections.<Facet>emptySet(), handler);
+    }
+
+    /**
+     * Run a Rocchio search. If x > 0 in config, run a PRF search. Each of the
+     * top reviews is passed to the handler as it is read from the index.
+     * @param text Free text query.
+     * @param field field to run query on
+     * @param n number of results to return, books when collapsing
+     * @param config rocchio configuration
+     * @param filtered true: use filtered review set. false: use unfiltered
+     * review set.
+     * @param fromBooks true: use book subject search and reviews of those books for expansion
+     * @param collapse whether to keep only the best review of each book
+     * @param facets facets to count the reviews found by
+     * @param handler receives the facet counts, then the top reviews in order
+     */
+    public void rocchio(String text, String field, int n, RocchioConfig config, boolean filtered, boolean fromBooks,
+            Collapse collapse, Set<Facet> facets, ReviewHandler handler) {
+        try (Searchers searchers = new Searchers(reviewIndex(filtered), fromBooks ? bookIndex : reviewIndex,
+                subjectIndex(facets))) {
+            rocchio(text, field, n, config, filtered, fromBooks, collapse, facets, searchers, handler, null);
+        } catch (IOException ex) {
+            System.err.println("IO Error while searching: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Run a Rocchio search, sharing work with the other queries of a batch.
+     * The expanded query is cached for the index generation. An adaptive
+     * search first decides from its initial results whether to expand at all
+     * and from how many of them, and tells the handler before anything else.
+     * Searches expanding from books always expand as configured.
+     * @param text Free text query.
+     * @param field field to run query on
+     * @param n number of results to return
+     * @param config rocchio configuration
+     * @param filtered true: use filtered review set. false: use unfiltered
+     * review set.
+     * @param fromBooks true: use book subject search and reviews of those books for expansion
+     * @param collapse whether to keep only the best review of each book
+     * @param facets facets to count the reviews found by
+     * @param searchers searchers to use
+     * @param handler receives the facet counts, then the top reviews in order
+     * @param cache work shared with the rest of the batch, null if the query is on its own
+     * @throws IOException 
+     */
+    private void rocchio(String text, String field, int n, RocchioConfig config, boolean filtered, boolean fromBooks,
+            Collapse collapse, Set<Facet> facets, Searchers searchers, ReviewHandler handler, BatchCache cache)
+            throws IOException {
+        QueryTrace trace = beginTrace(((config.getX() > 0) ? "prf" : "rocchio") + (fromBooks ? "_books" : ""),
+                text, config, filtered);
+        try {
+            IndexSearcher searcher = searchers.reviews(filtered);
+            List<String> tokens = analyze(text, field, cache);
+            RocchioConfig expansion = config;
+            // intermediate results already found while deciding, null to search for them
+            List<ScoreDoc> feedback = null;
+            if (config.isAdaptive() && !fromBooks) {
+                List<Object> decisionKey = Arrays.asList(searchers.generation, "decision", field, tokens, filtered,
+                        config.getX(), config.getR());
+                ExpansionDecision decision = decisionCache.get(decisionKey);
+                TopDocs initial = null;
+                if (decision == null) {
+                    initial = initialResults(text, field, Math.max(config.getR(), n), filtered, searchers, cache);
+                    decision = decide(tokens, field, initial, config, searcher, cache);
+                    cacheIfCurrent(decisionCache, decisionKey, searchers, decision);
+                }
+                QueryTrace.decided(decision);
+                handler.handleExpansion(decision);
+
+                List<Object> simpleKey = simpleKey(searchers, field, tokens, n, false, filtered, collapse);
+                if (decision.getAction() == ExpansionDecision.Action.SKIPPED) {
+                    // the initial search is the simple search, and found at least n hits
+                    if (initial != null && collapse == Collapse.NONE) {
+                        cacheIfCurrent(resultCache, simpleKey, searchers,
+                                Arrays.copyOf(initial.scoreDocs, Math.min(n, initial.scoreDocs.length)));
                     }
-                } catch (IOException ex) {
-                    System.err.println("IO Error while searching: " + ex.getMessage());
+                    ScoreDoc[] hits = topHits(simpleKey, searchers, searcher,
+                            () -> buildQuery(tokens, field, false, searcher, cache), n, collapse, facets, handler);
+                    hydrate(searcher, hits, collapse, handler);
+                    return;
+                }
+                expansion = decision.apply(config);
+                if (initial != null) {
+                    feedback = Arrays.asList(initial.scoreDocs).subList(0, Math.min(expansion.getR(), initial.scoreDocs.length));
                 }
             }
-        } else {
-            // run a simple search for reviews
-            results = executeReview(text, field, r, false, searcher);
+
+            // the expansion and hits only depend on the analyzed query, not the raw text
+            final RocchioConfig expanded = expansion;
+            final List<ScoreDoc> intermediate = feedback;
+            List<Object> expansionKey = Arrays.asList(searchers.generation, "rocchio", field, tokens,
+                    filtered, fromBooks, expanded.getX(), expanded.getR(), expanded.getAlpha(), expanded.getBeta());
+            List<Object> key = Arrays.asList(expansionKey, n, collapse);
+            ScoreDoc[] hits = topHits(key, searchers, searcher, () -> {
+                BooleanQuery query = expansionCache.get(expansionKey);
+                if (query == null) {
+                    query = expand(text, field, expanded, filtered, fromBooks, intermediate, searchers, cache);
+                    cacheIfCurrent(expansionCache, expansionKey, searchers, query);
+                }
+                return query;
+            }, n, collapse, facets, handler);
+            hydrate(searcher, hits, collapse, handler);
+        } finally {
+            endTrace(trace);
         }
-        
-        // term freqencies in the query text
-        Map<String, Integer> termCounts = new HashMap<>();
-        
-        // must tokenize, stem, and de-stop word the query while counting occurances
-        Analyzer analyzer = new EnglishAnalyzer();
-        TokenStream tokenStream = analyzer.tokenStream(field, text);
-        CharTermAttribute termAtt = tokenStream.addAttribute(CharTermAttribute.class);
+    }
+
+    /**
+     * Runs the simple search an adaptive search decides from. Its top hits
+     * are also the intermediate results of the expansion.
+     * @param text Free text query.
+     * @param field field to run query on
+     * @param n number of hits to find, at least r
+     * @param filtered true: use filtered review set. false: use unfiltered
+     * review set.
+     * @param searchers searchers to use
+     * @param cache work shared with the rest of the batch, null if the query is on its own
+     * @return top hits
+     * @throws IOException 
+     */
+    private TopDocs initialResults(final String text, final String field, final int n, final boolean filtered,
+            final Searchers searchers, final BatchCache cache) throws IOException {
+        final IndexSearcher searcher = searchers.reviews(filtered);
+        QueryTrace.Phase outer = QueryTrace.enter(QueryTrace.Phase.RETRIEVAL);
         try {
-            tokenStream.reset();
-            while (tokenStream.incrementToken()) {
-                if(!termCounts.containsKey(termAtt.toString())) {
-                    termCounts.put(termAtt.toString(), 1);
-                } else {
-                    termCounts.put(termAtt.toString(), termCounts.get(termAtt.toString()) + 1);
+            return memo(cache, Arrays.asList("initial", searcher, field, text, n),
+                    () -> execute(text, field, searcher, n, false, cache));
+        } finally {
+            QueryTrace.exit(outer);
+        }
+    }
+
+    /**
+     * Decides how an adaptive search expands its query.
+     * @param tokens the query text tokenized, stemmed, and de-stop worded
+     * @param field field the query runs on
+     * @param initial results of the initial search, at least the top r
+     * @param config rocchio configuration asked for
+     * @param searcher review searcher
+     * @param cache work shared with the rest of the batch, null if the query is on its own
+     * @return decision
+     */
+    private ExpansionDecision decide(List<String> tokens, String field, TopDocs initial, RocchioConfig config,
+            IndexSearcher searcher, BatchCache cache) {
+        QueryTrace.Phase outer = QueryTrace.enter(QueryTrace.Phase.TERM_SCORING);
+        try {
+            Map<String, Integer> docFreqs = new HashMap<>();
+            for (String token : tokens) {
+                if (!docFreqs.containsKey(token)) {
+                    try {
+                        docFreqs.put(token, docFreq(new Term(field, token), searcher, cache));
+                    } catch (IOException ex) {
+                        System.err.println("Error getting doc freq: " + ex.getMessage());
+                    }
                 }
             }
-            tokenStream.close();
-        } catch (IOException ex) {
-            System.err.println("IO Error while reading query text: " + ex.getMessage());
+            return ExpansionDecision.decide(tokens, docFreqs, searcher.getIndexReader().numDocs(), initial, config);
+        } finally {
+            QueryTrace.exit(outer);
         }
+    }
 
-        // build the original query
-        BooleanQuery origQuery = buildQuery(text, field, false);
-        // extract the boolean clauses
-        List<BooleanClause> clauses = origQuery.clauses();
-        // list of queries to be built into final query
-        List<TermQuery> queries = new ArrayList<>();
-        // boost factor for each term
-        Map<String, Float> boosts = new HashMap<>();
+    /**
+     * Builds the expanded query for a Rocchio or PRF search. The top intermediate
+     * results are taken as relevant and terms from their term vectors are added
+     * to the query.
+     * @param text Free text query.
+     * @param field field to run query on
+     * @param config rocchio configuration
+     * @param filtered true: use filtered review set. false: use unfiltered
+     * review set.
+     * @param fromBooks true: use book subject search and reviews of those books for expansion
+     * @param feedback intermediate results already found, null to search for them
+     * @param searchers searchers to use
+     * @param cache work shared with the rest of the batch, null if the query is on its own
+     * @return expanded query
+     */
+    private BooleanQuery expand(String text, String field, RocchioConfig config, boolean filtered, boolean fromBooks,
+            List<ScoreDoc> feedback, Searchers searchers, BatchCache cache) {
+        IndexSearcher searcher = searchers.reviews(filtered);
+        // intermediate results
+        List<ScoreDoc> results = (feedback != null) ? feedback
+                : feedbackDocs(text, field, config.getR(), filtered, fromBooks, searchers, cache);
 
+        // the query text tokenized, stemmed, and de-stop worded
+        List<String> tokens = analyze(text, field, cache);
         // total number of documents
         int numDocs = searcher.getIndexReader().numDocs();
-        // for each clause: one term per clause
-        for (BooleanClause clause : clauses) {
-            // store the term queries for later
-            TermQuery termQuery = (TermQuery) clause.getQuery();
-            queries.add(termQuery);
-            // if the boost factor for this term does not already exist
-            if(!boosts.containsKey(termQuery.getTerm().text())) {
-                int docFreq;
+
+        QueryTrace.Phase outer = QueryTrace.enter(QueryTrace.Phase.TERM_SCORING);
+        try {
+            // document frequency of each term of the original query
+            Map<String, Integer> docFreqs = new HashMap<>();
+            for (String token : tokens) {
+                if(!docFreqs.containsKey(token)) {
+                    try {
+                        docFreqs.put(token, docFreq(new Term(field, token), searcher, cache));
+                    } catch (IOException ex) {
+                        System.err.println("Error getting doc freq: " + ex.getMessage());
+                    }
+                }
+            }
+
+            // scored terms of each intermediate result
+            List<List<TermScore>> feedbackTerms = new ArrayList<>();
+            for (ScoreDoc result : results) {
                 try {
-                    // get document frequency for the term
-                    docFreq = searcher.getIndexReader().docFreq(termQuery.getTerm());
-                    // put the tf-idf score as the boost
-                    boosts.put(termQuery.getTerm().text(), (float)calcTFIDF(numDocs, docFreq, termCounts.get(termQuery.getTerm().text())));
+                    feedbackTerms.add(termScores(result.doc, field, numDocs, searcher, cache));
                 } catch (IOException ex) {
-                    System.err.println("Error getting doc freq: " + ex.getMessage());
+                    System.err.println("IO Error while retrieving term vector: " + ex.getMessage());
                 }
             }
+
+            QueryTrace.enter(QueryTrace.Phase.QUERY_CONSTRUCTION);
+            // builder to create the boolean query
+            BooleanQuery.Builder builder = new BooleanQuery.Builder();
+            for (TermScore clause : expansionClauses(tokens, docFreqs, numDocs, feedbackTerms, results.size(), config)) {
+                TermQuery query = termQuery(new Term(field, clause.term), searcher, cache);
+                builder.add(new BoostQuery(query, (float) clause.score), BooleanClause.Occur.SHOULD);
+            }
+            return builder.build();
+        } finally {
+            QueryTrace.exit(outer);
+        }
+    }
+
+    /**
+     * Works out the weighted terms of a Rocchio or PRF query from the original
+     * query and the scored terms of the intermediate results. Only statistics
+     * go in, so the same weights come out wherever they were looked up.
+     * @param tokens the query text tokenized, stemmed, and de-stop worded
+     * @param docFreqs document frequency of each query token
+     * @param numDocs total number of documents
+     * @param feedbackTerms scored terms of each intermediate result, as from the term vector
+     * @param numResults number of intermediate results
+     * @param config rocchio configuration
+     * @return one term and boost per clause of the expanded query, in clause order
+     */
+    public static List<TermScore> expansionClauses(List<String> tokens, Map<String, Integer> docFreqs, int numDocs,
+            List<List<TermScore>> feedbackTerms, int numResults, RocchioConfig config) {
+        int x = config.getX();
+        float alpha = config.getAlpha();
+        float beta = config.getBeta();
+
+        // term freqencies in the query text
+        Map<String, Integer> termCounts = new HashMap<>();
+        for (String token : tokens) {
+            if(!termCounts.containsKey(token)) {
+                termCounts.put(token, 1);
+            } else {
+                termCounts.put(token, termCounts.get(token) + 1);
+            }
+        }
+
+        // list of terms to be built into final query, one per clause
+        List<String> queries = new ArrayList<>();
+        // boost factor for each term
+        Map<String, Float> boosts = new HashMap<>();
+
+        // for each term of the original query: one term per clause
+        for (String token : tokens) {
+            queries.add(token);
+            // if the boost factor for this term does not already exist
+            if(!boosts.containsKey(token) && docFreqs.containsKey(token)) {
+                // put the tf-idf score as the boost
+                boosts.put(token, (float)calcTFIDF(numDocs, docFreqs.get(token), termCounts.get(token)));
+            }
         }
 
-        // scores for each term
-        List<TermScore> termScores = new ArrayList<>();
         // boosts to add to original boosts after going though Rocchio
         Map<String, Float> addBoosts = new HashMap<>();
         // for each intermediate result
-        for (Review result : results) {
-            try {
-                termScores.clear();
-                // get the term vector for this document
-                Terms terms = searcher.getIndexReader().getTermVector(result.getDocId(), field);
-                // TermsEnum can iterate through the term vector
-                TermsEnum termsEnum = terms.iterator();
-                while (termsEnum.next() != null) {
-                    // get the term string
-                    String term = termsEnum.term().utf8ToString();
-                    // get the postings for this term
-                    // since we got the termEnum from a document, the only document is that one
-                    PostingsEnum pe = null;
-                    pe = termsEnum.postings(pe);
-                    pe.nextDoc();
-
-                    // calculate the tf-idf score for this term/document
-                    double score = calcTFIDF(numDocs, termsEnum.docFreq(), pe.freq());
-
-                    termScores.add(new TermScore(term, score));
-                }
+        for (List<TermScore> scores : feedbackTerms) {
+            // copied so the scores shared within a batch are not sorted or cut
+            List<TermScore> termScores = new ArrayList<>(scores);
 
-                // if PRF sort the terms
-                if (x > 0) {
-                    Collections.sort(termScores);
-                    termScores = termScores.subList(0, x);
-                }
+            // if PRF sort the terms, a short review may have fewer than x
+            if (x > 0) {
+                Collections.sort(termScores);
+                termScores = termScores.subList(0, Math.min(x, termScores.size()));
+            }
 
-                // for each term
-                for (TermScore termScore : termScores) {
-                    String term = termScore.term;
-                    
-                    // if Rocchio
-                    if (x <= 0) {
-                        // add the tf-idf score for the term divided by the number of relevant documents
-                        // to the boosts to be added, also add the term to the queries
-                        if (addBoosts.containsKey(term)) {
-                            addBoosts.put(term, addBoosts.get(term) + (float) termScore.score / results.size());
-                        } else {
-                            addBoosts.put(term,(float) termScore.score / results.size());
-                            queries.add(new TermQuery(new Term(field, term)));
-                        }
-                    } else if (!boosts.containsKey(term)) { // else PRF if the term is not in the original query
-                        boosts.put(term, 1.0f);
-                        queries.add(new TermQuery(new Term(field, term)));
+            // for each term
+            for (TermScore termScore : termScores) {
+                String term = termScore.term;
+
+                // if Rocchio
+                if (x <= 0) {
+                    // add the tf-idf score for the term divided by the number of relevant documents
+                    // to the boosts to be added, also add the term to the queries
+                    if (addBoosts.containsKey(term)) {
+                        addBoosts.put(term, addBoosts.get(term) + (float) termScore.score / numResults);
+                    } else {
+                        addBoosts.put(term,(float) termScore.score / numResults);
+                        queries.add(term);
                     }
+                } else if (!boosts.containsKey(term)) { // else PRF if the term is not in the original query
+                    boosts.put(term, 1.0f);
+                    queries.add(term);
                 }
-            } catch (IOException ex) {
-                System.err.println("IO Error while retrieving term vector: " + ex.getMessage());
             }
         }
-        
-        // builder to create the boolean query
-        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+
+        List<TermScore> clauses = new ArrayList<>();
 
         // counting sub queries in the boolean query
         // the max is 1024, playing it safe here with 1000
         // for many long reviews in the intermediate results
         // it is possible to hit this limit
-        int count = 0;
         // for each sub query
-        for (TermQuery query : queries) {
-            // get the term string
-            String term = query.getTerm().text();
-            
+        for (String term : queries) {
             // for Rocchio, add the new boosts in.
             // These boosts function as the term weights in Rocchio.
             if(x<=0) {
@@ -468,30 +1305,144 @@ public class QueryRunner {
                     boosts.put(term, beta*addBoosts.get(term));
                 }
             }
-            
-            // If Rocchio use the boosts. If PRF set all boosts to 1
-            BoostQuery boostQuery = new BoostQuery(query, (x<=0) ? boosts.get(term) : 1.0f);
-            builder.add(boostQuery, BooleanClause.Occur.SHOULD);
-            count++;
-            if(count>=1000) {
-                break;
+
+            // If Rocchio use the boosts. If PRF set all boosts to 1
+            clauses.add(new TermScore(term, (x<=0) ? boosts.get(term) : 1.0f));
+            if(clauses.size()>=1000) {
+                break;
+            }
+        }
+
+        QueryTrace.expanded(Math.max(0, clauses.size() - tokens.size()), queries.size() - clauses.size());
+        return clauses;
+    }
+
+    /**
+     * Finds the intermediate results whose terms are used to expand a query.
+     * @param text Free text query.
+     * @param field field to run query on
+     * @param r number of intermediate results
+     * @param filtered true: use filtered review set. false: use unfiltered
+     * review set.
+     * @param fromBooks true: take the top review of each book found by a book subject search
+     * @param searchers searchers to use
+     * @param cache work shared with the rest of the batch, null if the query is on its own
+     * @return intermediate results in order
+     */
+    private List<ScoreDoc> feedbackDocs(final String text, final String field, final int r, final boolean filtered,
+            final boolean fromBooks, final Searchers searchers, final BatchCache cache) {
+        final IndexSearcher searcher = searchers.reviews(filtered);
+        QueryTrace.Phase outer = QueryTrace.enter(QueryTrace.Phase.RETRIEVAL);
+        try {
+            return memo(cache, Arrays.asList("feedback", searcher, field, text, r, fromBooks), () -> {
+                List<ScoreDoc> results = new ArrayList<>();
+                if (fromBooks) {
+                    // book subject search
+                    List<Book> books = executeBook(text, IndexConstants.SUBJECT, r, false, searchers.books, cache);
+                    for (Book book : books) {
+                        try {
+                            // run review search for top review for this book
+                            TermQuery tq = new TermQuery(new Term(IndexConstants.ASIN, book.getAsin().trim()));
+                            TopDocs topDocs = searcher.search(tq, 1);
+
+                            // if the review exists (which it should) add it to the results
+                            if (topDocs.totalHits > 0) {
+                                results.add(topDocs.scoreDocs[0]);
+                            }
+                        } catch (IOException ex) {
+                            System.err.println("IO Error while searching: " + ex.getMessage());
+                        }
+                    }
+                } else {
+                    // run a simple search for reviews, only the ids are needed
+                    TopDocs topDocs = execute(text, field, searcher, r, false, cache);
+                    results.addAll(Arrays.asList(topDocs.scoreDocs));
+                }
+                return results;
+            });
+        } catch (IOException ex) {
+            System.err.println("IO Error while searching: " + ex.getMessage());
+            return new ArrayList<>();
+        } finally {
+            QueryTrace.exit(outer);
+        }
+    }
+
+    /**
+     * Scores each term in the term vector of a document with tf-idf.
+     * @param docId document to score
+     * @param field field of the term vector
+     * @param numDocs total number of documents in index
+     * @param searcher searcher the document is in
+     * @param cache work shared with the rest of the batch, null if the query is on its own
+     * @return score for each term in term order
+     * @throws IOException 
+     */
+    private List<TermScore> termScores(final int docId, final String field, final int numDocs, final IndexSearcher searcher,
+            BatchCache cache) throws IOException {
+        return memo(cache, Arrays.asList("terms", searcher, field, docId), () -> {
+            List<TermScore> termScores = new ArrayList<>();
+            // get the term vector for this document
+            Terms terms = searcher.getIndexReader().getTermVector(docId, field);
+            // TermsEnum can iterate through the term vector
+            TermsEnum termsEnum = terms.iterator();
+            while (termsEnum.next() != null) {
+                // get the term string
+                String term = termsEnum.term().utf8ToString();
+                // get the postings for this term
+                // since we got the termEnum from a document, the only document is that one
+                PostingsEnum pe = null;
+                pe = termsEnum.postings(pe);
+                pe.nextDoc();
+
+                // calculate the tf-idf score for this term/document
+                double score = calcTFIDF(numDocs, termsEnum.docFreq(), pe.freq());
+
+                termScores.add(new TermScore(term, score));
+            }
+            return termScores;
+        });
+    }
+
+    /**
+     * Returns the number of documents containing a term.
+     * @param term term to look up
+     * @param searcher searcher to look in
+     * @param cache work shared with the rest of the batch, null if the query is on its own
+     * @return document frequency of the term
+     * @throws IOException 
+     */
+    private int docFreq(final Term term, final IndexSearcher searcher, BatchCache cache) throws IOException {
+        return memo(cache, Arrays.asList("df", searcher, term), () -> {
+            IndexReader reader = searcher.getIndexReader();
+            // the filtered view counts only its own reviews, to match its number of documents
+            if (reader instanceof AsinFilter.FilteredReader) {
+                return ((AsinFilter.FilteredReader) reader).liveDocFreq(term);
             }
-        }
+            return reader.docFreq(term);
+        });
+    }
 
-        // run the query and get the results
-        List<Review> newResults = new ArrayList<>();
+    /**
+     * Creates a query for one term. Within a batch the term statistics are
+     * looked up once and shared by every query using the term.
+     * @param term term to search for
+     * @param searcher searcher the query will run on
+     * @param cache work shared with the rest of the batch, null if the query is on its own
+     * @return term query
+     */
+    private TermQuery termQuery(final Term term, final IndexSearcher searcher, BatchCache cache) {
+        if (cache == null) {
+            return new TermQuery(term);
+        }
         try {
-            TopDocs topDocs = searcher.search(builder.build(), n);
-            if (topDocs != null) {
-                for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
-                    Document doc = searcher.doc(scoreDoc.doc);
-                    newResults.add(docToReview(doc, scoreDoc));
-                }
-            }
+            TermContext context = cache.get(Arrays.asList("context", searcher, term),
+                    () -> TermContext.build(searcher.getTopReaderContext(), term));
+            return new TermQuery(term, context);
         } catch (IOException ex) {
-            System.err.println("IO Error while searching: " + ex.getMessage());
+            // let the search look the statistics up itself
+            return new TermQuery(term);
         }
-        return newResults;
     }
 
     /**
@@ -510,6 +1461,83 @@ public class QueryRunner {
         return rocchio(text, field, n, config, filtered, false);
     }
 
+    /**
+     * Run a Rocchio or PRF search on the expansion query pool.
+     * @param text Free text query.
+     * @param field field to run query on
+     * @param n number of results to return
+     * @param config rocchio configuration
+     * @param filtered true: use filtered review set. false: use unfiltered
+     * review set.
+     * @param fromBooks true: use book subject search and reviews of those books for expansion
+     * @return future list of top reviews, completed with a QueryRejectedException
+     * if the query pool is full
+     */
+    public CompletableFuture<List<Review>> rocchioAsync(final String text, final String field, final int n,
+            final RocchioConfig config, final boolean filtered, final boolean fromBooks) {
+        return expansionPool.submit(() -> rocchio(text, field, n, config, filtered, fromBooks));
+    }
+
+    /**
+     * Run a Rocchio or PRF search on the expansion query pool, passing each of
+     * the top reviews to the handler as it is read from the index.
+     * @param text Free text query.
+     * @param field field to run query on
+     * @param n number of results to return
+     * @param config rocchio configuration
+     * @param filtered true: use filtered review set. false: use unfiltered
+     * review set.
+     * @param fromBooks true: use book subject search and reviews of those books for expansion
+     * @param handler receives the top reviews in order, on a pool thread
+     * @return future completed when every review has been handled, or with a
+     * QueryRejectedException if the query pool is full
+     */
+    public CompletableFuture<Void> rocchioAsync(final String text, final String field, final int n,
+            final RocchioConfig config, final boolean filtered, final boolean fromBooks, final ReviewHandler handler) {
+        return rocchioAsync(text, field, n, config, filtered, fromBooks, Collapse.NONE, Collections.<Facet>emptySet(), handler);
+    }
+
+    /**
+     * Run a Rocchio or PRF search on the expansion query pool, passing each of
+     * the top reviews to the handler as it is read from the index.
+     * @param text Free text query.
+     * @param field field to run query on
+     * @param n number of results to return, books when collapsing
+     * @param config rocchio configuration
+     * @param filtered true: use filtered review set. false: use unfiltered
+     * review set.
+     * @param fromBooks true: use book subject search and reviews of those books for expansion
+     * @param collapse whether to keep only the best review of each book
+     * @param facets facets to count the reviews found by
+     * @param handler receives the facet counts, then the top reviews in order, on a pool thread
+     * @return future completed when every review has been handled, or with a
+     * QueryRejectedException if the query pool is full
+     */
+    public CompletableFuture<Void> rocchioAsync(final String text, final String field, final int n,
+            final RocchioConfig config, final boolean filtered, final boolean fromBooks, final Collapse collapse,
+            final Set<Facet> facets, final ReviewHandler handler) {
+        return expansionPool.submit(() -> {
+            rocchio(text, field, n, config, filtered, fromBooks, collapse, facets, handler);
+            return null;
+        });
+    }
+
+    /**
+     * Run a Rocchio or PRF search on the expansion query pool. This version does not use
+     * books to find intermediate reviews.
+     * @param text Free text query.
+     * @param field field to run query on
+     * @param n number of results to return
+     * @param config rocchio configuration
+     * @param filtered true: use filtered review set. false: use unfiltered
+     * review set.
+     * @return future list of top reviews, completed with a QueryRejectedException
+     * if the query pool is full
+     */
+    public CompletableFuture<List<Review>> rocchioAsync(String text, String field, int n, RocchioConfig config, boolean filtered) {
+        return rocchioAsync(text, field, n, config, filtered, false);
+    }
+
     /**
      * Calculates tf-idf.
      * @param numDocs total number of documents in index
@@ -517,7 +1545,7 @@ public class QueryRunner {
      * @param termFreq term frequency in document
      * @return 
      */
-    private double calcTFIDF(int numDocs, int docFreq, int termFreq) {
+    public static double calcTFIDF(int numDocs, int docFreq, int termFreq) {
         double idf = Math.log10((double) numDocs / docFreq);
         double tf = 1 + Math.log10((double) termFreq);
         return tf * idf;
@@ -530,53 +1558,537 @@ public class QueryRunner {
      * @param and true: use AND, false: use OR
      * @return 
      */
-    private BooleanQuery buildQuery(String text, String field, boolean and) {
-        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+    BooleanQuery buildQuery(String text, String field, boolean and) {
+        return buildQuery(analyze(text, field, null), field, and, null, null);
+    }
 
-        Analyzer analyzer = new EnglishAnalyzer();
-        TokenStream tokenStream = analyzer.tokenStream(field, text);
-        CharTermAttribute term = tokenStream.addAttribute(CharTermAttribute.class);
+    /**
+     * Builder a BooleanQuery from analyzed query terms, for the query field.
+     * @param tokens analyzed query text
+     * @param field query field
+     * @param and true: use AND, false: use OR
+     * @param searcher searcher the query will run on
+     * @param cache work shared with the rest of the batch, null if the query is on its own
+     * @return 
+     */
+    private BooleanQuery buildQuery(List<String> tokens, String field, boolean and, IndexSearcher searcher, BatchCache cache) {
+        QueryTrace.Phase outer = QueryTrace.enter(QueryTrace.Phase.QUERY_CONSTRUCTION);
         try {
-            tokenStream.reset();
-            while (tokenStream.incrementToken()) {
-                Query termQuery = new TermQuery(new Term(field, term.toString()));
+            BooleanQuery.Builder builder = new BooleanQuery.Builder();
+            for (String token : tokens) {
+                TermQuery termQuery = termQuery(new Term(field, token), searcher, cache);
                 builder.add(termQuery, and ? BooleanClause.Occur.MUST : BooleanClause.Occur.SHOULD);
             }
-            tokenStream.close();
-        } catch (IOException ex) {
-            System.err.println("IO Error while reading query text: " + ex.getMessage());
+            return builder.build();
+        } finally {
+            QueryTrace.exit(outer);
         }
+    }
 
-        return builder.build();
+    /**
+     * Tokenizes, stems, and de-stop words the query text.
+     * @param text query text
+     * @param field query field
+     * @param cache work shared with the rest of the batch, null if the query is on its own
+     * @return terms of the query in order, repeated terms included
+     */
+    private List<String> analyze(final String text, final String field, BatchCache cache) {
+        QueryTrace.Phase outer = QueryTrace.enter(QueryTrace.Phase.ANALYSIS);
+        try {
+            return memo(cache, Arrays.asList("tokens", field, text), () -> {
+                List<String> tokens = new ArrayList<>();
+                try (TokenStream tokenStream = analyzer.tokenStream(field, text)) {
+                    CharTermAttribute term = tokenStream.addAttribute(CharTermAttribute.class);
+                    tokenStream.reset();
+                    while (tokenStream.incrementToken()) {
+                        tokens.add(term.toString());
+                    }
+                    tokenStream.end();
+                } catch (IOException ex) {
+                    System.err.println("IO Error while reading query text: " + ex.getMessage());
+                }
+                return tokens;
+            });
+        } catch (IOException ex) {
+            // the analysis itself never throws
+            return new ArrayList<>();
+        } finally {
+            QueryTrace.exit(outer);
+        }
     }
 
     /**
-     * Builds a query and executes on the given searcher.
+     * Builds a query and executes on the given searcher, sharing work with the
+     * other queries of a batch.
      * @param text query text
      * @param field query field
      * @param iSearcher searcher to use
      * @param n number of results to return
      * @param and true: use AND, false: use OR
+     * @param cache work shared with the rest of the batch, null if the query is on its own
      * @return TopDocs object containing the results
      * @throws IOException 
      */
-    private TopDocs execute(String text, String field, IndexSearcher iSearcher, int n, boolean and) throws IOException {
-        BooleanQuery booleanQuery = buildQuery(text, field, and);
+    private TopDocs execute(String text, String field, IndexSearcher iSearcher, int n, boolean and, BatchCache cache)
+            throws IOException {
+        BooleanQuery booleanQuery = buildQuery(analyze(text, field, cache), field, and, iSearcher, cache);
         return iSearcher.search(booleanQuery, n);
     }
 
     /**
-     * Returns the book searcher.
+     * Does a piece of work, or within a batch, returns the result of the same
+     * work done for another query.
+     * @param <T> result type
+     * @param cache work shared with the rest of the batch, null if the query is on its own
+     * @param key identifies the work
+     * @param work work to do
+     * @return result of the work
+     * @throws IOException 
+     */
+    private static <T> T memo(BatchCache cache, Object key, SingleFlight.Work<T> work) throws IOException {
+        if (cache == null) {
+            return work.run();
+        }
+        return cache.get(key, work);
+    }
+
+    /**
+     * Returns the book searcher. It is closed once a refresh reopens the
+     * book index, so it should not be held on to.
      * @return book index searcher.
      */
     public IndexSearcher getbSearcher() {
-        return bSearcher;
+        try (Searchers searchers = new Searchers(bookIndex)) {
+            return searchers.books;
+        } catch (IOException ex) {
+            System.err.println("Error opening index: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Runs a batch of queries concurrently on the query pools. Query analysis,
+     * term statistics, intermediate results and document term scores are
+     * worked out once per batch and shared by every query that needs them.
+     * The queries for each pool are admitted as one unit, see runBatch.
+     * @param queries queries to run
+     * @return future list of reviews for each query, in the same order. The
+     * futures of every query for a pool are completed with a
+     * QueryRejectedException if that pool is full. Cancelling a future skips
+     * its query if it has not started yet.
+     */
+    public List<CompletableFuture<List<Review>>> executeBatch(List<BatchQuery> queries) {
+        final BatchCache cache = new BatchCache();
+        List<CompletableFuture<List<Review>>> results = new ArrayList<>();
+        List<Integer> simple = new ArrayList<>();
+        List<Integer> expansion = new ArrayList<>();
+        for (int i = 0; i < queries.size(); i++) {
+            results.add(new CompletableFuture<List<Review>>());
+            ((queries.get(i).getConfig() == null) ? simple : expansion).add(i);
+        }
+        runBatch(simplePool, queries, simple, results, cache);
+        runBatch(expansionPool, queries, expansion, results, cache);
+        return results;
+    }
+
+    /**
+     * Runs the queries of a batch meant for one pool. Up to
+     * SearchConstants.BATCH_QUERY_CONCURRENCY workers are submitted, each
+     * taking the next query in order until none are left, so a batch of any
+     * size takes only a few places in the pool. If not even one worker is
+     * accepted every query is rejected, otherwise the workers accepted run
+     * them all, skipping those already cancelled.
+     * @param pool pool to run on
+     * @param queries every query of the batch
+     * @param indexes positions of the queries to run on this pool
+     * @param results futures to complete, one for each query of the batch
+     * @param cache work shared with the rest of the batch
+     */
+    private void runBatch(QueryPool pool, final List<BatchQuery> queries, final List<Integer> indexes,
+            final List<CompletableFuture<List<Review>>> results, final BatchCache cache) {
+        final AtomicInteger next = new AtomicInteger();
+        int workers = Math.min(indexes.size(), SearchConstants.BATCH_QUERY_CONCURRENCY);
+        for (int w = 0; w < workers; w++) {
+            CompletableFuture<Void> worker = pool.submit(() -> {
+                for (int i = next.getAndIncrement(); i < indexes.size(); i = next.getAndIncrement()) {
+                    CompletableFuture<List<Review>> result = results.get(indexes.get(i));
+                    if (result.isDone()) {
+                        continue;
+                    }
+                    try {
+                        result.complete(executeBatchQuery(queries.get(indexes.get(i)), cache));
+                    } catch (RuntimeException ex) {
+                        result.completeExceptionally(ex);
+                    }
+                }
+                return null;
+            });
+            if (worker.isCompletedExceptionally()) {
+                if (w == 0) {
+                    worker.whenComplete((nothing, error) -> {
+                        Throwable rejected = (error instanceof CompletionException) ? error.getCause() : error;
+                        for (int index : indexes) {
+                            results.get(index).completeExceptionally(rejected);
+                        }
+                    });
+                }
+                // the workers already accepted run the rest
+                break;
+            }
+        }
+    }
+
+    /**
+     * Runs one query of a batch on the calling thread. Queries run with the
+     * same cache share their work, such as a parameter sweep running every
+     * configuration of a query on its own threads.
+     * @param query query to run
+     * @param cache work shared with the rest of the batch
+     * @return list of reviews found in order
+     */
+    public List<Review> executeBatchQuery(BatchQuery query, BatchCache cache) {
+        List<Review> reviews = new ArrayList<>();
+        try (Searchers searchers = new Searchers(reviewIndex(query.isFiltered()),
+                query.isFromBooks() ? bookIndex : reviewIndex)) {
+            if (query.getConfig() == null) {
+                executeReview(query.getText(), query.getField(), query.getN(), false, query.isFiltered(), Collapse.NONE,
+                        Collections.<Facet>emptySet(), searchers, reviews::add, cache);
+            } else {
+                rocchio(query.getText(), query.getField(), query.getN(), query.getConfig(), query.isFiltered(),
+                        query.isFromBooks(), Collapse.NONE, Collections.<Facet>emptySet(), searchers, reviews::add, cache);
+            }
+        } catch (IOException ex) {
+            System.err.println("IO Error while searching: " + ex.getMessage());
+        }
+        return reviews;
+    }
+
+    /**
+     * How the reviews found by a search are collapsed. Collapsing needs the
+     * ASIN doc values written by IndexGenerator, reviews in an index built
+     * without them are not collapsed.
+     */
+    public enum Collapse {
+        // every review found
+        NONE,
+        // the best review of each book
+        BOOK,
+        // the best review of each book, with the number of its reviews found
+        BOOK_WITH_COUNT
+    }
+
+    /**
+     * What the reviews found by a search can be counted by. Subject and rating
+     * counts need the doc values written by IndexGenerator.
+     */
+    public enum Facet {
+        // subjects of the reviewed books, from the book index
+        SUBJECT,
+        // review rating
+        RATING,
+        // reviewed book
+        ASIN
+    }
+
+    /**
+     * Receives reviews one at a time as they are read from the index.
+     */
+    public interface ReviewHandler {
+
+        /**
+         * @param review the next review in the results
+         * @throws IOException if the review can not be passed on
+         */
+        void handle(Review review) throws IOException;
+
+        /**
+         * Called before the first review when facet counts were asked for.
+         * @param facets number of reviews found for the top values of each facet
+         * @throws IOException if the counts can not be passed on
+         */
+        default void handleFacets(FacetCounts facets) throws IOException {
+        }
+
+        /**
+         * Called first by an adaptive PRF or Rocchio search, once it has
+         * decided how to expand its query.
+         * @param decision whether and how the query is expanded
+         * @throws IOException if the decision can not be passed on
+         */
+        default void handleExpansion(ExpansionDecision decision) throws IOException {
+        }
+    }
+
+    /**
+     * The searchers of one index generation, held for the length of a search
+     * so a refresh can not close them part way through.
+     */
+    private class Searchers implements Closeable {
+
+        private final long generation;
+        private IndexSearcher reviews;
+        private IndexSearcher books;
+        private IndexSearcher filtered;
+
+        /**
+         * Waits for the indexes the search needs to open, then acquires the
+         * current searcher of every open index.
+         * @param needed indexes the search uses
+         * @throws IOException 
+         */
+        public Searchers(LazyIndex... needed) throws IOException {
+            // opened before taking the lock, a refresh holding it waits for indexes being opened
+            for (LazyIndex index : needed) {
+                index.get();
+            }
+            refreshLock.readLock().lock();
+            try {
+                generation = QueryRunner.this.generation.get();
+                reviews = acquire(reviewIndex);
+                this.books = acquire(bookIndex);
+                this.filtered = acquire(filteredIndex);
+            } catch (IOException | RuntimeException ex) {
+                close();
+                throw ex;
+            } finally {
+                refreshLock.readLock().unlock();
+            }
+        }
+
+        /**
+         * @param filtered true: filtered review searcher, false: unfiltered review searcher
+         * @return review searcher
+         */
+        public IndexSearcher reviews(boolean filtered) {
+            return filtered ? this.filtered : reviews;
+        }
+
+        /**
+         * Releases the searchers. They may be closed after this.
+         * @throws IOException 
+         */
+        @Override
+        public void close() throws IOException {
+            release(reviewIndex, reviews);
+            release(bookIndex, books);
+            release(filteredIndex, filtered);
+            reviews = books = filtered = null;
+        }
+
+        private IndexSearcher acquire(LazyIndex index) throws IOException {
+            ReferenceManager<IndexSearcher> manager = index.getIfOpen();
+            return (manager != null) ? manager.acquire() : null;
+        }
+
+        private void release(LazyIndex index, IndexSearcher searcher) throws IOException {
+            if (searcher != null) {
+                index.getIfOpen().release(searcher);
+            }
+        }
+    }
+
+    /**
+     * Creates searchers with BM25 scoring whenever an index is opened or
+     * reopened. Given an executor, the searchers spread each query over slices
+     * of segments searched in parallel. Given a warmer, searchers of a newly
+     * opened index are warmed before use. Reopened searchers are not, they
+     * share most segments with the searchers they replace.
+     */
+    private static class BM25SearcherFactory extends SearcherFactory {
+
+        // IndexSearcher works out its slices in its own constructor, before a
+        // subclass has set any fields, so the limits are handed over here
+        private static final ThreadLocal<int[]> SLICE_LIMITS = new ThreadLocal<>();
+
+        private final ExecutorService executor;
+        private final int maxSliceDocs;
+        private final int maxSliceSegments;
+        private final SearchWarmer warmer;
+
+        /**
+         *
+         * @param executor threads to search slices on, null to search segments one by one
+         * @param maxSliceDocs a slice is closed once it has this many documents
+         * @param maxSliceSegments a slice is closed once it has this many segments
+         * @param warmer warms the first searcher of the index, null for no warm-up
+         */
+        public BM25SearcherFactory(ExecutorService executor, int maxSliceDocs, int maxSliceSegments, SearchWarmer warmer) {
+            this.executor = executor;
+            this.maxSliceDocs = maxSliceDocs;
+            this.maxSliceSegments = maxSliceSegments;
+            this.warmer = warmer;
+        }
+
+        @Override
+        public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) throws IOException {
+            IndexSearcher searcher;
+            if (executor == null) {
+                searcher = new SlicedIndexSearcher(reader, null);
+            } else {
+                SLICE_LIMITS.set(new int[]{maxSliceDocs, maxSliceSegments});
+                try {
+                    searcher = new SlicedIndexSearcher(reader, executor);
+                } finally {
+                    SLICE_LIMITS.remove();
+                }
+            }
+            searcher.setSimilarity(new BM25Similarity());
+            if (warmer != null && previousReader == null) {
+                warmer.warm(searcher);
+            }
+            return searcher;
+        }
+    }
+
+    /**
+     * Searches groups of neighbouring segments in parallel, or one segment
+     * after another without an executor. Keeping segments in index order means
+     * ties between equal scores come out the same either way. A filtered view
+     * is scored with the statistics of its own reviews.
+     */
+    private static class SlicedIndexSearcher extends IndexSearcher {
+
+        public SlicedIndexSearcher(IndexReader reader, ExecutorService executor) {
+            super(reader, executor);
+        }
+
+        @Override
+        public TermStatistics termStatistics(Term term, TermContext context) throws IOException {
+            if (getIndexReader() instanceof AsinFilter.FilteredReader) {
+                return ((AsinFilter.FilteredReader) getIndexReader()).termStatistics(term);
+            }
+            return super.termStatistics(term, context);
+        }
+
+        @Override
+        public CollectionStatistics collectionStatistics(String field) throws IOException {
+            if (getIndexReader() instanceof AsinFilter.FilteredReader) {
+                return ((AsinFilter.FilteredReader) getIndexReader()).collectionStatistics(field);
+            }
+            return super.collectionStatistics(field);
+        }
+
+        @Override
+        protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+            int[] limits = BM25SearcherFactory.SLICE_LIMITS.get();
+            int maxSliceDocs = limits[0];
+            int maxSliceSegments = limits[1];
+
+            List<LeafSlice> slices = new ArrayList<>();
+            List<LeafReaderContext> slice = new ArrayList<>();
+            long sliceDocs = 0;
+            for (LeafReaderContext leaf : leaves) {
+                slice.add(leaf);
+                sliceDocs += leaf.reader().maxDoc();
+                if (sliceDocs >= maxSliceDocs || slice.size() >= maxSliceSegments) {
+                    slices.add(new LeafSlice(slice.toArray(new LeafReaderContext[slice.size()])));
+                    slice.clear();
+                    sliceDocs = 0;
+                }
+            }
+            if (!slice.isEmpty()) {
+                slices.add(new LeafSlice(slice.toArray(new LeafReaderContext[slice.size()])));
+            }
+            return slices.toArray(new LeafSlice[slices.size()]);
+        }
+    }
+
+    /**
+     * Work shared between the queries of one batch. Each piece of work is done
+     * once by the first query that needs it, the others wait for its result.
+     * The results hold on to the searchers they came from, so a cache should
+     * not outlive its batch.
+     */
+    public static class BatchCache {
+
+        private final ConcurrentHashMap<Object, CompletableFuture<Object>> results = new ConcurrentHashMap<>();
+
+        /**
+         * @param <T> result type
+         * @param key identifies the work
+         * @param work work to do if no other query has done it
+         * @return result of the work
+         * @throws IOException if the work failed
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T get(Object key, SingleFlight.Work<T> work) throws IOException {
+            CompletableFuture<Object> mine = new CompletableFuture<>();
+            CompletableFuture<Object> shared = results.putIfAbsent(key, mine);
+            if (shared == null) {
+                try {
+                    T result = work.run();
+                    mine.complete(result);
+                    return result;
+                } catch (Throwable ex) {
+                    mine.completeExceptionally(ex);
+                    throw ex;
+                }
+            }
+
+            return (T) SingleFlight.join(shared);
+        }
+    }
+
+    /**
+     * One query of a batch.
+     */
+    public static class BatchQuery {
+
+        private final String text;
+        private final String field;
+        private final int n;
+        private final RocchioConfig config;
+        private final boolean filtered;
+        private final boolean fromBooks;
+
+        /**
+         *
+         * @param text Free text query.
+         * @param field field to run query on
+         * @param n number of results to return
+         * @param config rocchio configuration, null for a simple search
+         * @param filtered true: use filtered review set. false: use unfiltered
+         * review set.
+         * @param fromBooks true: use book subject search and reviews of those books for expansion
+         */
+        public BatchQuery(String text, String field, int n, RocchioConfig config, boolean filtered, boolean fromBooks) {
+            this.text = text;
+            this.field = field;
+            this.n = n;
+            this.config = config;
+            this.filtered = filtered;
+            this.fromBooks = fromBooks;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        public int getN() {
+            return n;
+        }
+
+        public RocchioConfig getConfig() {
+            return config;
+        }
+
+        public boolean isFiltered() {
+            return filtered;
+        }
+
+        public boolean isFromBooks() {
+            return fromBooks;
+        }
     }
 
     /**
      * This class holds terms and term scores so they can be sorted.
      */
-    private static class TermScore implements Comparable {
+    public static class TermScore implements Comparable {
 
         private final String term;
         private final double score;
@@ -622,6 +2134,8 @@ public class QueryRunner {
         private int r;
         private float alpha;
         private float beta;
+        // decide from the initial results whether to expand, see ExpansionDecision
+        private boolean adaptive;
 
         /**
          * Constructor with default parameters.
@@ -629,6 +2143,7 @@ public class QueryRunner {
          * r = 10
          * alpha = 1
          * beta = 0.8
+         * adaptive = false
          */
         public RocchioConfig() {
             x = -1;
@@ -669,5 +2184,13 @@ public class QueryRunner {
             this.beta = beta;
         }
 
+        public boolean isAdaptive() {
+            return adaptive;
+        }
+
+        public void setAdaptive(boolean adaptive) {
+            this.adaptive = adaptive;
+        }
+
     }
 }
@@ -0,0 +1,255 @@
+package searching;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+
+/**
+ * Where the time of one search went, phase by phase, and how big its query
+ * and results were. The trace of the running search is kept for its thread,
+ * so the steps of a search can mark their phase without it being passed
+ * down. Phases nest: time goes to the innermost phase entered, so the phases
+ * add up to the whole search. Without a running trace marking a phase does
+ * nothing. What was searched for is kept as well, for the slow query log.
+ */
+public class QueryTrace {
+
+    /**
+     * Phases of a search, named as in the metrics.
+     */
+    public enum Phase {
+        // tokenizing, stemming and removing stop words from the query text
+        ANALYSIS,
+        // the intermediate search or book lookup for PRF and Rocchio
+        RETRIEVAL,
+        // document frequencies and scoring the term vectors of the intermediate results
+        TERM_SCORING,
+        // working out the clauses and building the query
+        QUERY_CONSTRUCTION,
+        // the final search for the top hits
+        SEARCH,
+        // reading the hits from the index and handing them over
+        HYDRATION,
+        // anything else, such as cache lookups
+        OTHER;
+
+        /**
+         * @return name used in the metrics
+         */
+        public String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    // trace of the search running on each thread
+    private static final ThreadLocal<QueryTrace> CURRENT = new ThreadLocal<>();
+
+    private final String mode;
+    private final String text;
+    // null for a simple search
+    private final QueryRunner.RocchioConfig config;
+    private final boolean filtered;
+    private final long start = System.nanoTime();
+    private final long[] phaseNanos = new long[Phase.values().length];
+    // trace that was running on the thread when this one began
+    private QueryTrace outer;
+    private Phase active = Phase.OTHER;
+    private long since = start;
+    private long totalNanos;
+    // -1 until the query is expanded, an expanded query taken from the cache is not counted
+    private int expansionTerms = -1;
+    private int droppedClauses = -1;
+    private int hits;
+    // null unless an adaptive search decided how to expand
+    private ExpansionDecision decision;
+    // final query and the searcher it ran on, null if the hits came from the
+    // result cache or from an identical search running at the same time
+    private Query query;
+    private IndexSearcher searcher;
+
+    private QueryTrace(String mode, String text, QueryRunner.RocchioConfig config, boolean filtered) {
+        this.mode = mode;
+        this.text = text;
+        this.config = config;
+        this.filtered = filtered;
+    }
+
+    /**
+     * Starts tracing a search on this thread.
+     * @param mode search mode, as labeled in the metrics
+     * @param text query text
+     * @param config rocchio configuration, null for a simple search
+     * @param filtered true if the filtered reviews are searched
+     * @return trace to end when the search is done
+     */
+    public static QueryTrace begin(String mode, String text, QueryRunner.RocchioConfig config, boolean filtered) {
+        QueryTrace trace = new QueryTrace(mode, text, config, filtered);
+        trace.outer = CURRENT.get();
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    /**
+     * Stops the clock and hands the thread back to the trace running before.
+     */
+    public void end() {
+        switchTo(Phase.OTHER);
+        totalNanos = System.nanoTime() - start;
+        if (outer == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(outer);
+        }
+    }
+
+    /**
+     * Marks the start of a phase of the running search.
+     * @param phase phase entered
+     * @return phase to go back to with exit, null without a running trace
+     */
+    public static Phase enter(Phase phase) {
+        QueryTrace trace = CURRENT.get();
+        return (trace == null) ? null : trace.switchTo(phase);
+    }
+
+    /**
+     * Marks the end of a phase of the running search.
+     * @param previous phase returned by enter
+     */
+    public static void exit(Phase previous) {
+        QueryTrace trace = CURRENT.get();
+        if (trace != null && previous != null) {
+            trace.switchTo(previous);
+        }
+    }
+
+    /**
+     * Counts the expansion of the running search's query.
+     * @param terms clauses added to the original query terms
+     * @param dropped clauses left out to stay under the clause limit
+     */
+    public static void expanded(int terms, int dropped) {
+        QueryTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.expansionTerms = terms;
+            trace.droppedClauses = dropped;
+        }
+    }
+
+    /**
+     * Keeps how the running adaptive search decided to expand its query.
+     * @param decision expansion decision
+     */
+    public static void decided(ExpansionDecision decision) {
+        QueryTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.decision = decision;
+        }
+    }
+
+    /**
+     * Counts the hits found by the running search.
+     * @param hits number of hits fetched
+     */
+    public static void found(int hits) {
+        QueryTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.hits = hits;
+        }
+    }
+
+    /**
+     * Keeps the final query of the running search.
+     * @param query query run for the top hits
+     * @param searcher searcher it ran on
+     */
+    public static void searched(Query query, IndexSearcher searcher) {
+        QueryTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.query = query;
+            trace.searcher = searcher;
+        }
+    }
+
+    // charges the time since the last switch to the active phase
+    private Phase switchTo(Phase phase) {
+        long now = System.nanoTime();
+        phaseNanos[active.ordinal()] += now - since;
+        Phase previous = active;
+        active = phase;
+        since = now;
+        return previous;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return rocchio configuration, null for a simple search
+     */
+    public QueryRunner.RocchioConfig getConfig() {
+        return config;
+    }
+
+    public boolean isFiltered() {
+        return filtered;
+    }
+
+    /**
+     * @param phase phase of the search
+     * @return time spent in the phase in nanoseconds
+     */
+    public long getPhaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    /**
+     * @return time from begin to end in nanoseconds
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return clauses added by expansion, -1 if the search did not expand its query
+     */
+    public int getExpansionTerms() {
+        return expansionTerms;
+    }
+
+    /**
+     * @return clauses dropped at the clause limit, -1 if the search did not expand its query
+     */
+    public int getDroppedClauses() {
+        return droppedClauses;
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return expansion decision, null if the search was not adaptive
+     */
+    public ExpansionDecision getDecision() {
+        return decision;
+    }
+
+    /**
+     * @return final query, null if the search did not run it itself
+     */
+    public Query getQuery() {
+        return query;
+    }
+
+    /**
+     * @return searcher the final query ran on, null if the search did not run it itself
+     */
+    public IndexSearcher getSearcher() {
+        return searcher;
+    }
+}
@@ -0,0 +1,65 @@
+package searching;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+
+/**
+ * Reports how far each index got in opening. The server is ready, with 200,
+ * once the review index is open. The book and filtered indexes may still be
+ * waiting for their first search, or have failed without stopping searches
+ * on the reviews. Until then 503 is returned. Asking does not open any index.
+ */
+public class ReadinessServlet extends HttpServlet {
+
+    /**
+     * Handles the HTTP <code>GET</code> method.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        ObjectNode status = SearchServlet.MAPPER.createObjectNode();
+        ArrayNode indexes = status.putArray("indexes");
+        QueryRunner qRunner = QueryRunner.getQueryRunner();
+        for (LazyIndex index : qRunner.getIndexes()) {
+            ObjectNode indexStatus = indexes.addObject();
+            indexStatus.put("name", index.getName());
+            indexStatus.put("state", index.getState().name().toLowerCase());
+            ReferenceManager<IndexSearcher> manager = index.getIfOpen();
+            if (manager != null) {
+                indexStatus.put("documents", LazyIndex.numDocs(manager));
+                indexStatus.put("openMillis", index.getOpenMillis());
+            } else if (index.getError() != null) {
+                indexStatus.put("error", index.getError());
+            }
+        }
+        boolean ready = qRunner.isReady();
+        status.put("ready", ready);
+
+        response.setStatus(ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setContentType("application/json");
+        response.setHeader("Cache-Control", "no-store");
+        SearchServlet.MAPPER.writeValue(response.getOutputStream(), status);
+    }
+
+    /**
+     * Returns a short description of the servlet.
+     *
+     * @return a String containing servlet description
+     */
+    @Override
+    public String getServletInfo() {
+        return "Index readiness";
+    }
+}
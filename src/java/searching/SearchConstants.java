@@ -0,0 +1,119 @@
+package searching;
+
+/**
+ * Contains searching related constants.
+ */
+public class SearchConstants {
+    // simple searches get their own workers so a spike of expensive
+    // PRF/Rocchio searches can not hold them up
+    public final static int SIMPLE_QUERY_THREADS = Runtime.getRuntime().availableProcessors();
+    public final static int SIMPLE_QUERY_QUEUE_DEPTH = 128;
+    // PRF/Rocchio searches, these wait less because each one costs much more
+    public final static int EXPANSION_QUERY_THREADS = Runtime.getRuntime().availableProcessors();
+    public final static int EXPANSION_QUERY_QUEUE_DEPTH = 32;
+
+    // threads that search the segments of one query in parallel, shared by
+    // every index that has parallel segment search turned on
+    public final static int SEGMENT_SEARCH_THREADS = Runtime.getRuntime().availableProcessors();
+    // parallel segment search for each index. This helps long queries on big
+    // indexes when there are spare cores, not a busy server already using them all.
+    public final static boolean REVIEW_PARALLEL_SEGMENTS = false;
+    public final static boolean BOOK_PARALLEL_SEGMENTS = false;
+    public final static boolean FILTERED_PARALLEL_SEGMENTS = false;
+    // neighbouring segments are grouped into slices, one thread per slice. A
+    // slice is closed once it has this many documents or this many segments.
+    public final static int REVIEW_SLICE_MAX_DOCS = 250000;
+    public final static int REVIEW_SLICE_MAX_SEGMENTS = 5;
+    public final static int BOOK_SLICE_MAX_DOCS = 250000;
+    public final static int BOOK_SLICE_MAX_SEGMENTS = 5;
+    public final static int FILTERED_SLICE_MAX_DOCS = 250000;
+    public final static int FILTERED_SLICE_MAX_SEGMENTS = 5;
+    // most terms whose statistics over the filtered reviews are kept, per reader
+    public final static long FILTERED_STATISTICS_MAX_TERMS = 100000;
+
+    // open these indexes the first time a search needs them instead of at
+    // startup. The review index always opens at startup.
+    public final static boolean LAZY_BOOK_INDEX = true;
+    public final static boolean LAZY_FILTERED_INDEX = true;
+    // directory implementation the indexes are read through: "mmap" maps the
+    // files into memory, "nio" reads them with positional reads, anything else
+    // lets Lucene pick for the platform
+    public final static String INDEX_DIRECTORY = "mmap";
+    // files of memory mapped indexes loaded into memory as soon as an index
+    // is opened: term dictionaries, norms and doc values. Empty to load nothing
+    // up front. Files inside compound (.cfs) segments can not be picked out.
+    public final static String[] PRELOAD_EXTENSIONS = {"tim", "tip", "nvd", "nvm", "dvd", "dvm"};
+    // searches replayed against the review searchers when the indexes are
+    // first opened, one per line as "mode<TAB>search" or just the search.
+    // Empty for no warm-up.
+    public final static String WARMUP_QUERY_LOG = "";
+    // most logged searches replayed
+    public final static int WARMUP_MAX_SEARCHES = 500;
+
+    // how long an async search request may take before the servlet gives up on it
+    public final static long REQUEST_TIMEOUT_MILLIS = 30000;
+    // seconds a client should wait before retrying a rejected search
+    public final static int RETRY_AFTER_SECONDS = 1;
+
+    // most hits kept in the result cache, across every cached search
+    public final static long RESULT_CACHE_MAX_HITS = 200000;
+    // most clauses kept in the expanded query cache, across every cached query
+    public final static long EXPANSION_CACHE_MAX_CLAUSES = 100000;
+    // most facet values kept in the facet count cache, across every cached search
+    public final static long FACET_CACHE_MAX_VALUES = 100000;
+    // most values returned for each facet, the ones with the most reviews
+    public final static int FACET_MAX_VALUES = 20;
+    // share of a segment's ASINs the hits must reach before they are counted in
+    // an array by ordinal, fewer hits are sorted and counted instead
+    public final static double FACET_DENSE_ASIN_SHARE = 0.125;
+
+    // most expansion decisions of adaptive searches kept, each weighs one
+    public final static long DECISION_CACHE_MAX_ENTRIES = 10000;
+
+    // PRF/Rocchio searches from the search servlet decide from their initial
+    // results whether expanding the query is worth it, when the request says
+    // adaptive=true. Off until the adaptive rows of the evaluation summary are
+    // shown to keep MAP and nDCG of the full searches on the real reviews.
+    public final static boolean ADAPTIVE_EXPANSION = false;
+    // expansion is skipped when the top result leads the second by at least
+    // this share of its score and every query term has at least this idf
+    // (log10 of documents over document frequency)
+    public final static double ADAPTIVE_SKIP_TOP_LEAD = 0.5;
+    public final static double ADAPTIVE_SKIP_MIN_IDF = 2.0;
+    // only the intermediate results within this share of the top score are expanded from
+    public final static double ADAPTIVE_REDUCE_SCORE_GAP = 0.3;
+    // queries with this many distinct terms expand from this share of r and x
+    public final static int ADAPTIVE_LONG_QUERY_TERMS = 5;
+    public final static double ADAPTIVE_REDUCE_FACTOR = 0.5;
+
+    // most searches accepted in one batch request
+    public final static int MAX_BATCH_QUERIES = 100;
+    // most queries of one batch running or queued at the same time on each query pool
+    public final static int BATCH_QUERY_CONCURRENCY = 4;
+
+    // trace the phases of every search for the metrics servlet
+    public final static boolean QUERY_METRICS = true;
+    // upper bounds of the buckets of the time histograms, in seconds
+    public final static double[] METRICS_SECONDS_BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05,
+        0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    // upper bounds of the buckets of the expansion term and hit histograms
+    public final static double[] METRICS_COUNT_BUCKETS = {0, 1, 5, 10, 25, 50, 100, 250, 500, 1000};
+
+    // searches taking at least this long are written to the slow query log
+    public final static long SLOW_QUERY_MILLIS = 1000;
+    // slow query log file, empty for no log. Once it grows past the size it
+    // is rotated, keeping this many older files as .1, .2 and so on.
+    public final static String SLOW_QUERY_LOG = "slow_queries.log";
+    public final static long SLOW_QUERY_LOG_MAX_BYTES = 10L << 20;
+    public final static int SLOW_QUERY_LOG_FILES = 5;
+    // slow searches waiting to be written, more are dropped rather than hold up searches
+    public final static int SLOW_QUERY_QUEUE_DEPTH = 256;
+    // share of logged searches whose clauses are each run on their own, to
+    // find which ones cost the most to score
+    public final static double SLOW_QUERY_PROFILE_RATE = 0.05;
+
+    // gzip search responses for clients that accept it
+    public final static boolean GZIP_RESPONSES = true;
+    // responses smaller than this are not worth compressing
+    public final static int GZIP_THRESHOLD_BYTES = 8192;
+}
@@ -6,11 +6,23 @@
  */
 package searching;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import indexing.IndexConstants;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.List;
+import java.io.OutputStream;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -24,10 +36,39 @@ import searching.QueryRunner;
  * @author Lowell Milliken
  */
 public class SearchServlet extends HttpServlet {
+
+    // shared by every request, an ObjectMapper is thread safe once configured.
+    // The generator is flushed once at the end instead of after every review.
+    static final ObjectMapper MAPPER = new ObjectMapper()
+            .disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    /**
+     * Starts opening and warming the indexes while the servlet is initialized.
+     * Deployed with load-on-startup this starts before the first request.
+     * Opening goes on in the background, ReadinessServlet tells when the
+     * review index is open and searches meanwhile wait for it.
+     *
+     * @throws ServletException if a servlet-specific error occurs
+     */
+    @Override
+    public void init() throws ServletException {
+        QueryRunner.getQueryRunner();
+    }
     
     /**
      * Processes requests for both HTTP <code>GET</code> and <code>POST</code>
-     * methods.
+     * methods. The search runs on the QueryRunner query pools and the request
+     * is resumed when the results are ready. Each review is written to the
+     * response as soon as it is read from the index. If the pool for the
+     * search mode is full, 503 is returned right away. With collapse=book
+     * only the best review of each book is returned, count is then the number
+     * of books, and with groupCount=true each review carries the number of
+     * reviews of its book that were found. With facets=subject,rating,asin
+     * (any of them) the response is an object holding the facet counts under
+     * "facets" and the reviews under "hits". PRF and Rocchio searches are
+     * adaptive as set by SearchConstants.ADAPTIVE_EXPANSION, or as asked with
+     * adaptive=true or false, and an adaptive search tells how it expanded its
+     * query in the X-Expansion-Decision header.
      *
      * @param request servlet request
      * @param response servlet response
@@ -42,22 +83,404 @@ public class SearchServlet extends HttpServlet {
         String mode = request.getParameter("mode").toLowerCase();
         int count = Integer.parseInt(request.getParameter("count"));
         String base = request.getParameter("base");
-        List<Review> results;
+        Set<QueryRunner.Facet> facets;
+        try {
+            facets = facetsFor(request.getParameter("facets"));
+        } catch (IllegalArgumentException ex) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown facet in " + request.getParameter("facets"));
+            return;
+        }
+        final ResultStream stream = new ResultStream(request, response, !facets.isEmpty());
+        QueryRunner.RocchioConfig config = configFor(mode);
+        String adaptive = request.getParameter("adaptive");
+        if (config != null && adaptive != null) {
+            config.setAdaptive(Boolean.parseBoolean(adaptive));
+        }
+        QueryRunner.Collapse collapse = collapseFor(request.getParameter("collapse"), request.getParameter("groupCount"));
+        CompletableFuture<Void> results;
             
-        if(mode.equals("simple")) {
-            results = qRunner.executeReview(query, IndexConstants.TEXT, count, false);
+        if(config == null) {
+            results = qRunner.executeReviewAsync(query, IndexConstants.TEXT, count, false, collapse, facets, stream);
         } else {
-            QueryRunner.RocchioConfig config = new QueryRunner.RocchioConfig();
-            if(mode.equals("prf")) {
-                config.setX(10);
+            results = qRunner.rocchioAsync(query, IndexConstants.TEXT, count, config, false, base.equalsIgnoreCase("books"),
+                    collapse, facets, stream);
+        }
+
+        // rejected searches are already done, as is everything when the
+        // container is not set up for async, so finish on this thread
+        if (results.isDone() || !request.isAsyncSupported()) {
+            try {
+                results.join();
+                stream.end(null);
+            } catch (CompletionException ex) {
+                stream.end(ex.getCause());
             }
-            
-            results = qRunner.rocchio(query, IndexConstants.TEXT, count, config, false, base.equalsIgnoreCase("books"));
+            return;
+        }
+
+        final AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(SearchConstants.REQUEST_TIMEOUT_MILLIS);
+        stream.resumeWith(asyncContext, results);
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                stream.stop(true);
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                stream.stop(false);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        results.whenComplete((nothing, error) ->
+                stream.end(error instanceof CompletionException ? error.getCause() : error));
+    }
+
+    /**
+     * Returns the Rocchio configuration for a search mode, adaptive as set by
+     * SearchConstants.ADAPTIVE_EXPANSION.
+     *
+     * @param mode simple, prf or rocchio
+     * @return configuration for the mode, null for a simple search
+     */
+    static QueryRunner.RocchioConfig configFor(String mode) {
+        if (mode.equals("simple")) {
+            return null;
+        }
+        QueryRunner.RocchioConfig config = new QueryRunner.RocchioConfig();
+        config.setAdaptive(SearchConstants.ADAPTIVE_EXPANSION);
+        if (mode.equals("prf")) {
+            config.setX(10);
+        }
+        return config;
+    }
+
+    /**
+     * Returns how to collapse the results of a search.
+     *
+     * @param collapse "book" to keep the best review of each book, anything else for every review
+     * @param groupCount "true" to also count the reviews found for each book
+     * @return collapse option for QueryRunner
+     */
+    static QueryRunner.Collapse collapseFor(String collapse, String groupCount) {
+        if (!"book".equalsIgnoreCase(collapse)) {
+            return QueryRunner.Collapse.NONE;
+        }
+        return Boolean.parseBoolean(groupCount) ? QueryRunner.Collapse.BOOK_WITH_COUNT : QueryRunner.Collapse.BOOK;
+    }
+
+    /**
+     * Returns the facets to count for a search.
+     *
+     * @param facets comma separated facet names, null for none
+     * @return facets to count
+     * @throws IllegalArgumentException if a facet name is unknown
+     */
+    static Set<QueryRunner.Facet> facetsFor(String facets) {
+        Set<QueryRunner.Facet> result = EnumSet.noneOf(QueryRunner.Facet.class);
+        if (facets != null) {
+            for (String facet : facets.split(",")) {
+                if (!facet.trim().isEmpty()) {
+                    result.add(QueryRunner.Facet.valueOf(facet.trim().toUpperCase()));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Tells the client the server is too busy and when to try again.
+     *
+     * @param response servlet response
+     * @throws IOException if an I/O error occurs
+     */
+    static void reject(HttpServletResponse response) throws IOException {
+        response.setHeader("Retry-After", String.valueOf(SearchConstants.RETRY_AFTER_SECONDS));
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * Writes reviews to the response as a JSON array, one at a time as the
+     * search hands them over. With facet counts the array follows the counts
+     * in a JSON object. The response is taken by either the search or the
+     * request timeout, whichever gets there first, and the async context is
+     * completed exactly once. Writes and completion hold the stream's lock,
+     * so a timeout never completes the response in the middle of a write.
+     */
+    private static class ResultStream implements QueryRunner.ReviewHandler {
+
+        // nothing written yet
+        private static final int OPEN = 0;
+        // the search is writing results
+        private static final int STREAMING = 1;
+        // finished, failed, timed out or broken, and completed
+        private static final int DONE = 2;
+
+        private final HttpServletRequest request;
+        private final HttpServletResponse response;
+        // whether the reviews come after facet counts
+        private final boolean faceted;
+        // only ever moves forward, OPEN to STREAMING to DONE or OPEN to DONE
+        private final AtomicInteger state = new AtomicInteger(OPEN);
+        private JsonGenerator generator;
+        // null while the request runs on the container thread
+        private AsyncContext asyncContext;
+        private CompletableFuture<Void> search;
+
+        public ResultStream(HttpServletRequest request, HttpServletResponse response, boolean faceted) {
+            this.request = request;
+            this.response = response;
+            this.faceted = faceted;
         }
-        ObjectMapper mapper = new ObjectMapper();
-        String json = mapper.writeValueAsString(results);
-        try (PrintWriter out = response.getWriter()) {
-            out.println(json);
+
+        /**
+         * Hands over the async context to complete and the search to cancel.
+         * @param asyncContext context the request was put in async mode with
+         * @param search search writing to the stream
+         */
+        public synchronized void resumeWith(AsyncContext asyncContext, CompletableFuture<Void> search) {
+            this.asyncContext = asyncContext;
+            this.search = search;
+        }
+
+        @Override
+        public synchronized void handle(Review review) throws IOException {
+            start();
+            MAPPER.writeValue(generator, review);
+        }
+
+        @Override
+        public synchronized void handleExpansion(ExpansionDecision decision) {
+            // a timeout may already have taken or committed the response, and
+            // then the header can no longer be set
+            if (state.get() != OPEN || response.isCommitted()) {
+                return;
+            }
+            response.setHeader("X-Expansion-Decision", decision.toString());
+        }
+
+        @Override
+        public synchronized void handleFacets(FacetCounts facets) throws IOException {
+            start();
+            generator.writeFieldName("facets");
+            MAPPER.writeValue(generator, facets);
+            startHits();
+        }
+
+        /**
+         * Ends the response once the search is done: closes the JSON array, or
+         * sends the error status if the search failed. Does nothing if the
+         * response was already taken by a timeout or error.
+         * @param error reason the search failed, null if it succeeded
+         */
+        public synchronized void end(Throwable error) {
+            if (state.get() == DONE) {
+                return;
+            }
+            try {
+                if (error == null) {
+                    finish();
+                } else {
+                    fail(error);
+                }
+            } catch (IOException ex) {
+                System.err.println("IO Error while writing results: " + ex.getMessage());
+            } finally {
+                complete();
+            }
+        }
+
+        /**
+         * Takes the response from the search on a timeout or error and cancels
+         * the search. A search still queued never runs, a running one fails at
+         * its next review. If nothing was written yet and reject is set, the
+         * client is told to try again later, otherwise the response is cut off.
+         * @param reject whether to send 503 if nothing was written yet
+         */
+        public synchronized void stop(boolean reject) {
+            int previous = state.getAndSet(DONE);
+            if (previous == DONE) {
+                return;
+            }
+            try {
+                if (search != null) {
+                    search.cancel(false);
+                }
+                if (previous == OPEN && reject) {
+                    reject(response);
+                }
+            } catch (IOException ex) {
+                System.err.println("IO Error while rejecting request: " + ex.getMessage());
+            } finally {
+                if (asyncContext != null) {
+                    asyncContext.complete();
+                }
+            }
+        }
+
+        /**
+         * Closes the JSON array and the response.
+         * @throws IOException if an I/O error occurs
+         */
+        private void finish() throws IOException {
+            if (generator == null) {
+                start();
+                if (faceted) {
+                    startHits();
+                }
+            }
+            generator.writeEndArray();
+            if (faceted) {
+                generator.writeEndObject();
+            }
+            generator.close();
+        }
+
+        /**
+         * Sends the error status for a search that failed. If reviews were
+         * already written the status can not change and the response is cut
+         * off, with the JSON left open so the client can tell.
+         * @param error reason the search failed
+         * @throws IOException if an I/O error occurs
+         */
+        private void fail(Throwable error) throws IOException {
+            if (generator != null) {
+                System.err.println("Error while searching: " + error.getMessage());
+                // closing would otherwise end the open arrays and objects
+                generator.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+                generator.close();
+            } else if (error instanceof QueryRejectedException) {
+                reject(response);
+            } else {
+                System.err.println("Error while searching: " + error.getMessage());
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+        }
+
+        /**
+         * Marks the response done and completes the async context, if any.
+         */
+        private void complete() {
+            if (state.getAndSet(DONE) != DONE && asyncContext != null) {
+                asyncContext.complete();
+            }
+        }
+
+        /**
+         * Takes the response for the search and opens the JSON array or object,
+         * compressing the output if the client accepts gzip. Does nothing if
+         * the search already took it.
+         * @throws IOException if the response was taken by a timeout or error
+         */
+        private void start() throws IOException {
+            if (state.get() == STREAMING) {
+                return;
+            }
+            if (!state.compareAndSet(OPEN, STREAMING)) {
+                throw new IOException("request timed out");
+            }
+            OutputStream out = response.getOutputStream();
+            String encodings = request.getHeader("Accept-Encoding");
+            if (SearchConstants.GZIP_RESPONSES && encodings != null && encodings.contains("gzip")) {
+                response.setHeader("Vary", "Accept-Encoding");
+                out = new GzipThresholdStream(response, SearchConstants.GZIP_THRESHOLD_BYTES);
+            }
+            generator = MAPPER.getFactory().createGenerator(out, JsonEncoding.UTF8);
+            if (faceted) {
+                generator.writeStartObject();
+            } else {
+                generator.writeStartArray();
+            }
+        }
+
+        /**
+         * Opens the array of reviews after the facet counts.
+         * @throws IOException if an I/O error occurs
+         */
+        private void startHits() throws IOException {
+            generator.writeFieldName("hits");
+            generator.writeStartArray();
+        }
+    }
+
+    /**
+     * Holds output back until it grows past a threshold. Small responses are
+     * then written as they are, larger ones are gzipped from there on.
+     */
+    private static class GzipThresholdStream extends OutputStream {
+
+        private final HttpServletResponse response;
+        private final int threshold;
+        // output held back before the threshold is passed
+        private ByteArrayOutputStream buffer;
+        // gzip stream once the threshold is passed
+        private OutputStream out;
+
+        public GzipThresholdStream(HttpServletResponse response, int threshold) {
+            this.response = response;
+            this.threshold = threshold;
+            buffer = new ByteArrayOutputStream(threshold);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (out == null) {
+                buffer.write(b);
+                checkThreshold();
+            } else {
+                out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (out == null) {
+                buffer.write(b, off, len);
+                checkThreshold();
+            } else {
+                out.write(b, off, len);
+            }
+        }
+
+        /**
+         * Switches to gzip once the held back output is too big.
+         */
+        private void checkThreshold() throws IOException {
+            if (buffer.size() > threshold) {
+                response.setHeader("Content-Encoding", "gzip");
+                out = new GZIPOutputStream(response.getOutputStream(), 8192);
+                buffer.writeTo(out);
+                buffer = null;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // nothing is sent before the threshold decides the encoding
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out == null) {
+                response.setContentLength(buffer.size());
+                OutputStream plain = response.getOutputStream();
+                buffer.writeTo(plain);
+                plain.close();
+            } else {
+                out.close();
+            }
         }
     }
     
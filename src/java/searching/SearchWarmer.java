@@ -0,0 +1,129 @@
+package searching;
+
+import indexing.IndexConstants;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+
+/**
+ * Replays logged searches against a new review searcher before it is handed
+ * out, so the index pages those searches need are already in memory when real
+ * searches arrive. PRF and Rocchio searches also read the term vectors of
+ * their top reviews, as the expansion does.
+ */
+public class SearchWarmer {
+
+    // search mode and text of each logged search
+    private final List<String[]> searches;
+    // query analyzer, tokenizes, stems and removes stop words the same way as the index
+    private final Analyzer analyzer = new EnglishAnalyzer();
+
+    /**
+     *
+     * @param searches search mode and text of each search to replay
+     */
+    public SearchWarmer(List<String[]> searches) {
+        this.searches = searches;
+    }
+
+    /**
+     * Reads a query log with one search per line, either as the search text
+     * or as mode, a tab, and the search text.
+     * @param path query log, empty for no warm-up
+     * @param maxSearches most searches to read
+     * @return warmer, null if there is no log or it could not be read
+     */
+    public static SearchWarmer fromLog(String path, int maxSearches) {
+        if (path == null || path.isEmpty()) {
+            return null;
+        }
+        try {
+            return new SearchWarmer(readLog(path, maxSearches, "simple"));
+        } catch (IOException ex) {
+            System.err.println("Could not read warm-up query log: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reads the searches of a query log, one per line, either as the search
+     * text or as mode, a tab, and the search text. Blank lines are skipped.
+     * @param path query log
+     * @param maxSearches most searches to read
+     * @param defaultMode mode of searches logged without one
+     * @return search mode and text of each search
+     * @throws IOException if the log could not be read
+     */
+    static List<String[]> readLog(String path, int maxSearches, String defaultMode) throws IOException {
+        List<String[]> searches = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while (searches.size() < maxSearches && (line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                int tab = line.indexOf('\t');
+                if (tab < 0) {
+                    searches.add(new String[]{defaultMode, line});
+                } else {
+                    searches.add(new String[]{line.substring(0, tab).trim().toLowerCase(), line.substring(tab + 1)});
+                }
+            }
+        }
+        return searches;
+    }
+
+    /**
+     * Runs every logged search on the searcher.
+     * @param searcher new review searcher
+     */
+    public void warm(IndexSearcher searcher) {
+        long start = System.currentTimeMillis();
+        for (String[] search : searches) {
+            try {
+                ScoreDoc[] hits = searcher.search(buildQuery(search[1]), 10).scoreDocs;
+                for (ScoreDoc hit : hits) {
+                    searcher.doc(hit.doc);
+                    if (!search[0].equals("simple")) {
+                        searcher.getIndexReader().getTermVector(hit.doc, IndexConstants.TEXT);
+                    }
+                }
+            } catch (IOException ex) {
+                System.err.println("IO Error while warming searcher: " + ex.getMessage());
+            }
+        }
+        System.out.println("Warmed searcher with " + searches.size() + " searches in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Builds the same query a simple search would.
+     * @param text Free text query.
+     * @return query
+     * @throws IOException
+     */
+    private BooleanQuery buildQuery(String text) throws IOException {
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        try (TokenStream tokenStream = analyzer.tokenStream(IndexConstants.TEXT, text)) {
+            CharTermAttribute term = tokenStream.addAttribute(CharTermAttribute.class);
+            tokenStream.reset();
+            while (tokenStream.incrementToken()) {
+                builder.add(new TermQuery(new Term(IndexConstants.TEXT, term.toString())), BooleanClause.Occur.SHOULD);
+            }
+            tokenStream.end();
+        }
+        return builder.build();
+    }
+}
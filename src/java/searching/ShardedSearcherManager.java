@@ -0,0 +1,115 @@
+package searching;
+
+import java.io.IOException;
+import java.util.List;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+
+/**
+ * Hands out searchers over an index split into shard directories. The shards
+ * are read through one MultiReader, so document frequencies and collection
+ * statistics are summed over every shard and BM25 scores and term weights come
+ * out the same as for a single index. A refresh only reopens the shards that
+ * changed.
+ */
+public class ShardedSearcherManager extends ReferenceManager<IndexSearcher> {
+
+    private final SearcherFactory searcherFactory;
+
+    /**
+     *
+     * @param shards shard directories, in shard order
+     * @param searcherFactory creates the searcher over all shards
+     * @throws IOException
+     */
+    public ShardedSearcherManager(Directory[] shards, SearcherFactory searcherFactory) throws IOException {
+        this.searcherFactory = searcherFactory;
+
+        DirectoryReader[] readers = new DirectoryReader[shards.length];
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                readers[i] = DirectoryReader.open(shards[i]);
+            }
+        } catch (IOException | RuntimeException ex) {
+            decRefAll(readers);
+            throw ex;
+        }
+        current = newSearcher(readers, null);
+    }
+
+    @Override
+    protected void decRef(IndexSearcher reference) throws IOException {
+        reference.getIndexReader().decRef();
+    }
+
+    @Override
+    protected IndexSearcher refreshIfNeeded(IndexSearcher referenceToRefresh) throws IOException {
+        IndexReader previous = referenceToRefresh.getIndexReader();
+        List<IndexReaderContext> shards = previous.getContext().children();
+
+        DirectoryReader[] readers = new DirectoryReader[shards.size()];
+        boolean changed = false;
+        try {
+            for (int i = 0; i < readers.length; i++) {
+                DirectoryReader old = (DirectoryReader) shards.get(i).reader();
+                readers[i] = DirectoryReader.openIfChanged(old);
+                if (readers[i] == null) {
+                    old.incRef();
+                    readers[i] = old;
+                } else {
+                    changed = true;
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            decRefAll(readers);
+            throw ex;
+        }
+
+        if (!changed) {
+            decRefAll(readers);
+            return null;
+        }
+        return newSearcher(readers, previous);
+    }
+
+    @Override
+    protected boolean tryIncRef(IndexSearcher reference) throws IOException {
+        return reference.getIndexReader().tryIncRef();
+    }
+
+    @Override
+    protected int getRefCount(IndexSearcher reference) {
+        return reference.getIndexReader().getRefCount();
+    }
+
+    /**
+     * Creates a searcher over the shards. The MultiReader takes its own
+     * reference to each shard, the references passed in are given up.
+     * @param readers one reader per shard
+     * @param previous reader of the searcher being replaced, null on first open
+     * @return searcher over every shard
+     * @throws IOException
+     */
+    private IndexSearcher newSearcher(DirectoryReader[] readers, IndexReader previous) throws IOException {
+        try {
+            return SearcherManager.getSearcher(searcherFactory, new MultiReader(readers, false), previous);
+        } finally {
+            decRefAll(readers);
+        }
+    }
+
+    private static void decRefAll(DirectoryReader[] readers) throws IOException {
+        for (DirectoryReader reader : readers) {
+            if (reader != null) {
+                reader.decRef();
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package searching;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs at most one piece of work per key at a time. Callers asking for a key
+ * that is already being worked on wait for that work and share its result
+ * instead of doing the same work again. Nothing is kept once the work is done.
+ * @param <K> key type
+ * @param <V> result type
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Does the work, or waits for the same work already in progress.
+     * @param key identifies the work
+     * @param work work to do if nobody is doing it yet
+     * @return result of the work
+     * @throws IOException if the work failed
+     */
+    public V run(K key, Work<V> work) throws IOException {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> leader = inFlight.putIfAbsent(key, mine);
+        if (leader != null) {
+            coalesced.increment();
+            return join(leader);
+        }
+
+        try {
+            V result = work.run();
+            mine.complete(result);
+            return result;
+        } catch (Throwable ex) {
+            mine.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * @return number of callers that shared another caller's work
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return number of pieces of work in progress
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Waits for shared work, throwing what it threw.
+     * @param <V> result type
+     * @param future the shared work
+     * @return result of the work
+     * @throws IOException if the work failed
+     */
+    static <V> V join(CompletableFuture<V> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * A piece of work that may be shared.
+     * @param <V> result type
+     */
+    public interface Work<V> {
+
+        V run() throws IOException;
+    }
+}
@@ -0,0 +1,360 @@
+package searching;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.Weight;
+
+/**
+ * Writes slow searches to a local file, one JSON object per line: the query
+ * text, mode, Rocchio configuration, the clauses of the final query with
+ * their boosts, the time of each phase and the number of hits. That is
+ * enough to run a pathological expansion again later. Searches only put
+ * their trace on a queue, a single thread writes them, and when the queue is
+ * full the trace is dropped rather than making the search wait. The file is
+ * rotated once it grows past SearchConstants.SLOW_QUERY_LOG_MAX_BYTES.
+ * <p>
+ * A share of the logged searches is also profiled: each clause of the final
+ * query is run on its own over the whole index, timing how long its matches
+ * take to score. The searcher's reader is held open for this until the
+ * writer thread gets to it.
+ */
+public class SlowQueryLog {
+
+    private final File file;
+    private final long maxBytes;
+    private final int files;
+    private final double profileRate;
+    private final BlockingQueue<Entry> queue;
+    private final LongAdder logged = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    // only used on the writer thread
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    private Writer out;
+    private long size;
+
+    /**
+     *
+     * @param file log file
+     * @param maxBytes size past which the file is rotated
+     * @param files number of rotated files kept
+     * @param queueDepth most searches waiting to be written
+     * @param profileRate share of logged searches to profile, from 0 to 1
+     */
+    public SlowQueryLog(File file, long maxBytes, int files, int queueDepth, double profileRate) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.files = files;
+        this.profileRate = profileRate;
+        queue = new ArrayBlockingQueue<>(queueDepth);
+        timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Thread writer = QueryPool.daemonThreads("slow-query-log").newThread(this::writeEntries);
+        writer.start();
+    }
+
+    /**
+     * Opens the slow query log with the limits in SearchConstants.
+     * @param path log file, empty for no log
+     * @return log, null if there is no log file
+     */
+    public static SlowQueryLog open(String path) {
+        if (path == null || path.isEmpty()) {
+            return null;
+        }
+        return new SlowQueryLog(new File(path), SearchConstants.SLOW_QUERY_LOG_MAX_BYTES,
+                SearchConstants.SLOW_QUERY_LOG_FILES, SearchConstants.SLOW_QUERY_QUEUE_DEPTH,
+                SearchConstants.SLOW_QUERY_PROFILE_RATE);
+    }
+
+    /**
+     * Queues a finished search to be written. Never waits.
+     * @param trace trace of the search, ended
+     */
+    public void log(QueryTrace trace) {
+        IndexSearcher profileSearcher = null;
+        // the searcher is released when the search is done, so the
+        // reader gets a reference of its own until it is profiled
+        if (trace.getQuery() instanceof BooleanQuery && ThreadLocalRandom.current().nextDouble() < profileRate
+                && trace.getSearcher().getIndexReader().tryIncRef()) {
+            profileSearcher = trace.getSearcher();
+        }
+        Entry entry = new Entry(trace, System.currentTimeMillis(), profileSearcher);
+        if (queue.offer(entry)) {
+            logged.increment();
+        } else {
+            dropped.increment();
+            entry.release();
+        }
+    }
+
+    /**
+     * @return searches queued to be written so far
+     */
+    public long getLoggedCount() {
+        return logged.sum();
+    }
+
+    /**
+     * @return slow searches not logged because the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Writes queued searches as they come, flushing whenever the queue runs dry.
+     */
+    private void writeEntries() {
+        while (true) {
+            try {
+                Entry entry = queue.take();
+                do {
+                    write(entry);
+                } while ((entry = queue.poll()) != null);
+                if (out != null) {
+                    out.flush();
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } catch (IOException ex) {
+                System.err.println("IO Error while writing slow query log: " + ex.getMessage());
+                closeQuietly();
+            }
+        }
+    }
+
+    /**
+     * Writes one search, profiling it first if it was picked.
+     * @param entry search to write
+     * @throws IOException if the log could not be written
+     */
+    private void write(Entry entry) throws IOException {
+        ObjectNode json;
+        try {
+            json = toJson(entry);
+        } finally {
+            entry.release();
+        }
+        String line = SearchServlet.MAPPER.writeValueAsString(json) + "\n";
+        int bytes = line.getBytes(StandardCharsets.UTF_8).length;
+        if (out == null || size + bytes > maxBytes && size > 0) {
+            rotate();
+        }
+        out.write(line);
+        size += bytes;
+    }
+
+    /**
+     * @param entry logged search
+     * @return JSON object of the search
+     */
+    private ObjectNode toJson(Entry entry) {
+        QueryTrace trace = entry.trace;
+        ObjectNode json = SearchServlet.MAPPER.createObjectNode();
+        json.put("time", timeFormat.format(new Date(entry.time)));
+        json.put("millis", trace.getTotalNanos() / 1e6);
+        json.put("mode", trace.getMode());
+        json.put("query", trace.getText());
+        json.put("filtered", trace.isFiltered());
+        if (trace.getConfig() != null) {
+            ObjectNode config = json.putObject("config");
+            config.put("x", trace.getConfig().getX());
+            config.put("r", trace.getConfig().getR());
+            config.put("alpha", trace.getConfig().getAlpha());
+            config.put("beta", trace.getConfig().getBeta());
+        }
+        if (trace.getDecision() != null) {
+            json.put("decision", trace.getDecision().toString());
+        }
+        json.put("hits", trace.getHits());
+        ObjectNode phases = json.putObject("phaseMillis");
+        for (QueryTrace.Phase phase : QueryTrace.Phase.values()) {
+            phases.put(phase.label(), trace.getPhaseNanos(phase) / 1e6);
+        }
+        if (trace.getExpansionTerms() >= 0) {
+            json.put("expansionTerms", trace.getExpansionTerms());
+            json.put("droppedClauses", trace.getDroppedClauses());
+        }
+        if (trace.getQuery() != null) {
+            ArrayNode clauses = json.putArray("clauses");
+            for (ClauseCost clause : clauses(trace.getQuery())) {
+                clauses.addObject().put("term", clause.term).put("boost", clause.boost);
+            }
+        }
+        if (entry.profileSearcher != null) {
+            try {
+                ArrayNode profile = json.putArray("profile");
+                for (ClauseCost clause : profile(entry.profileSearcher, (BooleanQuery) trace.getQuery())) {
+                    profile.addObject().put("term", clause.term).put("boost", clause.boost)
+                            .put("docs", clause.docs).put("micros", clause.nanos / 1000);
+                }
+            } catch (IOException ex) {
+                json.put("profileError", ex.getMessage());
+            }
+        }
+        return json;
+    }
+
+    /**
+     * @param query final query of a search
+     * @return term and boost of each clause, the whole query as one clause if it is not boolean
+     */
+    private static List<ClauseCost> clauses(Query query) {
+        List<ClauseCost> clauses = new ArrayList<>();
+        if (query instanceof BooleanQuery) {
+            for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+                clauses.add(new ClauseCost(clause.getQuery()));
+            }
+        } else {
+            clauses.add(new ClauseCost(query));
+        }
+        return clauses;
+    }
+
+    /**
+     * Runs each clause of a query on its own, scoring every document it
+     * matches in every segment.
+     * @param searcher searcher the query ran on
+     * @param query final query of a search
+     * @return clauses with the documents they matched and the time to score
+     * them, most costly first
+     * @throws IOException if the index could not be read
+     */
+    static List<ClauseCost> profile(IndexSearcher searcher, BooleanQuery query) throws IOException {
+        List<ClauseCost> costs = clauses(query);
+        for (ClauseCost cost : costs) {
+            long start = System.nanoTime();
+            Weight weight = searcher.createNormalizedWeight(cost.query, true);
+            for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+                Scorer scorer = weight.scorer(leaf);
+                if (scorer == null) {
+                    continue;
+                }
+                DocIdSetIterator docs = scorer.iterator();
+                while (docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                    scorer.score();
+                    cost.docs++;
+                }
+            }
+            cost.nanos = System.nanoTime() - start;
+        }
+        Collections.sort(costs, (a, b) -> Long.compare(b.nanos, a.nanos));
+        return costs;
+    }
+
+    /**
+     * Closes the current file and starts a new one, moving older files up
+     * one number and deleting the oldest.
+     * @throws IOException if the new file could not be opened
+     */
+    private void rotate() throws IOException {
+        if (out != null) {
+            closeQuietly();
+            new File(file.getPath() + "." + files).delete();
+            for (int i = files - 1; i >= 1; i--) {
+                new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+            }
+            if (files > 0) {
+                file.renameTo(new File(file.getPath() + ".1"));
+            } else {
+                file.delete();
+            }
+        }
+        // a file left by an earlier run is appended to
+        size = file.length();
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    private void closeQuietly() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                System.err.println("IO Error while closing slow query log: " + ex.getMessage());
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * A logged search waiting to be written.
+     */
+    private static class Entry {
+
+        private final QueryTrace trace;
+        private final long time;
+        // searcher to profile on, its reader holding a reference for this entry
+        private IndexSearcher profileSearcher;
+
+        public Entry(QueryTrace trace, long time, IndexSearcher profileSearcher) {
+            this.trace = trace;
+            this.time = time;
+            this.profileSearcher = profileSearcher;
+        }
+
+        /**
+         * Gives back the reference to the profiled reader, if any.
+         */
+        public void release() {
+            if (profileSearcher != null) {
+                IndexReader reader = profileSearcher.getIndexReader();
+                profileSearcher = null;
+                try {
+                    reader.decRef();
+                } catch (IOException ex) {
+                    System.err.println("IO Error while closing index reader: " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * One clause of a final query and, when profiled, its cost.
+     */
+    static class ClauseCost {
+
+        private final Query query;
+        private final String term;
+        private final float boost;
+        private long docs;
+        private long nanos;
+
+        public ClauseCost(Query query) {
+            this.query = query;
+            Query inner = query;
+            float clauseBoost = 1;
+            if (inner instanceof BoostQuery) {
+                clauseBoost = ((BoostQuery) inner).getBoost();
+                inner = ((BoostQuery) inner).getQuery();
+            }
+            term = (inner instanceof TermQuery) ? ((TermQuery) inner).getTerm().text() : inner.toString();
+            boost = clauseBoost;
+        }
+    }
+}
@@ -9,13 +9,16 @@
  */
 package ui;
 
+import evaluation.EvaluationConstants;
+import evaluation.EvaluationSummary;
+import evaluation.ParameterSweep;
+import evaluation.RelevanceJudgments;
+import evaluation.ResultFileWriter;
 import indexing.IndexConstants;
 import indexing.IndexGenerator;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Scanner;
 import java.util.Set;
@@ -41,14 +44,11 @@ public class CommandLineUI {
 
             switch (choice) {
                 case 'a':
-                    createIndex(false, "review_data_part_1.json");
+                    createIndex("review_data_part_1.json");
                     return;
                 case 'b':
                     createBookIndex();
                     return;
-                case 'c':
-                    createIndex(true, "review_data_part_1.json");
-                    return;
                 case 'd':
                     System.out.println("Enter a search term.");
                     text = in.nextLine();
@@ -90,8 +90,7 @@ public class CommandLineUI {
                     return;
                 case 'j':
                     for (int i = 0; i < 50; i++) {
-                        createIndex(false, "review_data_part_" + i + ".json");
-                        createIndex(true, "review_data_part_" + i + ".json");
+                        createIndex("review_data_part_" + i + ".json");
                     }
                     return;
                 default:
@@ -110,7 +109,6 @@ public class CommandLineUI {
         System.out.println("a) Create an index file."
                 + " The program will exit when this in finished.");
         System.out.println("b) Create an index for the books file.");
-        System.out.println("c) Create a filtered index.");
         System.out.println("d) Perform a search using the index file (basic).");
         System.out.println("e) Perform a search using the index file (PRF).");
         System.out.println("f) Perform a search using the index file (Rocchio).");
@@ -127,17 +125,17 @@ public class CommandLineUI {
     }
 
     /**
-     * Creates an index file from a review json file.
+     * Creates an index file from a review json file. The filtered reviews
+     * are read from this index, there is no separate filtered index.
      * 
-     * @param filtered filter by books or not
      * @param sourcePath path to the documents file
      */
-    private static void createIndex(boolean filtered, String sourcePath) {
+    private static void createIndex(String sourcePath) {
         System.out.println("Generating Index");
         File documentsFile = new File(sourcePath);
         IndexGenerator generator = new IndexGenerator(documentsFile);
-        File indexFile = new File(filtered ? IndexConstants.FILTERED_INDEX_LOCATION : IndexConstants.INDEX_LOCATION);
-        generator.createIndex(indexFile, filtered);
+        File indexFile = new File(IndexConstants.INDEX_LOCATION);
+        generator.createIndex(indexFile, false);
         System.out.println("Done.");
     }
 
@@ -168,7 +166,11 @@ public class CommandLineUI {
     }
 
     /**
-     * Perform many searches and output to files in trec_eval input format.
+     * Perform many searches and score them. Every configuration of a query set
+     * is searched concurrently as one parameter sweep. The labeled runs are
+     * scored as they finish, one row each in the evaluation summary. Output to
+     * files in trec_eval input format is optional, the unlabeled queries have
+     * no judgments so they are only run for those files.
      * 
      * @param qRunner QueryRunner to use while testing
      */
@@ -206,236 +208,159 @@ public class CommandLineUI {
         String prfDir = "prf results";
         String rocDir = "rocchio results";
 
-        // simple searches for the labeled queries
-        for (int queryNo = 1; queryNo <= labeledQueries.length; queryNo++) {
-            String query = labeledQueries[queryNo - 1];
-            List<Review> results = qRunner.executeReviewFiltered(query, field, labeledResultN, false);
-            String filename = "simpleresults labeled.txt";
-            ResultsWriter writer = new ResultsWriter(filename, queryNo, query, true);
-            writer.toFile(results, qRunner);
-            writer.writeQrels();
-        }
+        // the labeled queries run on the filtered reviews, and are scored
+        ParameterSweep labeled = new ParameterSweep(qRunner, labeledQueries, field, labeledResultN, true);
+        // the unlabeled queries run on the unfiltered reviews
+        ParameterSweep unlabeled = new ParameterSweep(qRunner, unlabeledQueries, field, unlabeledResultN, false);
 
-        // check or make the directory
-        new File(prfLDir).mkdir();
+        // simple searches
+        labeled.addSimple("simpleresults labeled.txt");
+        unlabeled.addSimple("simple results.txt");
 
-        // run PRF searches
+        // PRF searches
         for (int x = xmin; x <= xmax; x += xstep) {
-            for (int queryNo = 1; queryNo <= labeledQueries.length; queryNo++) {
-                String query = labeledQueries[queryNo - 1];
-                List<Review> results = qRunner.prf(query, field, labeledResultN, x, true);
-                String filename = prfLDir + "/" + x + ".txt";
-                ResultsWriter writer = new ResultsWriter(filename, queryNo, query, true);
-                writer.toFile(results, qRunner);
-                writer.writeQrels();
-            }
-        }
-        // check or make the directory
-        new File(rocLDir).mkdir();
-        
-        // run Rocchio searches
-        for (int r = rmin; r <= rmax; r += rstep) {
-            for (float alpha = alphamin; alpha <= alphamax; alpha += alphastep) {
-                for (float beta = betamin; beta <= betamax; beta += betastep) {
-                    for (int queryNo = 1; queryNo <= labeledQueries.length; queryNo++) {
-                        String query = labeledQueries[queryNo - 1];
-                        QueryRunner.RocchioConfig rConfig = new QueryRunner.RocchioConfig();
-                        // x = -1 means do Rocchio search
-                        rConfig.setX(-1);
-                        rConfig.setR(r);
-                        rConfig.setAlpha(alpha);
-                        rConfig.setBeta(beta);
-
-                        List<Review> results = qRunner.rocchio(query, field, labeledResultN, rConfig, true);
-                        String filename = rocLDir + "/" + r + " " + alpha + " " + beta + ".txt";
-                        ResultsWriter writer = new ResultsWriter(filename, queryNo, query, true);
-                        writer.toFile(results, qRunner);
-                        writer.writeQrels();
-                    }
-                }
-            }
+            labeled.addPrf(prfLDir + "/" + x + ".txt", x);
+            unlabeled.addPrf(prfDir + "/" + x + ".txt", x);
         }
-        
-        // run Rocchio search with book subject based initial search
-        for (int r = rmin; r <= rmax; r += rstep) {
-            for (float alpha = alphamin; alpha <= alphamax; alpha += alphastep) {
-                for (float beta = betamin; beta <= betamax; beta += betastep) {
-                    for (int queryNo = 1; queryNo <= labeledQueries.length; queryNo++) {
-                        String query = labeledQueries[queryNo - 1];
-                        QueryRunner.RocchioConfig rConfig = new QueryRunner.RocchioConfig();
-                        // x = -1 means do Rocchio search
-                        rConfig.setX(-1);
-                        rConfig.setR(r);
-                        rConfig.setAlpha(alpha);
-                        rConfig.setBeta(beta);
-
-                        List<Review> results = qRunner.rocchio(query, field, labeledResultN, rConfig, true, true);
-                        String filename = rocLDir + "/" + r + " " + alpha + " " + beta + " books.txt";
-                        ResultsWriter writer = new ResultsWriter(filename, queryNo, query, true);
-                        writer.toFile(results, qRunner);
-                        writer.writeQrels();
+
+        // Rocchio searches, then Rocchio searches with book subject based initial search
+        for (boolean fromBooks : new boolean[]{false, true}) {
+            for (int r = rmin; r <= rmax; r += rstep) {
+                for (float alpha = alphamin; alpha <= alphamax; alpha += alphastep) {
+                    for (float beta = betamin; beta <= betamax; beta += betastep) {
+                        String name = r + " " + alpha + " " + beta + (fromBooks ? " books" : "") + ".txt";
+                        labeled.addRocchio(rocLDir + "/" + name, r, alpha, beta, fromBooks);
+                        unlabeled.addRocchio(rocDir + "/" + name, r, alpha, beta, fromBooks);
                     }
                 }
             }
         }
 
-        // run simple search queries on unlabeled reviews
-        for (int queryNo = 1; queryNo <= unlabeledQueries.length; queryNo++) {
-            String query = unlabeledQueries[queryNo - 1];
-            List<Review> results = qRunner.executeReview(query, field, unlabeledResultN, false);
-            String filename = "simple results.txt";
-            ResultsWriter writer = new ResultsWriter(filename, queryNo, query, false);
-            writer.toFile(results, qRunner);
+        // adaptive PRF and Rocchio searches as the search servlet runs them, to
+        // compare with the same searches always expanding
+        labeled.addAdaptive(prfLDir + "/10 adaptive.txt", 10, 10, 1f, .8f);
+        unlabeled.addAdaptive(prfDir + "/10 adaptive.txt", 10, 10, 1f, .8f);
+        labeled.addAdaptive(rocLDir + "/10 1.0 0.8 adaptive.txt", -1, 10, 1f, .8f);
+        unlabeled.addAdaptive(rocDir + "/10 1.0 0.8 adaptive.txt", -1, 10, 1f, .8f);
+
+        if (EvaluationConstants.WRITE_TREC_FILES) {
+            // check or make the directories
+            new File(prfLDir).mkdir();
+            new File(rocLDir).mkdir();
+            new File(prfDir).mkdir();
+            new File(rocDir).mkdir();
         }
-        // check or make the directory
-        new File(prfDir).mkdir();
 
-        // run PRF searches
-        for (int x = xmin; x <= xmax; x += xstep) {
-            for (int queryNo = 1; queryNo <= unlabeledQueries.length; queryNo++) {
-                String query = unlabeledQueries[queryNo - 1];
-                List<Review> results = qRunner.prf(query, field, unlabeledResultN, x, false);
-                String filename = prfDir + "/"+x+".txt";
-                ResultsWriter writer = new ResultsWriter(filename, queryNo, query, false);
-                writer.toFile(results, qRunner);
-            }
+        // relevance of the reviews to each labeled query
+        List<RelevanceJudgments> judgments = new ArrayList<>();
+        for (String query : labeledQueries) {
+            judgments.add(new RelevanceJudgments(qRunner, query, true));
         }
-        // check or make the directory
-        new File(rocDir).mkdir();
-        
-        // run Rocchio searches
-        for (int r = rmin; r <= rmax; r += rstep) {
-            for (float alpha = alphamin; alpha <= alphamax; alpha += alphastep) {
-                for (float beta = betamin; beta <= betamax; beta += betastep) {
-                    for (int queryNo = 1; queryNo <= unlabeledQueries.length; queryNo++) {
-                        String query = unlabeledQueries[queryNo - 1];
-                        QueryRunner.RocchioConfig rConfig = new QueryRunner.RocchioConfig();
-                        
-                        // x = -1 means do Rocchio search
-                        rConfig.setX(-1);
-                        rConfig.setR(r);
-                        rConfig.setAlpha(alpha);
-                        rConfig.setBeta(beta);
-
-                        List<Review> results = qRunner.rocchio(query, field, unlabeledResultN, rConfig, false);
-                        String filename = rocDir + "/"+ r + " " + alpha + " " + beta + ".txt";
-                        ResultsWriter writer = new ResultsWriter(filename, queryNo, query, false);
-                        writer.toFile(results, qRunner);
-                    }
+
+        // every file of the sweeps is written through one writer
+        try (ResultFileWriter out = new ResultFileWriter()) {
+            EvaluationSummary summary = new EvaluationSummary(EvaluationConstants.SUMMARY_FILE, out, judgments,
+                    EvaluationConstants.METRIC_K);
+            labeled.run((run, results) -> {
+                summary.add(run, results);
+                if (EvaluationConstants.WRITE_TREC_FILES) {
+                    writeRun(out, run.getName(), labeledQueries, results, judgments);
                 }
+            });
+
+            if (EvaluationConstants.WRITE_TREC_FILES) {
+                unlabeled.run((run, results) -> writeRun(out, run.getName(), unlabeledQueries, results, null));
             }
         }
-        
-        // run Rocchio searches with book subject based initial search
-        for (int r = rmin; r <= rmax; r += rstep) {
-            for (float alpha = alphamin; alpha <= alphamax; alpha += alphastep) {
-                for (float beta = betamin; beta <= betamax; beta += betastep) {
-                    for (int queryNo = 1; queryNo <= unlabeledQueries.length; queryNo++) {
-                        String query = unlabeledQueries[queryNo - 1];
-                        QueryRunner.RocchioConfig rConfig = new QueryRunner.RocchioConfig();
-                        // x = -1 means do Rocchio search
-                        rConfig.setX(-1);
-                        rConfig.setR(r);
-                        rConfig.setAlpha(alpha);
-                        rConfig.setBeta(beta);
-
-                        List<Review> results = qRunner.rocchio(query, field, unlabeledResultN, rConfig, false, true);
-                        String filename = rocDir + "/"+ r + " " + alpha + " " + beta + " books.txt";
-                        ResultsWriter writer = new ResultsWriter(filename, queryNo, query, false);
-                        writer.toFile(results, qRunner);
-                    }
-                }
-            }
+    }
+
+    /**
+     * Writes the results of one run, query by query.
+     * 
+     * @param out writes the files
+     * @param filename output file name
+     * @param queries query text of each query
+     * @param results reviews found for each query
+     * @param judgments relevance judgments of each query, null if the queries
+     * are unlabeled. Qrels are written for labeled queries.
+     */
+    private static void writeRun(ResultFileWriter out, String filename, String[] queries, List<List<Review>> results,
+            List<RelevanceJudgments> judgments) {
+        ResultsWriter writer = new ResultsWriter(filename);
+        for (int queryNo = 1; queryNo <= queries.length; queryNo++) {
+            writer.add(queryNo, queries[queryNo - 1], results.get(queryNo - 1),
+                    (judgments != null) ? judgments.get(queryNo - 1) : null);
         }
+        writer.writeTo(out, judgments != null);
     }
 
     /**
-     * Writes results to file in trev_eval input format.
+     * Formats the results of a run in trev_eval input format. The whole run
+     * is handed to the file writer at once, one record for the results and
+     * one for the qrels.
      */
     private static class ResultsWriter {
 
         private final String filename;
-        private final String query;
-        private final int queryNo;
-        private final Set<String> relevant;
-        private final Set<String> notRelevant;
-        private final boolean filtered;
+        private final StringBuilder run = new StringBuilder();
+        private final StringBuilder qrels = new StringBuilder();
 
         /**
          * 
          * @param filename output file name
-         * @param queryNo query number
-         * @param query query text
-         * @param filtered filtered reviews or not
          */
-        public ResultsWriter(String filename, int queryNo, String query, boolean filtered) {
+        public ResultsWriter(String filename) {
             this.filename = filename;
-            this.queryNo = queryNo;
-            this.query = query;
-            this.filtered = filtered;
-
-            relevant = new HashSet<>();
-            notRelevant = new HashSet<>();
         }
 
         /**
-         * Writes the results list to file. If the filtered flag is true, store qrels
-         * based on book index searches.
+         * Adds the results list of a query. If the query is labeled, store qrels
+         * from its relevance judgments.
+         * @param queryNo query number
+         * @param query query text
          * @param results a list of review results
-         * @param qRunner QueryRunner to run book searches on
+         * @param judgments relevance judgments of the query, null if it is unlabeled
          */
-        public void toFile(List<Review> results, QueryRunner qRunner) {
-            File file = new File(filename);
-            try {
-                BufferedWriter writer = new BufferedWriter(new FileWriter(file, true));
-
-                int rank = 1;
-                for (Review result : results) {
-                    writer.write(queryNo + " 0 ");
-                    writer.write(result.getAsin() + "." + result.getReviewerId() + " ");
-                    writer.write(rank + " ");
-                    writer.write(result.getScore() + " ");
-                    writer.write(query.replace(' ', '_') + "\n");
-                    ++rank;
-
-                    if (filtered) {
-                        if (qRunner.checkSubject(result.getAsin(), query)) {
-                            relevant.add(result.getAsin() + "." + result.getReviewerId());
-                        } else {
-                            notRelevant.add(result.getAsin() + "." + result.getReviewerId());
-                        }
+        public void add(int queryNo, String query, List<Review> results, RelevanceJudgments judgments) {
+            Set<String> relevant = new LinkedHashSet<>();
+            Set<String> notRelevant = new LinkedHashSet<>();
+
+            int rank = 1;
+            for (Review result : results) {
+                run.append(queryNo).append(" 0 ");
+                run.append(result.getAsin()).append('.').append(result.getReviewerId()).append(' ');
+                run.append(rank).append(' ');
+                run.append(result.getScore()).append(' ');
+                run.append(query.replace(' ', '_')).append('\n');
+                ++rank;
+
+                if (judgments != null) {
+                    if (judgments.isRelevant(result)) {
+                        relevant.add(result.getAsin() + "." + result.getReviewerId());
+                    } else {
+                        notRelevant.add(result.getAsin() + "." + result.getReviewerId());
                     }
                 }
+            }
+
+            for (String asin : relevant) {
+                qrels.append(queryNo).append(" 0 ").append(asin).append(" 1\n");
+            }
 
-                writer.close();
-            } catch (IOException ex) {
-                System.err.println("Error writing results file: " + ex.getMessage());
+            for (String asin : notRelevant) {
+                qrels.append(queryNo).append(" 0 ").append(asin).append(" 0\n");
             }
         }
 
         /**
-         * Using relevant and not relevant sets generated in toFile() write qrels file.
+         * Queues the results file, and the qrels file next to it.
+         * @param out writes the files
+         * @param writeQrels true to write the qrels file
          */
-        public void writeQrels() {
-            File file = new File(filename + "qrels");
-            try {
-                BufferedWriter writer = new BufferedWriter(new FileWriter(file, true));
-
-                for (String asin : relevant) {
-                    writer.write(queryNo + " 0 ");
-                    writer.write(asin + " ");
-                    writer.write("1\n");
-                }
-
-                for (String asin : notRelevant) {
-                    writer.write(queryNo + " 0 ");
-                    writer.write(asin + " ");
-                    writer.write("0\n");
-                }
-
-                writer.close();
-            } catch (IOException ex) {
-                System.err.println("Error writing results file: " + ex.getMessage());
+        public void writeTo(ResultFileWriter out, boolean writeQrels) {
+            out.write(filename, 0, run.toString(), true);
+            if (writeQrels) {
+                out.write(filename + "qrels", 0, qrels.toString(), true);
             }
         }
     }